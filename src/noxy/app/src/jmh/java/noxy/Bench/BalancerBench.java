@@ -0,0 +1,63 @@
+package noxy.Bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import noxy.Balancer.BackendTracker;
+import noxy.Balancer.BalanceStrategy;
+import noxy.Balancer.LeastConnDistribution;
+import noxy.Balancer.RoundRobinDistribution;
+import noxy.Server.Transport;
+
+/// Backend selection, one call per new connection or request
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BalancerBench {
+    @Param({ "4" })
+    public int backends;
+
+    private StubBackends stubs;
+    private BalanceStrategy round_robin;
+    private BalanceStrategy least_conn;
+
+    @Setup
+    public void setup() throws Exception {
+        Transport.init("nio");
+        this.stubs       = new StubBackends();
+        this.round_robin = new RoundRobinDistribution(this.stubs.start(this.backends), StubBackends.health());
+        this.least_conn  = new LeastConnDistribution(this.stubs.start(this.backends), StubBackends.health());
+
+        // Round robin starts with no backend until health check saw them
+        while (this.round_robin.active_backends() < this.backends) {
+            Thread.sleep(10);
+        }
+    }
+
+    @TearDown
+    public void teardown() throws Exception {
+        this.stubs.stop();
+    }
+
+    @Benchmark
+    public BackendTracker round_robin_get_backend() {
+        return this.round_robin.get_backend();
+    }
+
+    /// A whole connection: pick a backend then release it, so counts stay stable
+    @Benchmark
+    public BackendTracker least_conn_get_and_finish() {
+        BackendTracker tracker = this.least_conn.get_backend();
+        this.least_conn.connection_finished(tracker);
+        return tracker;
+    }
+}
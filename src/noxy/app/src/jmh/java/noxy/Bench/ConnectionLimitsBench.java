@@ -0,0 +1,36 @@
+package noxy.Bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import noxy.Server.ConnectionLimits;
+
+/// Connection accounting done on every accept and close, shared by all event loops
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ConnectionLimitsBench {
+    private ConnectionLimits limits;
+
+    @Setup
+    public void setup() {
+        ConnectionLimits.global_maxconn         = Long.MAX_VALUE;
+        ConnectionLimits.global_maxconn_counter = new AtomicLong(0);
+        this.limits                             = new ConnectionLimits(Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public boolean new_connection_and_finish() {
+        boolean accepted = this.limits.new_connection();
+        this.limits.connection_finished();
+        return accepted;
+    }
+}
@@ -0,0 +1,84 @@
+package noxy.Bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import noxy.ServerConfig.HttpCondition;
+import noxy.ServerConfig.HttpRouter;
+import noxy.ServerConfig.HttpSettings;
+
+/// Conditions of deployment/complex evaluated for one request
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HttpConditionBench {
+    @Param({ "native", "groovy" })
+    public String engine;
+
+    // Extra host rules in front of the complex ones, like a multi-tenant frontend
+    @Param({ "0", "1000" })
+    public int tenants;
+
+    @Param({ "0", "10000" })
+    public int route_cache;
+
+    private List<HttpCondition> conditions;
+    private HttpRouter router;
+    private HttpRequest request;
+    private EmbeddedChannel channel;
+
+    @Setup
+    public void setup() throws Exception {
+        HttpCondition.init(this.engine);
+        this.conditions = new ArrayList<>();
+        for (int i = 0; i < this.tenants; i++) {
+            this.conditions.add(condition("host == 'tenant"+i+".noxy.rev'", "web_backend", null));
+        }
+        this.conditions.add(condition("scheme == 'http'", null, "sprintf('https://%s%s', host, uri)"));
+        this.conditions.add(condition("host == 'api.noxy.rev'", "api_backend", null));
+
+        this.router  = new HttpRouter(this.conditions, "web_backend", this.route_cache);
+        this.request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/v1/users?page=2");
+        this.request.headers().set("host", "api.noxy.rev:443");
+        this.channel = new EmbeddedChannel();
+    }
+
+    private static HttpCondition condition(String when, String use_backend, String redirect) throws Exception {
+        HttpCondition cond = new HttpCondition();
+        cond.when          = when;
+        cond.use_backend   = use_backend;
+        cond.redirect      = redirect;
+        cond.compile();
+        return cond;
+    }
+
+    /// Every condition in order, like the loop before routing indexes
+    @Benchmark
+    public void evaluate(Blackhole bh) throws Exception {
+        HttpSettings settings = new HttpSettings(this.request, this.channel, "https");
+        for (HttpCondition cond : this.conditions) {
+            bh.consume(cond.evaluate(settings));
+        }
+    }
+
+    @Benchmark
+    public Object route() throws Exception {
+        return this.router.route(new HttpSettings(this.request, this.channel, "https"));
+    }
+}
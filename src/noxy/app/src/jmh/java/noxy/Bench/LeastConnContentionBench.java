@@ -0,0 +1,60 @@
+package noxy.Bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import noxy.Balancer.BackendTracker;
+import noxy.Balancer.BalanceStrategy;
+import noxy.Balancer.LeastConnDistribution;
+import noxy.Balancer.LeastConnP2CDistribution;
+import noxy.Server.Transport;
+
+/// Least connection strategies with every core picking backends at once,
+/// like event loops accepting under load. -t overrides the thread count
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(Threads.MAX)
+public class LeastConnContentionBench {
+    @Param({ "leastconn", "leastconn_p2c" })
+    public String balance;
+
+    @Param({ "4", "32" })
+    public int backends;
+
+    private StubBackends stubs;
+    private BalanceStrategy strategy;
+
+    @Setup
+    public void setup() throws Exception {
+        Transport.init("nio");
+        this.stubs = new StubBackends();
+        if (this.balance.equals("leastconn")) {
+            this.strategy = new LeastConnDistribution(this.stubs.start(this.backends), StubBackends.health());
+        } else {
+            this.strategy = new LeastConnP2CDistribution(this.stubs.start(this.backends), StubBackends.health());
+        }
+    }
+
+    @TearDown
+    public void teardown() throws Exception {
+        this.stubs.stop();
+    }
+
+    @Benchmark
+    public BackendTracker get_and_finish() {
+        BackendTracker tracker = this.strategy.get_backend();
+        this.strategy.connection_finished(tracker);
+        return tracker;
+    }
+}
@@ -0,0 +1,59 @@
+package noxy.Bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import noxy.ServerConfig.HealthCheckConf;
+
+/// Loopback listeners that accept and close connections,
+/// enough for balancers' health checks to see backends up
+public class StubBackends {
+    private List<ServerSocket> sockets = new ArrayList<>();
+
+    public List<Pair<String, InetSocketAddress>> start(int count) throws IOException {
+        List<Pair<String, InetSocketAddress>> backends = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ServerSocket socket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+            this.sockets.add(socket);
+
+            Thread thread = new Thread(() -> {
+                while (!socket.isClosed()) {
+                    try {
+                        // Health check only needs the connect to succeed
+                        socket.accept().close();
+                    } catch (IOException e) {
+                        // Closed
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+
+            backends.add(Pair.of("stub"+i, new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort())));
+        }
+        return backends;
+    }
+
+    /// Connect probes every 100ms, servers are up after the first one
+    public static HealthCheckConf health() {
+        HealthCheckConf health = new HealthCheckConf();
+        health.type            = "connect";
+        health.interval        = 100L;
+        health.timeout         = 1000L;
+        health.rise            = 1;
+        health.fall            = 1;
+        return health;
+    }
+
+    public void stop() throws IOException {
+        for (ServerSocket socket : this.sockets) {
+            socket.close();
+        }
+    }
+}
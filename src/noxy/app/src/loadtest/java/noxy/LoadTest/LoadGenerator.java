@@ -0,0 +1,546 @@
+package noxy.LoadTest;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.codec.http2.Http2StreamFrame;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.concurrent.Future;
+
+/// One way of talking to a frontend
+enum Kind {
+    TCP, HTTP1, H2
+}
+
+/// A frontend port and how to load it
+class Scenario {
+    public String name;
+    public String group; // what --scenarios selects it by
+    public Kind kind;
+    public int port;
+    public SslContext ssl_ctx; // null for cleartext
+    public String host;
+    public String path;
+    public int payload; // bytes sent per tcp request
+    public boolean gzip; // http, ask for compressed responses
+
+    public Scenario(String name, Kind kind, int port, SslContext ssl_ctx, String host, String path, int payload) {
+        this.name    = name;
+        this.group   = name.substring(name.lastIndexOf(' ') + 1);
+        this.kind    = kind;
+        this.port    = port;
+        this.ssl_ctx = ssl_ctx;
+        this.host    = host;
+        this.path    = path;
+        this.payload = payload;
+    }
+}
+
+/// Outcome of one scenario, latencies in nanoseconds
+class LoadResult {
+    public Histogram latency = new Histogram(3);
+    public long errors;
+    public long unfinished; // due during the test but never answered
+    public long duration_ms;
+    public long bytes; // received by clients while measuring, headers and TLS records included
+    public long cpu_ns; // used by the whole process while measuring, noxy, stubs and load generator
+
+    public double throughput() {
+        return (this.latency.getTotalCount() + this.errors) * 1000.0 / this.duration_ms;
+    }
+
+    public double bytes_per_request() {
+        return this.latency.getTotalCount() == 0 ? 0 : (double)this.bytes / this.latency.getTotalCount();
+    }
+
+    /// Cores busy on average
+    public double cpu() {
+        return this.cpu_ns / (this.duration_ms * 1e6);
+    }
+}
+
+/// Open loop load generator
+/// Every connection has a fixed schedule of times requests are due, independent of responses.
+/// Latency is counted from the time a request was due and not from the time it could be sent,
+/// so a stall shows in percentiles instead of quietly slowing the test down (coordinated omission)
+public class LoadGenerator {
+    private Scenario scenario;
+    private int connections;
+    private long rate;
+
+    public LoadGenerator(Scenario scenario, int connections, long rate) {
+        this.scenario    = scenario;
+        this.connections = connections;
+        this.rate        = rate;
+    }
+
+    public LoadResult run(EventLoopGroup group, long warmup_ms, long duration_ms, long drain_ms) throws Exception {
+        long interval      = this.connections * 1000000000L / this.rate;
+        long start         = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measure_from  = start + TimeUnit.MILLISECONDS.toNanos(warmup_ms);
+        long measure_until = measure_from + TimeUnit.MILLISECONDS.toNanos(duration_ms);
+
+        List<LoadConnection> conns = new ArrayList<>();
+        for (int i = 0; i < this.connections; i++) {
+            LoadConnection conn;
+            if (this.scenario.kind == Kind.TCP) {
+                conn = new TcpLoadConnection(this.scenario);
+            } else if (this.scenario.kind == Kind.HTTP1) {
+                conn = new Http1LoadConnection(this.scenario);
+            } else {
+                conn = new H2LoadConnection(this.scenario);
+            }
+            // Spread first requests over one interval so connections don't fire together
+            conn.start(group.next(), start + interval * i / this.connections, interval, measure_from, measure_until);
+            conns.add(conn);
+        }
+
+        sleep_until(measure_from);
+        long cpu_from = cpu_time();
+        sleep_until(measure_until);
+        long cpu_until = cpu_time();
+        sleep_until(measure_until + TimeUnit.MILLISECONDS.toNanos(drain_ms));
+
+        LoadResult result  = new LoadResult();
+        result.duration_ms = duration_ms;
+        result.cpu_ns      = cpu_until - cpu_from;
+        for (LoadConnection conn : conns) {
+            // Read counters from the connection's own loop, it's the only thread writing them
+            conn.loop.submit(() -> {
+                conn.stop();
+                result.latency.add(conn.histogram);
+                result.errors     += conn.errors;
+                result.bytes      += conn.bytes;
+                result.unfinished += conn.issued - conn.histogram.getTotalCount() - conn.errors;
+            }).sync();
+        }
+        return result;
+    }
+
+    private static void sleep_until(long deadline) throws InterruptedException {
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        }
+    }
+
+    /// CPU time of this process, -1 when the JVM can't tell
+    private static long cpu_time() {
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean)ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+        }
+        return -1;
+    }
+}
+
+/// Client connection following a schedule, everything runs on its event loop
+abstract class LoadConnection {
+    protected Scenario scenario;
+    protected EventLoop loop;
+    protected Bootstrap bootstrap;
+    protected Channel channel;
+    protected boolean connecting;
+    protected boolean stopped;
+
+    protected long next_due;
+    protected long interval;
+    protected long measure_from;
+    protected long measure_until;
+
+    public Histogram histogram = new Histogram(3);
+    public long issued;
+    public long errors;
+    public long bytes;
+
+    public LoadConnection(Scenario scenario) {
+        this.scenario = scenario;
+    }
+
+    public void start(EventLoop loop, long first_due, long interval, long measure_from, long measure_until) {
+        this.loop          = loop;
+        this.next_due      = first_due;
+        this.interval      = interval;
+        this.measure_from  = measure_from;
+        this.measure_until = measure_until;
+        this.bootstrap     = new Bootstrap()
+            .group(loop)
+            .channel(NioSocketChannel.class)
+            .option(ChannelOption.TCP_NODELAY, true)
+            .remoteAddress("127.0.0.1", this.scenario.port)
+            .handler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel ch) {
+                    ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+                        @Override
+                        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                            // Bytes as they came on the wire, before TLS and compression are undone
+                            long now = System.nanoTime();
+                            if (msg instanceof ByteBuf && now >= measure_from && now < measure_until) {
+                                bytes += ((ByteBuf)msg).readableBytes();
+                            }
+                            ctx.fireChannelRead(msg);
+                        }
+                    });
+                    if (scenario.ssl_ctx != null) {
+                        ch.pipeline().addLast(scenario.ssl_ctx.newHandler(ch.alloc(), "localhost", scenario.port));
+                    }
+                    init_pipeline(ch);
+                }
+            });
+        loop.execute(this::tick);
+    }
+
+    private void tick() {
+        if (this.stopped) {
+            return;
+        }
+
+        // Catching up with every request that became due, even when the timer fired late
+        long now = System.nanoTime();
+        while (this.next_due <= now && this.next_due < this.measure_until) {
+            if (this.measured(this.next_due)) {
+                this.issued += 1;
+            }
+            this.due(this.next_due);
+            this.next_due += this.interval;
+        }
+        if (this.next_due < this.measure_until) {
+            this.loop.schedule(this::tick, this.next_due - now, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private boolean measured(long due) {
+        return due >= this.measure_from && due < this.measure_until;
+    }
+
+    protected void record(long due, boolean ok) {
+        if (this.stopped || !this.measured(due)) {
+            return;
+        }
+        if (ok) {
+            this.histogram.recordValue(System.nanoTime() - due);
+        } else {
+            this.errors += 1;
+        }
+    }
+
+    /// Open the connection if needed, then call ready, failed is called when it can't be opened
+    protected void connect() {
+        if (this.connecting || this.stopped) {
+            return;
+        }
+        this.connecting = true;
+        this.bootstrap.connect().addListener((ChannelFutureListener) future -> {
+            this.connecting = false;
+            if (!future.isSuccess()) {
+                this.connect_failed();
+                return;
+            }
+            Channel ch   = future.channel();
+            this.channel = ch;
+            ch.closeFuture().addListener(f -> {
+                if (this.channel == ch) {
+                    this.channel = null;
+                    this.closed();
+                }
+            });
+            this.ready();
+        });
+    }
+
+    protected boolean connected() {
+        return this.channel != null && this.channel.isActive();
+    }
+
+    public void stop() {
+        this.stopped = true;
+        if (this.channel != null) {
+            this.channel.close();
+        }
+    }
+
+    protected abstract void init_pipeline(Channel ch);
+
+    /// A request is due now
+    protected abstract void due(long due);
+
+    protected abstract void ready();
+
+    protected abstract void connect_failed();
+
+    protected abstract void closed();
+}
+
+/// One request at a time per connection, the ones due meanwhile wait their turn
+abstract class QueuedLoadConnection extends LoadConnection {
+    private ArrayDeque<Long> waiting = new ArrayDeque<>(); // due times, head is in flight when busy
+    private boolean busy;
+
+    public QueuedLoadConnection(Scenario scenario) {
+        super(scenario);
+    }
+
+    @Override
+    protected void due(long due) {
+        this.waiting.add(due);
+        this.send_next();
+    }
+
+    private void send_next() {
+        if (this.busy || this.waiting.isEmpty() || this.stopped) {
+            return;
+        }
+        if (!this.connected()) {
+            this.connect();
+            return;
+        }
+        this.busy = true;
+        this.send(this.channel);
+    }
+
+    protected void completed(boolean ok) {
+        this.busy = false;
+        this.record(this.waiting.poll(), ok);
+        this.send_next();
+    }
+
+    @Override
+    protected void ready() {
+        this.send_next();
+    }
+
+    @Override
+    protected void connect_failed() {
+        // Request that was waiting for this connection fails, next ones try again a bit later
+        if (!this.waiting.isEmpty()) {
+            this.record(this.waiting.poll(), false);
+        }
+        this.loop.schedule(this::send_next, 10, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected void closed() {
+        if (this.busy) {
+            this.completed(false);
+        } else {
+            this.send_next();
+        }
+    }
+
+    protected abstract void send(Channel ch);
+}
+
+/// Writes payload to an echo backend and waits for all of it back
+class TcpLoadConnection extends QueuedLoadConnection {
+    private ByteBuf payload;
+    private int received;
+
+    public TcpLoadConnection(Scenario scenario) {
+        super(scenario);
+        this.payload = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(new byte[scenario.payload]));
+    }
+
+    @Override
+    protected void init_pipeline(Channel ch) {
+        ch.pipeline().addLast(new SimpleChannelInboundHandler<ByteBuf>() {
+            @Override
+            protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) {
+                received += msg.readableBytes();
+                if (received >= scenario.payload) {
+                    received -= scenario.payload;
+                    completed(true);
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void send(Channel ch) {
+        ch.writeAndFlush(this.payload.duplicate());
+    }
+}
+
+/// HTTP/1.1 keep-alive requests, reconnects when a response closes the connection (redirects do)
+class Http1LoadConnection extends QueuedLoadConnection {
+    public Http1LoadConnection(Scenario scenario) {
+        super(scenario);
+    }
+
+    @Override
+    protected void init_pipeline(Channel ch) {
+        ch.pipeline()
+            .addLast(new HttpClientCodec())
+            .addLast(new HttpObjectAggregator(16 * 1024 * 1024))
+            .addLast(new SimpleChannelInboundHandler<FullHttpResponse>() {
+                @Override
+                protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) {
+                    completed(response.status().code() < 400);
+                }
+            });
+    }
+
+    @Override
+    protected void send(Channel ch) {
+        FullHttpRequest req = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, this.scenario.path);
+        req.headers().set(HttpHeaderNames.HOST, this.scenario.host);
+        if (this.scenario.gzip) {
+            req.headers().set(HttpHeaderNames.ACCEPT_ENCODING, HttpHeaderValues.GZIP);
+        }
+        ch.writeAndFlush(req);
+    }
+}
+
+/// Every request on its own HTTP/2 stream, nothing waits for earlier responses
+class H2LoadConnection extends LoadConnection {
+    private ArrayDeque<Long> waiting = new ArrayDeque<>(); // due while connecting
+
+    public H2LoadConnection(Scenario scenario) {
+        super(scenario);
+    }
+
+    @Override
+    protected void init_pipeline(Channel ch) {
+        ch.pipeline()
+            .addLast(Http2FrameCodecBuilder.forClient().build())
+            .addLast(new Http2MultiplexHandler(new ChannelInitializer<Channel>() {
+                @Override
+                protected void initChannel(Channel stream) {
+                    stream.close();
+                }
+            }));
+    }
+
+    @Override
+    protected void due(long due) {
+        if (!this.connected()) {
+            this.waiting.add(due);
+            this.connect();
+            return;
+        }
+        this.open_stream(due);
+    }
+
+    private void open_stream(long due) {
+        new Http2StreamChannelBootstrap(this.channel)
+            .handler(new H2StreamHandler(this, due))
+            .open()
+            .addListener((Future<Http2StreamChannel> future) -> {
+                if (!future.isSuccess()) {
+                    this.record(due, false);
+                    return;
+                }
+                Http2Headers headers = new DefaultHttp2Headers()
+                    .method(HttpMethod.GET.asciiName())
+                    .scheme(this.scenario.ssl_ctx != null ? "https" : "http")
+                    .authority(this.scenario.host)
+                    .path(this.scenario.path);
+                if (this.scenario.gzip) {
+                    headers.set(HttpHeaderNames.ACCEPT_ENCODING, HttpHeaderValues.GZIP);
+                }
+                future.getNow().writeAndFlush(new DefaultHttp2HeadersFrame(headers, true));
+            });
+    }
+
+    @Override
+    protected void ready() {
+        Long due;
+        while ((due = this.waiting.poll()) != null) {
+            this.open_stream(due);
+        }
+    }
+
+    @Override
+    protected void connect_failed() {
+        Long due;
+        while ((due = this.waiting.poll()) != null) {
+            this.record(due, false);
+        }
+    }
+
+    @Override
+    protected void closed() {
+        // Open streams see their own channel close
+    }
+}
+
+/// Response on one stream
+class H2StreamHandler extends SimpleChannelInboundHandler<Http2StreamFrame> {
+    private H2LoadConnection conn;
+    private long due;
+    private boolean ok;
+    private boolean done;
+
+    public H2StreamHandler(H2LoadConnection conn, long due) {
+        this.conn = conn;
+        this.due  = due;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, Http2StreamFrame frame) {
+        boolean end = false;
+        if (frame instanceof Http2HeadersFrame) {
+            Http2HeadersFrame headers = (Http2HeadersFrame)frame;
+            if (headers.headers().status() != null) {
+                this.ok = HttpResponseStatus.parseLine(headers.headers().status()).code() < 400;
+            }
+            end = headers.isEndStream();
+        } else if (frame instanceof Http2DataFrame) {
+            end = ((Http2DataFrame)frame).isEndStream();
+        }
+
+        if (end) {
+            this.finish(this.ok);
+            ctx.close();
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        this.finish(false);
+        super.channelInactive(ctx);
+    }
+
+    private void finish(boolean ok) {
+        if (!this.done) {
+            this.done = true;
+            this.conn.record(this.due, ok);
+        }
+    }
+}
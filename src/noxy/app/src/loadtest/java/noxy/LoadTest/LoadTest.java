@@ -0,0 +1,350 @@
+package noxy.LoadTest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.Yaml;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import io.netty.handler.ssl.ApplicationProtocolConfig.Protocol;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectedListenerFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectorFailureBehavior;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import noxy.Main;
+
+/// End to end load test over loopback
+/// Runs noxy in process with one of the deployment topologies, its binds moved to free loopback
+/// ports and its backend servers replaced by stubs (echo for tcp mode, HTTP/1.1, h2c or h2 responders),
+/// then loads every frontend port in turn and prints throughput and latency percentiles.
+/// Comparison frontends are added next to the topology's own: every tcp frontend gets a cleartext
+/// buffered and splice relay pair (relay scenarios), and every http frontend a cleartext pair without
+/// conditions, with and without compression (compression scenarios), reporting bytes per response and CPU
+public class LoadTest {
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+
+        options.addRequiredOption("d", "deployment", true, "Deployment directory holding the topologies");
+        options.addOption("t", "topology", true, "Topology to run, simple or complex (default simple)");
+        options.addOption("s", "scenarios", true, "Comma separated scenarios among tcp, http, https, h2, relay, compression (default all)");
+        options.addOption("r", "rate", true, "Requests per second, spread over all connections (default 1000)");
+        options.addOption("c", "connections", true, "Client connections (default 16)");
+        options.addOption(null, "duration", true, "Measured seconds per scenario (default 30)");
+        options.addOption(null, "warmup", true, "Seconds of load before measuring (default 5)");
+        options.addOption(null, "body", true, "Stub response body and tcp payload in bytes (default 1024)");
+        options.addOption(null, "host", true, "Host header sent (default localhost)");
+        options.addOption(null, "path", true, "Path requested (default /)");
+        options.addOption(null, "client-threads", true, "Threads of load generator and of stubs each (default 2)");
+        options.addOption(null, "report", true, "Directory latency distributions are written to");
+        options.addOption("h", "help", false, "Show help");
+
+        CommandLine cmd;
+        try {
+            cmd = new DefaultParser().parse(options, args);
+        } catch (Exception e) {
+            System.err.println("Error parsing arguments: "+e);
+            new HelpFormatter().printHelp("loadtest", options);
+            System.exit(1);
+            return;
+        }
+
+        if (cmd.hasOption("help")) {
+            new HelpFormatter().printHelp("loadtest", options);
+            System.exit(0);
+        }
+
+        String topology       = cmd.getOptionValue("topology", "simple");
+        List<String> kinds    = Arrays.asList(cmd.getOptionValue("scenarios", "tcp,http,https,h2,relay,compression").split(","));
+        long rate             = Long.parseLong(cmd.getOptionValue("rate", "1000"));
+        int connections       = Integer.parseInt(cmd.getOptionValue("connections", "16"));
+        long duration         = Long.parseLong(cmd.getOptionValue("duration", "30")) * 1000;
+        long warmup           = Long.parseLong(cmd.getOptionValue("warmup", "5")) * 1000;
+        int body              = Integer.parseInt(cmd.getOptionValue("body", "1024"));
+        String host           = cmd.getOptionValue("host", "localhost");
+        String path           = cmd.getOptionValue("path", "/");
+        int client_threads    = Integer.parseInt(cmd.getOptionValue("client-threads", "2"));
+
+        StubBackends stubs = new StubBackends(client_threads, body);
+        LoadTest test      = new LoadTest(new File(cmd.getOptionValue("deployment"), topology), topology, connections);
+        File config        = test.rewrite(stubs, host, path, body);
+
+        // noxy blocks its calling thread for as long as it runs
+        Thread noxy = new Thread(() -> Main.main(new String[] { "-c", config.getPath() }), "noxy");
+        noxy.setDaemon(true);
+        noxy.start();
+        test.wait_listening();
+
+        System.out.println("Topology "+topology+", "+rate+" req/s over "+connections+" connections, "
+            +body+" bytes, "+warmup / 1000+"s warmup, "+duration / 1000+"s measured");
+        if (kinds.contains("relay") && !Epoll.isAvailable()) {
+            System.out.println("No epoll transport here, splice relay scenarios fall back to the buffered relay");
+        }
+
+        EventLoopGroup group = new NioEventLoopGroup(client_threads);
+        for (Scenario scenario : test.scenarios) {
+            if (!kinds.contains(scenario.group)) {
+                continue;
+            }
+            LoadResult result = new LoadGenerator(scenario, connections, rate).run(group, warmup, duration, 2000);
+            print(scenario, result);
+
+            if (cmd.hasOption("report")) {
+                File dir = new File(cmd.getOptionValue("report"));
+                dir.mkdirs();
+                File hgrm = new File(dir, topology+"-"+scenario.name.replace(' ', '-')+".hgrm");
+                try (PrintStream out = new PrintStream(hgrm)) {
+                    // Values in milliseconds
+                    result.latency.outputPercentileDistribution(out, 1000000.0);
+                }
+            }
+        }
+
+        group.shutdownGracefully();
+        stubs.stop();
+        System.exit(0);
+    }
+
+    private static void print(Scenario scenario, LoadResult result) {
+        System.out.println(String.format("%-32s %10.1f req/s  errors %6d  unfinished %6d  p50 %8.3f ms  p99 %8.3f ms  p99.9 %8.3f ms  max %8.3f ms"
+            +"  %9.1f B/resp  cpu %5.2f cores",
+            scenario.name, result.throughput(), result.errors, result.unfinished,
+            result.latency.getValueAtPercentile(50) / 1e6, result.latency.getValueAtPercentile(99) / 1e6,
+            result.latency.getValueAtPercentile(99.9) / 1e6, result.latency.getMaxValue() / 1e6,
+            result.bytes_per_request(), result.cpu()));
+    }
+
+    private File dir;
+    private String topology;
+    private int connections;
+    private List<Scenario> scenarios = new ArrayList<>();
+
+    public LoadTest(File dir, String topology, int connections) {
+        this.dir         = dir;
+        this.topology    = topology;
+        this.connections = connections;
+    }
+
+    /// Writes the topology's config with loopback binds and stub backends, returns the new file
+    @SuppressWarnings("unchecked")
+    public File rewrite(StubBackends stubs, String host, String path, int body) throws Exception {
+        Map<String, Object> conf;
+        try (InputStream in = new FileInputStream(new File(this.dir, this.topology+".yaml"))) {
+            conf = new Yaml().load(in);
+        }
+        File certs = new File(this.dir, "ssl_cert");
+
+        Map<String, Object> global   = (Map<String, Object>)conf.computeIfAbsent("global", k -> new HashMap<>());
+        Map<String, Object> defaults = (Map<String, Object>)conf.computeIfAbsent("defaults", k -> new HashMap<>());
+
+        // Stubs never go down, checking often only gets them in rotation sooner
+        global.put("health_check", 200);
+        // Topology limits are sized for its real clients, not for the load generator
+        long maxconn = this.connections + 16;
+        raise(global, "maxconn", maxconn);
+        raise(defaults, "maxconn", maxconn);
+
+        String default_mode              = (String)defaults.getOrDefault("mode", "tcp");
+        Map<String, String> backend_mode = new HashMap<>();
+
+        List<Map<String, Object>> frontends = (List<Map<String, Object>>)conf.get("frontend");
+        List<Map<String, Object>> twins     = new ArrayList<>();
+        for (Map<String, Object> frontend : frontends) {
+            String mode = (String)frontend.getOrDefault("mode", default_mode);
+            String name = (String)frontend.get("name");
+            if (mode.equals("tcp")) {
+                twins.add(this.twin(frontend, name+"_buffered", "relay", "buffered", Kind.TCP, host, path, body));
+                twins.add(this.twin(frontend, name+"_splice", "relay", "splice", Kind.TCP, host, path, body));
+            } else {
+                Map<String, Object> off = this.twin(frontend, name+"_identity", "compression", "off", Kind.HTTP1, host, path, body);
+                Map<String, Object> on  = this.twin(frontend, name+"_gzip", "compression", "gzip", Kind.HTTP1, host, path, body);
+                Map<String, Object> compression = new HashMap<>();
+                compression.put("types", Arrays.asList("text/"));
+                compression.put("min_length", 0);
+                on.put("compression", compression);
+                this.scenarios.get(this.scenarios.size() - 1).gzip = true;
+                twins.add(off);
+                twins.add(on);
+            }
+        }
+        frontends.addAll(twins);
+
+        for (Map<String, Object> frontend : frontends) {
+            raise(frontend, "maxconn", maxconn);
+            String mode = (String)frontend.getOrDefault("mode", default_mode);
+            String name = (String)frontend.get("name");
+
+            backend_mode.put((String)frontend.get("use_backend"), mode);
+            if (frontend.get("http_condition") != null) {
+                for (Map<String, Object> cond : (List<Map<String, Object>>)frontend.get("http_condition")) {
+                    if (cond.get("use_backend") != null) {
+                        backend_mode.put((String)cond.get("use_backend"), mode);
+                    }
+                }
+            }
+
+            if (frontend.containsKey("twin")) {
+                // Comparison frontend, bind and scenario are set already
+                frontend.remove("twin");
+                continue;
+            }
+
+            for (Map<String, Object> bind : (List<Map<String, Object>>)frontend.get("bind")) {
+                int port = free_port();
+                bind.put("addr_port", "127.0.0.1:"+port);
+
+                Map<String, Object> ssl = (Map<String, Object>)bind.get("ssl");
+                if (ssl != null) {
+                    // Certificates are mounted in /app by docker compose, they live in ssl_cert here
+                    for (String key : new String[] { "cert", "key", "ca" }) {
+                        if (ssl.get(key) instanceof String) {
+                            ssl.put(key, new File(certs, new File((String)ssl.get(key)).getName()).getPath());
+                        }
+                    }
+                }
+
+                if (mode.equals("tcp")) {
+                    this.scenarios.add(new Scenario(name+" tcp", Kind.TCP, port,
+                        ssl == null ? null : client_ssl(ssl, certs, null), host, path, body));
+                } else if (ssl == null) {
+                    this.scenarios.add(new Scenario(name+" http", Kind.HTTP1, port, null, host, path, body));
+                } else {
+                    this.scenarios.add(new Scenario(name+" https", Kind.HTTP1, port,
+                        client_ssl(ssl, certs, ApplicationProtocolNames.HTTP_1_1), host, path, body));
+                    List<String> alpn = (List<String>)ssl.get("alpn");
+                    if (alpn != null && alpn.contains(ApplicationProtocolNames.HTTP_2)) {
+                        this.scenarios.add(new Scenario(name+" h2", Kind.H2, port,
+                            client_ssl(ssl, certs, ApplicationProtocolNames.HTTP_2), host, path, body));
+                    }
+                }
+            }
+        }
+
+        for (Map<String, Object> backend : (List<Map<String, Object>>)conf.get("backend")) {
+            String mode     = backend_mode.getOrDefault((String)backend.get("name"), default_mode);
+            String protocol = (String)backend.getOrDefault("protocol", "http1");
+
+            for (Map<String, Object> server : (List<Map<String, Object>>)backend.get("servers")) {
+                int port;
+                if (mode.equals("tcp")) {
+                    port = stubs.echo();
+                } else if (protocol.equals("http1")) {
+                    port = stubs.http1();
+                } else {
+                    port = stubs.http2(protocol.equals("h2"));
+                }
+                server.put("addr_port", "127.0.0.1:"+port);
+            }
+            if (protocol.equals("h2")) {
+                backend.put("ca", stubs.h2_ca());
+            }
+        }
+
+        DumperOptions dump = new DumperOptions();
+        dump.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
+        File config = File.createTempFile("noxy-"+this.topology+"-", ".yaml");
+        config.deleteOnExit();
+        try (FileWriter out = new FileWriter(config)) {
+            new Yaml(dump).dump(conf, out);
+        }
+        return config;
+    }
+
+    /// Copy of frontend with a single cleartext bind and its scenario, group is what's compared.
+    /// Conditions, cache and compression are left out so only that differs
+    private Map<String, Object> twin(Map<String, Object> frontend, String name, String group, String variant,
+            Kind kind, String host, String path, int body) throws Exception {
+        Map<String, Object> twin = new HashMap<>(frontend);
+        int port                 = free_port();
+        Map<String, Object> bind = new HashMap<>();
+        bind.put("addr_port", "127.0.0.1:"+port);
+
+        twin.put("name", name);
+        twin.put("bind", new ArrayList<>(Arrays.asList(bind)));
+        twin.put("twin", true);
+        twin.remove("http_condition");
+        twin.remove("cache");
+        twin.remove("compression");
+        if (group.equals("relay")) {
+            twin.put("relay", variant);
+        }
+
+        Scenario scenario = new Scenario(frontend.get("name")+" "+group+" "+variant, kind, port, null, host, path, body);
+        scenario.group    = group;
+        this.scenarios.add(scenario);
+        return twin;
+    }
+
+    /// Blocks until every frontend port accepts connections and backends passed a health check
+    public void wait_listening() throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        for (Scenario scenario : this.scenarios) {
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), scenario.port), 100);
+                    break;
+                } catch (Exception e) {
+                    if (System.currentTimeMillis() > deadline) {
+                        throw new IllegalStateException("noxy is not listening on "+scenario.port, e);
+                    }
+                    Thread.sleep(50);
+                }
+            }
+        }
+        Thread.sleep(500);
+    }
+
+    private static SslContext client_ssl(Map<String, Object> ssl, File certs, String alpn) throws Exception {
+        // Topology certificates are self signed, trusting them is not what's measured
+        SslContextBuilder builder = SslContextBuilder.forClient()
+            .trustManager(InsecureTrustManagerFactory.INSTANCE);
+        if (ssl.get("ca") != null) {
+            // Frontend authenticates clients
+            builder.keyManager(new File(certs, "client-cert.pem"), new File(certs, "client-key.pem"));
+        }
+        if (alpn != null) {
+            builder.applicationProtocolConfig(new ApplicationProtocolConfig(Protocol.ALPN,
+                SelectorFailureBehavior.NO_ADVERTISE, SelectedListenerFailureBehavior.ACCEPT, alpn));
+            if (alpn.equals(ApplicationProtocolNames.HTTP_2)) {
+                builder.ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE);
+            }
+        }
+        return builder.build();
+    }
+
+    private static void raise(Map<String, Object> conf, String key, long min) {
+        Object val = conf.get(key);
+        if (!(val instanceof Number) || ((Number)val).longValue() < min) {
+            conf.put(key, min);
+        }
+    }
+
+    private static int free_port() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+}
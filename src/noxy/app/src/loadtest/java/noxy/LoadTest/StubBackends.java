@@ -0,0 +1,180 @@
+package noxy.LoadTest;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.codec.http2.Http2StreamFrame;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import io.netty.handler.ssl.ApplicationProtocolConfig.Protocol;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectedListenerFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectorFailureBehavior;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+
+/// In process servers standing in for the backends of a topology,
+/// all on their own event loops so they don't share threads with noxy
+public class StubBackends {
+    private EventLoopGroup group;
+    private byte[] body;
+    private SelfSignedCertificate h2_cert; // shared by all h2 stubs, noxy trusts it through backend ca
+
+    public StubBackends(int threads, int body_size) {
+        this.group = new NioEventLoopGroup(threads);
+        this.body  = new byte[body_size];
+        for (int i = 0; i < body_size; i++) {
+            this.body[i] = (byte)('a' + i % 26);
+        }
+    }
+
+    /// Sends back every byte it receives, for tcp mode frontends
+    public int echo() throws Exception {
+        return this.listen(new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                ctx.writeAndFlush(msg);
+            }
+
+            @Override
+            public boolean isSharable() {
+                return true;
+            }
+        });
+    }
+
+    /// Answers every HTTP/1.1 request with body, keeping connections alive
+    public int http1() throws Exception {
+        return this.listen(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) {
+                ch.pipeline()
+                    .addLast(new HttpServerCodec())
+                    .addLast(new HttpObjectAggregator(1024 * 1024))
+                    .addLast(new SimpleChannelInboundHandler<FullHttpRequest>() {
+                        @Override
+                        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest req) {
+                            FullHttpResponse response = new DefaultFullHttpResponse(req.protocolVersion(),
+                                HttpResponseStatus.OK, Unpooled.wrappedBuffer(body));
+                            response.headers()
+                                .set(HttpHeaderNames.CONTENT_TYPE, "text/plain")
+                                .setInt(HttpHeaderNames.CONTENT_LENGTH, body.length);
+                            HttpUtil.setKeepAlive(response, HttpUtil.isKeepAlive(req));
+                            ctx.writeAndFlush(response);
+                        }
+                    });
+            }
+        });
+    }
+
+    /// Answers every HTTP/2 stream with body, over TLS (h2) when tls is set, cleartext prior knowledge (h2c) otherwise
+    public int http2(boolean tls) throws Exception {
+        SslContext ssl_ctx = null;
+        if (tls) {
+            if (this.h2_cert == null) {
+                this.h2_cert = new SelfSignedCertificate("localhost");
+            }
+            ssl_ctx = SslContextBuilder.forServer(this.h2_cert.certificate(), this.h2_cert.privateKey())
+                .ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+                .applicationProtocolConfig(new ApplicationProtocolConfig(Protocol.ALPN,
+                    SelectorFailureBehavior.NO_ADVERTISE, SelectedListenerFailureBehavior.ACCEPT,
+                    ApplicationProtocolNames.HTTP_2))
+                .build();
+        }
+
+        final SslContext ssl = ssl_ctx;
+        return this.listen(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) {
+                if (ssl != null) {
+                    ch.pipeline().addLast(ssl.newHandler(ch.alloc()));
+                }
+                ch.pipeline()
+                    .addLast(Http2FrameCodecBuilder.forServer().build())
+                    .addLast(new Http2MultiplexHandler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel stream) {
+                            stream.pipeline().addLast(new H2StubHandler(body));
+                        }
+                    }));
+            }
+        });
+    }
+
+    /// PEM certificate h2 stubs use, null until one was started with tls
+    public String h2_ca() {
+        return this.h2_cert == null ? null : this.h2_cert.certificate().getAbsolutePath();
+    }
+
+    private int listen(ChannelHandler handler) throws Exception {
+        Channel ch = new ServerBootstrap()
+            .group(this.group)
+            .channel(NioServerSocketChannel.class)
+            .childHandler(handler)
+            .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+            .sync()
+            .channel();
+        return ((InetSocketAddress)ch.localAddress()).getPort();
+    }
+
+    public void stop() {
+        this.group.shutdownGracefully();
+    }
+}
+
+/// One HTTP/2 stream, replies once the request is complete
+class H2StubHandler extends SimpleChannelInboundHandler<Http2StreamFrame> {
+    private byte[] body;
+
+    public H2StubHandler(byte[] body) {
+        this.body = body;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, Http2StreamFrame frame) {
+        boolean end = (frame instanceof Http2HeadersFrame && ((Http2HeadersFrame)frame).isEndStream())
+            || (frame instanceof Http2DataFrame && ((Http2DataFrame)frame).isEndStream());
+        if (!end) {
+            return;
+        }
+
+        Http2Headers headers = new DefaultHttp2Headers()
+            .status(HttpResponseStatus.OK.codeAsText())
+            .set(HttpHeaderNames.CONTENT_TYPE, "text/plain")
+            .setInt(HttpHeaderNames.CONTENT_LENGTH, this.body.length);
+        ByteBuf data = Unpooled.wrappedBuffer(this.body);
+        ctx.write(new DefaultHttp2HeadersFrame(headers, false));
+        ctx.writeAndFlush(new DefaultHttp2DataFrame(data, true));
+    }
+}
@@ -0,0 +1,163 @@
+package noxy.Balancer;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.logging.log4j.Logger;
+
+import noxy.ServerConfig.HealthCheckConf;
+
+class Backend {
+    public InetSocketAddress addr_port;
+    public String name;
+
+    public Backend(InetSocketAddress addr_port, String name) {
+        this.addr_port = addr_port;
+        this.name      = name;
+    }
+}
+
+/// Healthy backends, replaced as a whole
+class ActiveSnapshot {
+    public final int[] active;
+
+    public ActiveSnapshot(int[] active) {
+        this.active = active;
+    }
+}
+
+/// Backends of a balancer, which ones are healthy and how many connections each has
+/// Healthy ones are an immutable snapshot replaced by the health check, built by the
+/// balancer so it can carry what it picks from (a hash ring, a weighted sequence).
+/// Connection counts live on their own cache lines, so selection never locks nor retries
+/// and event loops only meet on the counters of the backends they actually pick
+class BackendSet<T extends ActiveSnapshot> {
+    // Longs between two counters, 128 bytes keeps them apart with adjacent line prefetch too
+    static final int PAD = 16;
+
+    /// What picking a backend costs, cheapest of two is picked
+    interface Cost {
+        double of(int ind, long now);
+    }
+
+    public List<Backend> list;
+
+    private AtomicReference<T> healthy;
+    private AtomicLongArray conns;
+    private BiFunction<int[], List<Backend>, T> snapshot;
+    private Logger logger;
+
+    /// Every backend is healthy until told otherwise
+    public BackendSet(List<Pair<String, InetSocketAddress>> backends, BiFunction<int[], List<Backend>, T> snapshot,
+            Logger logger) {
+        this(backends, true, snapshot, logger);
+    }
+
+    /// Backends start healthy when up is set, otherwise they wait for the health check to see them up
+    public BackendSet(List<Pair<String, InetSocketAddress>> backends, boolean up,
+            BiFunction<int[], List<Backend>, T> snapshot, Logger logger) {
+        this.list     = new ArrayList<>();
+        this.snapshot = snapshot;
+        this.logger   = logger;
+        int[] active  = new int[up ? backends.size() : 0];
+        for (int i = 0; i < backends.size(); i++) {
+            this.list.add(new Backend(backends.get(i).getRight(), backends.get(i).getLeft()));
+            if (up) {
+                active[i] = i;
+            }
+        }
+        this.healthy = new AtomicReference<>(snapshot.apply(active, this.list));
+        // Slot 0 is left out, it shares its line with the array header
+        this.conns   = new AtomicLongArray((backends.size() + 1) * PAD);
+    }
+
+    /// Health check tells which backends are up from now on
+    public void watch(HealthCheckConf health) {
+        for (int i = 0; i < this.list.size(); i++) {
+            HealthCheck.watch(this.list.get(i).addr_port, i, health, this::up, this::down);
+        }
+    }
+
+    public void up(int ind) {
+        T prev = this.healthy.getAndUpdate(h -> contains(h.active, ind) ? h
+            : this.snapshot.apply(with(h.active, ind), this.list));
+        if (!contains(prev.active, ind)) {
+            this.logger.info("Backend ["+this.list.get(ind).name+":"+this.list.get(ind).addr_port+"] is now up");
+        }
+    }
+
+    public void down(int ind) {
+        T prev = this.healthy.getAndUpdate(h -> !contains(h.active, ind) ? h
+            : this.snapshot.apply(without(h.active, ind), this.list));
+        if (contains(prev.active, ind)) {
+            this.logger.warn("Backend ["+this.list.get(ind).name+":"+this.list.get(ind).addr_port+"] is now down");
+        }
+    }
+
+    public T healthy() {
+        return this.healthy.get();
+    }
+
+    public boolean is_up(int ind) {
+        return contains(this.healthy.get().active, ind);
+    }
+
+    public long conns(int ind) {
+        return this.conns.get(slot(ind));
+    }
+
+    /// One more connection to backend ind
+    public BackendTracker acquire(int ind) {
+        this.conns.incrementAndGet(slot(ind));
+        return new BackendTracker(this.list.get(ind).addr_port, ind);
+    }
+
+    public void release(int ind) {
+        this.conns.decrementAndGet(slot(ind));
+    }
+
+    /// Cheapest of two distinct random backends of active, first one on a tie
+    public int pick_two(int[] active, long now, Cost cost) {
+        if (active.length == 1) {
+            return active[0];
+        }
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        int first             = rnd.nextInt(active.length);
+        int second            = rnd.nextInt(active.length - 1);
+        if (second >= first) {
+            // Two distinct backends
+            second += 1;
+        }
+        return cost.of(active[second], now) < cost.of(active[first], now) ? active[second] : active[first];
+    }
+
+    private static int slot(int ind) {
+        return (ind + 1) * PAD;
+    }
+
+    static boolean contains(int[] list, int ind) {
+        for (int i : list) {
+            if (i == ind) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static int[] with(int[] list, int ind) {
+        int[] res = Arrays.copyOf(list, list.length + 1);
+        res[list.length] = ind;
+        return res;
+    }
+
+    static int[] without(int[] list, int ind) {
+        return Arrays.stream(list).filter(i -> i != ind).toArray();
+    }
+}
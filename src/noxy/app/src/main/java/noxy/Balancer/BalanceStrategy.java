@@ -4,9 +4,23 @@ public interface BalanceStrategy {
     /// Ask for next backend
     BackendTracker get_backend();
 
+    /// Ask for next backend for a request or connection, key is what the backend's
+    /// hash_key points to (client ip in tcp mode). Only hash balancing uses it
+    default BackendTracker get_backend(String key) {
+        return this.get_backend();
+    }
+
+    /// Server answered after nanos, a connect time or a time to first byte.
+    /// Only latency aware balancing uses it
+    default void latency(BackendTracker tracker, long nanos) {
+    }
+
     /// Connection is closed
     void connection_finished(BackendTracker tracker);
 
     /// Number of active backends
     int active_backends();
+
+    /// Server id passed its last health check
+    boolean is_up(int id);
 }
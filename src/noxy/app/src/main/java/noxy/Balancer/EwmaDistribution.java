@@ -0,0 +1,104 @@
+package noxy.Balancer;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import noxy.ServerConfig.HealthCheckConf;
+
+/// Peak EWMA latency of one backend
+/// A sample above the average replaces it at once, lower ones are blended in with a weight
+/// depending on time since the last sample, so a server getting slow is noticed on its first
+/// slow answer and has to stay fast for a while to win its traffic back
+class EwmaScore {
+    private volatile double ewma; // nanos, 0 until first sample
+    private volatile long stamp;
+
+    public synchronized void observe(long nanos, long now) {
+        double prev = this.ewma;
+        if (prev == 0 || nanos > prev) {
+            this.ewma = nanos;
+        } else {
+            double w  = Math.exp(-(double)(now - this.stamp) / EwmaDistribution.DECAY);
+            this.ewma = prev * w + nanos * (1 - w);
+        }
+        this.stamp = now;
+    }
+
+    /// Latency decayed toward 0 since last sample, an idle server slowly
+    /// looks fast again and gets a chance to prove it
+    public double get(long now) {
+        double ewma = this.ewma;
+        if (ewma == 0) {
+            return 0;
+        }
+        return ewma * Math.exp(-(double)(now - this.stamp) / EwmaDistribution.DECAY);
+    }
+}
+
+/// Latency aware Balancer
+/// Every backend has a peak EWMA of its connect time and time to first byte, two random
+/// healthy backends are compared on latency times outstanding requests and the cheapest wins.
+/// A degraded server gets less and less traffic while it still passes health checks
+public class EwmaDistribution implements BalanceStrategy {
+    static Logger logger = LogManager.getLogger(EwmaDistribution.class);
+
+    // Samples older than 10 seconds barely count anymore
+    static final double DECAY = 10_000_000_000.0;
+
+    private BackendSet<ActiveSnapshot> backends;
+    private BackendSet.Cost cost;
+    private EwmaScore[] scores;
+
+    public EwmaDistribution(List<Pair<String, InetSocketAddress>> backends, HealthCheckConf health) {
+        this(backends);
+        this.backends.watch(health);
+    }
+
+    /// All backends up until told otherwise, nothing probes them
+    EwmaDistribution(List<Pair<String, InetSocketAddress>> backends) {
+        this.backends = new BackendSet<>(backends, (active, list) -> new ActiveSnapshot(active), logger);
+        this.cost     = this::cost;
+        this.scores   = new EwmaScore[backends.size()];
+        for (int i = 0; i < backends.size(); i++) {
+            this.scores[i] = new EwmaScore();
+        }
+    }
+
+    public BackendTracker get_backend() {
+        int[] active = this.backends.healthy().active;
+        if (active.length == 0) {
+            return null;
+        }
+        return this.backends.acquire(this.backends.pick_two(active, System.nanoTime(), this.cost));
+    }
+
+    private double cost(int ind, long now) {
+        double latency = this.scores[ind].get(now);
+        long pending   = this.backends.conns(ind);
+        if (latency == 0) {
+            // Never measured, worth trying while idle but not to pile requests on
+            return pending == 0 ? 0 : Double.MAX_VALUE / 2;
+        }
+        return latency * (pending + 1);
+    }
+
+    public void connection_finished(BackendTracker tracker) {
+        this.backends.release(tracker.id);
+    }
+
+    public void latency(BackendTracker tracker, long nanos) {
+        this.scores[tracker.id].observe(nanos, System.nanoTime());
+    }
+
+    public int active_backends() {
+        return this.backends.healthy().active.length;
+    }
+
+    public boolean is_up(int id) {
+        return this.backends.is_up(id);
+    }
+}
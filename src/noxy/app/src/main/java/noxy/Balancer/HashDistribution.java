@@ -0,0 +1,149 @@
+package noxy.Balancer;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import noxy.ServerConfig.HealthCheckConf;
+
+/// Hash ring of healthy backends, replaced as a whole
+class HashRing extends ActiveSnapshot {
+    public final long[] points; // sorted virtual node hashes
+    public final int[] owners; // backend of each point
+
+    public HashRing(int[] active, List<Backend> backends) {
+        super(active);
+
+        long[][] nodes = new long[active.length * HashDistribution.VNODES][];
+        int n          = 0;
+        for (int ind : active) {
+            // Points only depend on the backend itself, so a backend going away
+            // only moves keys that landed on its own points
+            String id = backends.get(ind).addr_port.toString();
+            for (int v = 0; v < HashDistribution.VNODES; v++) {
+                nodes[n++] = new long[] { HashDistribution.hash(id+"#"+v), ind };
+            }
+        }
+        Arrays.sort(nodes, (a, b) -> Long.compare(a[0], b[0]));
+
+        this.points = new long[n];
+        this.owners = new int[n];
+        for (int i = 0; i < n; i++) {
+            this.points[i] = nodes[i][0];
+            this.owners[i] = (int)nodes[i][1];
+        }
+    }
+}
+
+/// Consistent hash Balancer with bounded loads
+/// A key (client ip, header, cookie, uri) always goes to the same backend while it's healthy,
+/// a backend going down or up only moves its own share of keys. No backend takes more than
+/// load_factor times the average connection count: a hot key spills over to the next
+/// backends on the ring instead of overloading its own
+public class HashDistribution implements BalanceStrategy {
+    static Logger logger = LogManager.getLogger(HashDistribution.class);
+
+    static final int VNODES = 160;
+
+    private BackendSet<HashRing> backends;
+    private AtomicLong total;
+    private double load_factor;
+
+    public HashDistribution(List<Pair<String, InetSocketAddress>> backends, double load_factor, HealthCheckConf health) {
+        this(backends, load_factor);
+        this.backends.watch(health);
+    }
+
+    /// All backends up until told otherwise, nothing probes them
+    HashDistribution(List<Pair<String, InetSocketAddress>> backends, double load_factor) {
+        this.backends    = new BackendSet<>(backends, HashRing::new, logger);
+        this.total       = new AtomicLong(0);
+        this.load_factor = load_factor;
+    }
+
+    void on_backend_up(int ind) {
+        this.backends.up(ind);
+    }
+
+    void on_backend_down(int ind) {
+        this.backends.down(ind);
+    }
+
+    /// Without a key connections are spread at random, still within load bounds
+    public BackendTracker get_backend() {
+        return this.pick(ThreadLocalRandom.current().nextLong());
+    }
+
+    public BackendTracker get_backend(String key) {
+        return this.pick(hash(key));
+    }
+
+    private BackendTracker pick(long hash) {
+        HashRing ring = this.backends.healthy();
+        int size      = ring.points.length;
+        if (size == 0) {
+            return null;
+        }
+
+        // Capacity per backend, at least one so there is always room for this connection
+        long cap = (long)Math.ceil(this.load_factor * (this.total.get() + 1) / ring.active.length);
+
+        int start = Arrays.binarySearch(ring.points, hash);
+        if (start < 0) {
+            start = -start - 1;
+        }
+
+        // First backend clockwise from key with room left, a backend's other
+        // points are skipped quickly since its load is read again
+        int ind = -1;
+        for (int i = 0; i < size; i++) {
+            int owner = ring.owners[(start + i) % size];
+            if (this.backends.conns(owner) < cap) {
+                ind = owner;
+                break;
+            }
+        }
+        if (ind == -1) {
+            // Loads moved under us, owner of key then
+            ind = ring.owners[start % size];
+        }
+
+        this.total.incrementAndGet();
+        return this.backends.acquire(ind);
+    }
+
+    public void connection_finished(BackendTracker tracker) {
+        this.backends.release(tracker.id);
+        this.total.decrementAndGet();
+    }
+
+    public int active_backends() {
+        return this.backends.healthy().active.length;
+    }
+
+    public boolean is_up(int id) {
+        return this.backends.is_up(id);
+    }
+
+    /// 64 bits FNV-1a with murmur3 finalizer, spreads short similar keys over the ring
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
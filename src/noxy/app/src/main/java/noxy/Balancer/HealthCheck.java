@@ -1,41 +1,298 @@
 package noxy.Balancer;
 
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.function.IntConsumer;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.EventLoop;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import noxy.Server.Transport;
+import noxy.ServerConfig.HealthCheckConf;
+
+/// Balancer told about one of its servers
+class HealthListener {
+    public int ind;
+    public IntConsumer up;
+    public IntConsumer down;
+
+    public HealthListener(int ind, IntConsumer up, IntConsumer down) {
+        this.ind  = ind;
+        this.up   = up;
+        this.down = down;
+    }
+}
+
+/// One server probed with one probe, shared by every balancer using it
+class HealthTarget {
+    public InetSocketAddress addr_port;
+    public HealthCheckConf conf;
+    public ArrayList<HealthListener> listeners;
+
+    // Strictest of the balancers sharing the target
+    public long interval;
+    public int rise;
+    public int fall;
+
+    public Boolean up; // null until first probe
+    public int streak; // probes in a row disagreeing with up
 
+    public HealthTarget(InetSocketAddress addr_port, HealthCheckConf conf) {
+        this.addr_port = addr_port;
+        this.conf      = conf;
+        this.listeners = new ArrayList<>();
+        this.interval  = conf.interval;
+        this.rise      = conf.rise;
+        this.fall      = conf.fall;
+        this.up        = null;
+        this.streak    = 0;
+    }
+}
+
+/// Health checks of all backends
+/// Every probe runs on one event loop, a server probed the same way by several backends
+/// is probed once, at the shortest of their intervals. First probe decides a server's state,
+/// after that it takes rise successes or fall failures in a row to change it, the largest
+/// rise and smallest fall of the backends sharing it
 public class HealthCheck {
-    static EventLoopGroup group = new NioEventLoopGroup();
-
-    static public void check(InetSocketAddress addr_port, int ind, IntConsumer is_up, IntConsumer is_down) {
-        Bootstrap b = new Bootstrap();
-        b.group(group) // use the same EventLoop
-            .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 5000)
-            .option(ChannelOption.AUTO_READ, false)
-            .channel(NioSocketChannel.class)
+    static Logger logger = LogManager.getLogger(HealthCheck.class);
+
+    static EventLoop loop = Transport.event_loop_group(1).next();
+
+    // Only touched from loop
+    static HashMap<String, HealthTarget> targets = new HashMap<>();
+
+    /// Probe server as conf says, is_up or is_down gets ind after every probe
+    static public void watch(InetSocketAddress addr_port, int ind, HealthCheckConf conf, IntConsumer is_up, IntConsumer is_down) {
+        HealthListener listener = new HealthListener(ind, is_up, is_down);
+        loop.execute(() -> {
+            String key          = addr_port+"|"+conf.key();
+            HealthTarget target = targets.get(key);
+            if (target != null) {
+                target.interval = Math.min(target.interval, conf.interval);
+                target.rise     = Math.max(target.rise, conf.rise);
+                target.fall     = Math.min(target.fall, conf.fall);
+                target.listeners.add(listener);
+                if (target.up != null) {
+                    notify(target, listener);
+                }
+                return;
+            }
+
+            target = new HealthTarget(addr_port, conf);
+            target.listeners.add(listener);
+            targets.put(key, target);
+            probe(target);
+        });
+    }
+
+    private static void notify(HealthTarget target, HealthListener listener) {
+        if (target.up) {
+            listener.up.accept(listener.ind);
+        } else {
+            listener.down.accept(listener.ind);
+        }
+    }
+
+    private static void probe(HealthTarget target) {
+        Promise<Boolean> result = loop.newPromise();
+        result.addListener(future -> {
+            done(target, result.getNow());
+        });
+
+        HealthCheckConf conf = target.conf;
+        Bootstrap b          = new Bootstrap();
+        b.group(loop)
+            .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, conf.timeout.intValue())
+            .channel(Transport.socket_channel())
             .handler(new ChannelInitializer<SocketChannel>() {
                 @Override
                 public void initChannel(SocketChannel ch) throws Exception {
+                    if (conf.type.equals("http")) {
+                        ch.pipeline()
+                            .addLast(new HttpClientCodec())
+                            .addLast(new HttpProbeHandler(target.addr_port, conf, result));
+                    } else if (conf.type.equals("send_expect")) {
+                        ch.pipeline().addLast(new SendExpectProbeHandler(conf, result));
+                    }
                 }
             });
-        
-        ChannelFuture f    = b.connect(addr_port);
+
+        ChannelFuture f = b.connect(target.addr_port);
+        Channel ch      = f.channel();
+
+        ScheduledFuture<?> timeout = loop.schedule(() -> {
+            result.trySuccess(false);
+        }, conf.timeout, TimeUnit.MILLISECONDS);
+        result.addListener(future -> {
+            timeout.cancel(false);
+            ch.close();
+        });
 
         f.addListener((ChannelFutureListener) future -> {
-            if (future.isSuccess()) {
-                is_up.accept(ind);
+            if (!future.isSuccess()) {
+                result.trySuccess(false);
+            } else if (conf.type.equals("connect")) {
+                result.trySuccess(true);
+            }
+        });
+    }
+
+    private static void done(HealthTarget target, boolean ok) {
+        if (target.up == null || ok == target.up) {
+            target.up     = ok;
+            target.streak = 0;
+        } else {
+            target.streak += 1;
+            if (target.streak >= (ok ? target.rise : target.fall)) {
+                target.up     = ok;
+                target.streak = 0;
             } else {
-                is_down.accept(ind);
+                logger.debug("Health check of "+target.addr_port+" "+(ok ? "passed" : "failed")+" "+target.streak+" time(s) in a row");
+            }
+        }
+
+        for (HealthListener listener : target.listeners) {
+            notify(target, listener);
+        }
+
+        // Jitter of +/- 10%, servers checked together drift apart instead of being probed in bursts
+        long interval = target.interval;
+        long next     = interval - interval / 10 + ThreadLocalRandom.current().nextLong(interval / 5 + 1);
+        loop.schedule(() -> probe(target), next, TimeUnit.MILLISECONDS);
+    }
+}
+
+/// GET uri once connected, success if status is the expected one
+class HttpProbeHandler extends ChannelInboundHandlerAdapter {
+    private InetSocketAddress addr_port;
+    private HealthCheckConf conf;
+    private Promise<Boolean> result;
+
+    public HttpProbeHandler(InetSocketAddress addr_port, HealthCheckConf conf, Promise<Boolean> result) {
+        this.addr_port = addr_port;
+        this.conf      = conf;
+        this.result    = result;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        FullHttpRequest req = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, conf.uri);
+        req.headers()
+            .set(HttpHeaderNames.HOST, addr_port.getHostString()+":"+addr_port.getPort())
+            .set(HttpHeaderNames.USER_AGENT, "noxy-health-check")
+            .set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        ctx.writeAndFlush(req);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof HttpResponse) {
+            HttpResponse response = (HttpResponse)msg;
+            int status            = response.status().code();
+            HttpStatusClass kind  = response.status().codeClass();
+            if (conf.expect_status != null) {
+                result.trySuccess(status == conf.expect_status);
+            } else if (kind != HttpStatusClass.INFORMATIONAL) {
+                result.trySuccess(kind == HttpStatusClass.SUCCESS || kind == HttpStatusClass.REDIRECTION);
+            }
+        }
+        ReferenceCountUtil.release(msg);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        result.trySuccess(false);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable e) {
+        result.trySuccess(false);
+    }
+}
+
+/// Send payload once connected, success once what server answered contains expect
+class SendExpectProbeHandler extends ChannelInboundHandlerAdapter {
+    // Servers sending more than this without the expected answer failed
+    static final int MAX_READ = 4096;
+
+    private HealthCheckConf conf;
+    private Promise<Boolean> result;
+    private ByteBuf received;
+
+    public SendExpectProbeHandler(HealthCheckConf conf, Promise<Boolean> result) {
+        this.conf   = conf;
+        this.result = result;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        this.received = ctx.alloc().buffer();
+        if (conf.send == null) {
+            return;
+        }
+        ctx.writeAndFlush(Unpooled.copiedBuffer(conf.send, StandardCharsets.UTF_8)).addListener(future -> {
+            if (!future.isSuccess()) {
+                result.trySuccess(false);
+            } else if (conf.expect == null) {
+                result.trySuccess(true);
             }
         });
     }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        ByteBuf buf = (ByteBuf)msg;
+        if (conf.expect != null && received.readableBytes() < MAX_READ) {
+            received.writeBytes(buf, Math.min(buf.readableBytes(), MAX_READ - received.readableBytes()));
+            if (received.toString(StandardCharsets.UTF_8).contains(conf.expect)) {
+                result.trySuccess(true);
+            } else if (received.readableBytes() >= MAX_READ) {
+                result.trySuccess(false);
+            }
+        }
+        buf.release();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        if (received != null) {
+            received.release();
+            received = null;
+        }
+        result.trySuccess(false);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable e) {
+        result.trySuccess(false);
+    }
 }
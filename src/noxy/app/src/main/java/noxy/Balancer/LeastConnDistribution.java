@@ -6,12 +6,13 @@ import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.function.IntConsumer;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import noxy.ServerConfig.HealthCheckConf;
+
 class LeastConnBackend {
     public InetSocketAddress addr_port;
     public AtomicLong conns;
@@ -46,7 +47,7 @@ public class LeastConnDistribution implements BalanceStrategy {
     private List<LeastConnBackend> backends = null;
     private AtomicReference<LeastConnBackendRef> active_backends = null;
 
-    public LeastConnDistribution(List<Pair<String, InetSocketAddress>> backends, long health_check_timeout) {
+    public LeastConnDistribution(List<Pair<String, InetSocketAddress>> backends, HealthCheckConf health) {
         this.backends = new ArrayList<>();
         LeastConnBackendRef active_backends = new LeastConnBackendRef(0, new ArrayList<>());
         
@@ -56,44 +57,33 @@ public class LeastConnDistribution implements BalanceStrategy {
         }
         this.active_backends = new AtomicReference<LeastConnBackendRef>(active_backends);
 
-        Runnable runnable = () -> { this.health_check(health_check_timeout); };
-        Thread thread = new Thread(runnable);
-        thread.start();
+        for (int i = 0; i < this.backends.size(); i++) {
+            HealthCheck.watch(this.backends.get(i).addr_port, i, health, this::on_backend_up, this::on_backend_down);
+        }
     }
 
-    private void health_check(long health_check_timeout) {
-        while (true) {
-            for (int i = 0; i < this.backends.size(); i++) {
-                IntConsumer on_backend_up = ind -> {
-                    active_backends.getAndUpdate(ac -> {
-                        if (!ac.list.contains(ind)) {
-                            logger.info("Backend ["+this.backends.get(ind).name+":"+this.backends.get(ind).addr_port+"] is now up");
-                            ac.list.add(ind);
-                        }
-                        return ac;
-                    });
-                };
-
-                IntConsumer on_backend_down = ind -> {
-                    active_backends.getAndUpdate(ac -> {
-                        ac.list.removeIf(a -> {
-                            if (a == ind) {
-                                logger.warn("Backend ["+this.backends.get(ind).name+":"+this.backends.get(ind).addr_port+"] is now down");
-                                return true;
-                            } else {
-                                return false;
-                            }
-                        });
-                        return ac;
-                    });
-                };
-
-                HealthCheck.check(this.backends.get(i).addr_port, i, on_backend_up, on_backend_down);
+    private void on_backend_up(int ind) {
+        active_backends.getAndUpdate(ac -> {
+            if (!ac.list.contains(ind)) {
+                logger.info("Backend ["+this.backends.get(ind).name+":"+this.backends.get(ind).addr_port+"] is now up");
+                ac.list.add(ind);
             }
-            try {
-                Thread.sleep(health_check_timeout, 0);
-            } catch (InterruptedException e) {}
-        }
+            return ac;
+        });
+    }
+
+    private void on_backend_down(int ind) {
+        active_backends.getAndUpdate(ac -> {
+            ac.list.removeIf(a -> {
+                if (a == ind) {
+                    logger.warn("Backend ["+this.backends.get(ind).name+":"+this.backends.get(ind).addr_port+"] is now down");
+                    return true;
+                } else {
+                    return false;
+                }
+            });
+            return ac;
+        });
     }
 
     public BackendTracker get_backend() {
@@ -144,4 +134,8 @@ public class LeastConnDistribution implements BalanceStrategy {
     public int active_backends() {
         return active_backends.get().list.size();
     }
+
+    public boolean is_up(int id) {
+        return active_backends.get().list.contains(id);
+    }
 }
@@ -0,0 +1,51 @@
+package noxy.Balancer;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import noxy.ServerConfig.HealthCheckConf;
+
+/// Power of two choices least connection Balancer
+/// Picks two random healthy backends and keeps the one with fewer connections,
+/// it only reads the healthy snapshot and two padded counters of its BackendSet
+public class LeastConnP2CDistribution implements BalanceStrategy {
+    static Logger logger = LogManager.getLogger(LeastConnP2CDistribution.class);
+
+    private BackendSet<ActiveSnapshot> backends;
+    private BackendSet.Cost load;
+
+    public LeastConnP2CDistribution(List<Pair<String, InetSocketAddress>> backends, HealthCheckConf health) {
+        this(backends);
+        this.backends.watch(health);
+    }
+
+    /// All backends up until told otherwise, nothing probes them
+    LeastConnP2CDistribution(List<Pair<String, InetSocketAddress>> backends) {
+        this.backends = new BackendSet<>(backends, (active, list) -> new ActiveSnapshot(active), logger);
+        this.load     = (ind, now) -> this.backends.conns(ind);
+    }
+
+    public BackendTracker get_backend() {
+        int[] active = this.backends.healthy().active;
+        if (active.length == 0) {
+            return null;
+        }
+        return this.backends.acquire(this.backends.pick_two(active, 0, this.load));
+    }
+
+    public void connection_finished(BackendTracker tracker) {
+        this.backends.release(tracker.id);
+    }
+
+    public int active_backends() {
+        return this.backends.healthy().active.length;
+    }
+
+    public boolean is_up(int id) {
+        return this.backends.is_up(id);
+    }
+}
@@ -1,116 +1,117 @@
 package noxy.Balancer;
 
 import java.net.InetSocketAddress;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.function.IntConsumer;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-class Backend {
-    public InetSocketAddress addr_port;
-    public String name;
+import noxy.ServerConfig.HealthCheckConf;
 
-    public Backend(InetSocketAddress addr_port, String name) {
-        this.addr_port = addr_port;
-        this.name      = name;
+/// Healthy backends and the order they are picked in, replaced as a whole
+class RoundRobinSnapshot extends ActiveSnapshot {
+    public final int[] sequence; // one weight cycle, draining backends left out
+    public final int pickable; // active backends not draining
+
+    public RoundRobinSnapshot(int[] active, int[] weights) {
+        super(active);
+        this.sequence = sequence(active, weights);
+        this.pickable = (int)Arrays.stream(active).filter(ind -> weights[ind] > 0).count();
     }
-}
 
-class BackendRef {
-    public int index;
-    public ArrayList<Integer> list;
+    /// Smooth weighted round robin (nginx): every step each backend gains its weight,
+    /// the one ahead is picked and loses the total, so picks are interleaved
+    /// (a b a c a b a for 4/2/1) instead of coming in bursts
+    static int[] sequence(int[] active, int[] weights) {
+        int gcd   = 0;
+        int total = 0;
+        for (int ind : active) {
+            gcd    = gcd(gcd, weights[ind]);
+            total += weights[ind];
+        }
+        if (total == 0) {
+            return new int[0];
+        }
+        total /= gcd;
+
+        int[] current  = new int[active.length];
+        int[] sequence = new int[total];
+        for (int step = 0; step < total; step++) {
+            int best = -1;
+            for (int i = 0; i < active.length; i++) {
+                int weight  = weights[active[i]] / gcd;
+                current[i] += weight;
+                if (weight > 0 && (best == -1 || current[i] > current[best])) {
+                    best = i;
+                }
+            }
+            current[best] -= total;
+            sequence[step] = active[best];
+        }
+        return sequence;
+    }
 
-    public BackendRef(int index, ArrayList<Integer> list) {
-        this.index = index;
-        this.list  = list;
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a     = b;
+            b     = t;
+        }
+        return a;
     }
 }
 
 /// Robin round Balancer
-/// A simple balancer that chooses next backend when new connection comes
+/// Chooses next backend when new connection comes, servers with a bigger weight
+/// are chosen proportionally more often and weight 0 drains a server.
+/// Selection only reads an immutable snapshot and bumps one counter, no lock nor retry
 public class RoundRobinDistribution implements BalanceStrategy {
     static Logger logger = LogManager.getLogger(RoundRobinDistribution.class);
 
-    private List<Backend> backends = null;
-    private AtomicReference<BackendRef> active_backends = null;
+    private BackendSet<RoundRobinSnapshot> backends;
+    private int[] weights;
+    private AtomicLong next;
+
+    public RoundRobinDistribution(List<Pair<String, InetSocketAddress>> backends, HealthCheckConf health) {
+        this(backends, null, health);
+    }
+
+    /// weights has one entry per backend, null gives them all the same
+    public RoundRobinDistribution(List<Pair<String, InetSocketAddress>> backends, List<Integer> weights,
+            HealthCheckConf health) {
+        this(backends, weights);
+        this.backends.watch(health);
+    }
 
-    public RoundRobinDistribution(List<Pair<String, InetSocketAddress>> backends, long health_check_timeout) {
-        this.backends              = new ArrayList<>();
-        BackendRef active_backends = new BackendRef(0, new ArrayList<>());
-        
+    /// All backends down until told otherwise, nothing probes them
+    RoundRobinDistribution(List<Pair<String, InetSocketAddress>> backends, List<Integer> weights) {
+        this.weights = new int[backends.size()];
         for (int i = 0; i < backends.size(); i++) {
-            this.backends.add(new Backend(backends.get(i).getRight(), backends.get(i).getLeft()));
-            //active_backends.list.add(i);
+            this.weights[i] = weights == null ? 1 : weights.get(i);
         }
-        this.active_backends = new AtomicReference<BackendRef>(active_backends);
+        // Backends are only used once health check saw them up
+        this.backends = new BackendSet<>(backends, false, (active, list) -> new RoundRobinSnapshot(active, this.weights), logger);
+        this.next     = new AtomicLong(0);
+    }
 
-        Runnable runnable = () -> { this.health_check(health_check_timeout); };
-        Thread thread = new Thread(runnable);
-        thread.start();
+    void on_backend_up(int ind) {
+        this.backends.up(ind);
     }
 
-    private void health_check(long health_check_timeout) {
-        while (true) {
-            for (int i = 0; i < this.backends.size(); i++) {
-                IntConsumer on_backend_up = ind -> {
-                    active_backends.getAndUpdate(ac -> {
-                        if (!ac.list.contains(ind)) {
-                            logger.info("Backend ["+this.backends.get(ind).name+":"+this.backends.get(ind).addr_port+"] is now up");
-                            ac.list.add(ind);
-                        }
-                        return ac;
-                    });
-                };
-
-                IntConsumer on_backend_down = ind -> {
-                    active_backends.getAndUpdate(ac -> {
-                        ac.list.removeIf(a -> {
-                            if (a == ind) {
-                                logger.warn("Backend ["+this.backends.get(ind).name+":"+this.backends.get(ind).addr_port+"] is now down");
-                                return true;
-                            } else {
-                                return false;
-                            }
-                        });
-                        return ac;
-                    });
-                };
-
-                HealthCheck.check(this.backends.get(i).addr_port, i, on_backend_up, on_backend_down);
-            }
-            try {
-                Thread.sleep(health_check_timeout, 0);
-            } catch (InterruptedException e) {}
-        }
+    void on_backend_down(int ind) {
+        this.backends.down(ind);
     }
 
     public BackendTracker get_backend() {
-        // Increment next backend, if we reach an index out of scope of backends
-        // we go back to 0
-        AtomicInteger index = new AtomicInteger(-1);
-        active_backends.getAndUpdate(ac -> {
-            int size = ac.list.size();
-            if (size != 0) {
-                int ind = ac.index;
-                if (ind >= size) {
-                    ind = 0;
-                }
-                ac.index = ind+1;
-                index.set(ac.list.get(ind));
-            }
-            return ac;
-        });
-        int ind = index.get();
-        if (ind == -1) {
+        int[] sequence = this.backends.healthy().sequence;
+        if (sequence.length == 0) {
             return null;
-        } else {
-            return new BackendTracker(this.backends.get(ind).addr_port, ind);
         }
+        int ind = sequence[(int)Long.remainderUnsigned(this.next.getAndIncrement(), sequence.length)];
+        return new BackendTracker(this.backends.list.get(ind).addr_port, ind);
     }
 
     public void connection_finished(BackendTracker tracker) {
@@ -119,6 +120,10 @@ public class RoundRobinDistribution implements BalanceStrategy {
     }
 
     public int active_backends() {
-        return active_backends.get().list.size();
+        return this.backends.healthy().pickable;
+    }
+
+    public boolean is_up(int id) {
+        return this.backends.is_up(id);
     }
 }
@@ -0,0 +1,196 @@
+package noxy.Cache;
+
+import java.util.Date;
+import java.util.Map;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslHandler;
+
+/// Cached response
+/// Status, headers and body of a response, never modified once stored.
+/// Body is either a direct buffer owned by the memory cache or a region of a disk
+/// segment, every reader holds its own reference on it
+public class CacheEntry {
+    public String key;
+    public String base; // key without vary values
+    public VaryNames vary;
+
+    public HttpResponseStatus status;
+    public HttpHeaders headers;
+    public ByteBuf body;
+
+    // Set instead of body when it's on disk
+    public DiskSegment segment;
+    public int offset;
+    public int length;
+
+    public long stored;      // ms, when response was received
+    public long age;         // ms, age of response when it was received
+    public long fresh_until; // ms, stale after this
+    public String etag;
+    public String last_modified;
+
+    public int size; // bytes accounted in memory cache budget
+
+    public CacheEntry(String key, String base, VaryNames vary, HttpResponseStatus status, HttpHeaders headers,
+            ByteBuf body, long stored, long age, long ttl) {
+        this(key, base, vary, status, headers, stored, age, ttl);
+        this.body   = body;
+        this.length = body.readableBytes();
+        this.size  += body.capacity();
+    }
+
+    public CacheEntry(String key, String base, VaryNames vary, HttpResponseStatus status, HttpHeaders headers,
+            DiskSegment segment, int offset, int length, long stored, long age, long ttl) {
+        this(key, base, vary, status, headers, stored, age, ttl);
+        this.segment = segment;
+        this.offset  = offset;
+        this.length  = length;
+    }
+
+    private CacheEntry(String key, String base, VaryNames vary, HttpResponseStatus status, HttpHeaders headers,
+            long stored, long age, long ttl) {
+        this.key           = key;
+        this.base          = base;
+        this.vary          = vary;
+        this.status        = status;
+        this.headers       = headers;
+        this.stored        = stored;
+        this.age           = age;
+        this.fresh_until   = stored + ttl - age;
+        this.etag          = headers.get(HttpHeaderNames.ETAG);
+        this.last_modified = headers.get(HttpHeaderNames.LAST_MODIFIED);
+
+        int headers_size = 0;
+        for (Map.Entry<String, String> h : headers) {
+            headers_size += h.getKey().length() + h.getValue().length();
+        }
+        this.size = headers_size + key.length();
+    }
+
+    public boolean fresh() {
+        return System.currentTimeMillis() < this.fresh_until;
+    }
+
+    public boolean has_validators() {
+        return this.etag != null || this.last_modified != null;
+    }
+
+    void retain() {
+        if (this.body != null) {
+            this.body.retain();
+        } else {
+            this.segment.retain();
+        }
+    }
+
+    /// Drop the reference given by lookup
+    public void release() {
+        if (this.body != null) {
+            this.body.release();
+        } else {
+            this.segment.release();
+        }
+    }
+
+    /// Answer request from this entry, 304 when client already has it.
+    /// Consumes the reference given by lookup
+    public ChannelFuture write(Channel ch, HttpRequest req) {
+        boolean not_modified = this.not_modified(req);
+        boolean head         = req.method().equals(HttpMethod.HEAD);
+        boolean keep_alive   = HttpUtil.isKeepAlive(req);
+
+        HttpHeaders headers = this.headers.copy();
+        headers.setInt(HttpHeaderNames.AGE, (int)((System.currentTimeMillis() - this.stored + this.age) / 1000));
+        if (!keep_alive) {
+            headers.set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        }
+
+        ChannelFuture f;
+        if (not_modified || head) {
+            this.release();
+            if (not_modified) {
+                headers.remove(HttpHeaderNames.CONTENT_LENGTH);
+            }
+            f = ch.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                    not_modified ? HttpResponseStatus.NOT_MODIFIED : this.status,
+                    Unpooled.EMPTY_BUFFER, headers, EmptyHttpHeaders.INSTANCE));
+        } else if (this.body != null) {
+            // Duplicate shares our reference, released once written
+            f = ch.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, this.status,
+                    this.body.duplicate(), headers, EmptyHttpHeaders.INSTANCE));
+        } else if (sendfile(ch)) {
+            // Straight from file to socket, body never goes through user space
+            DiskSegment segment = this.segment;
+            ch.write(new DefaultHttpResponse(HttpVersion.HTTP_1_1, this.status, headers));
+            ch.write(new DefaultFileRegion(segment.file, this.offset, this.length));
+            f = ch.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+            f.addListener(future -> segment.release());
+        } else {
+            // TLS or HTTP/2 need the bytes, taken from the mapping without copy
+            DiskSegment segment = this.segment;
+            f = ch.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, this.status,
+                    Unpooled.wrappedBuffer(segment.map.slice(this.offset, this.length)), headers, EmptyHttpHeaders.INSTANCE));
+            f.addListener(future -> segment.release());
+        }
+
+        if (!keep_alive) {
+            f.addListener(ChannelFutureListener.CLOSE);
+        }
+        return f;
+    }
+
+    /// File regions only work on a plaintext HTTP/1 connection whose responses are not transformed
+    private static boolean sendfile(Channel ch) {
+        return ch.pipeline().get(HttpServerCodec.class) != null
+            && ch.pipeline().get(SslHandler.class) == null
+            && ch.pipeline().get("compressor") == null;
+    }
+
+    boolean not_modified(HttpRequest req) {
+        String if_none_match = req.headers().get(HttpHeaderNames.IF_NONE_MATCH);
+        if (if_none_match != null) {
+            if (this.etag == null) {
+                return false;
+            }
+            for (String tag : if_none_match.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*") || weak(tag).equals(weak(this.etag))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        String if_modified_since = req.headers().get(HttpHeaderNames.IF_MODIFIED_SINCE);
+        if (if_modified_since != null && this.last_modified != null) {
+            Date since    = DateFormatter.parseHttpDate(if_modified_since);
+            Date modified = DateFormatter.parseHttpDate(this.last_modified);
+            return since != null && modified != null && !modified.after(since);
+        }
+        return false;
+    }
+
+    private static String weak(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+}
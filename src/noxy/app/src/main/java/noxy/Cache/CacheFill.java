@@ -0,0 +1,140 @@
+package noxy.Cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+
+/// Watches the backend response to one request, copies it in cache when it can be stored
+/// and answers from the stale entry when backend says it's still valid
+public class CacheFill {
+    private ResponseCache cache;
+    private HttpRequest req;
+    private String base;
+    private CacheEntry stale;
+
+    private HttpResponse response;
+    private ByteBuf body;     // response kept in memory
+    private long reserved;    // room taken in cache's memory budget for body
+    private DiskRegion region; // or on disk when too large
+    private long ttl;
+    private boolean swallow; // backend's 304 replaced by cached response
+
+    CacheFill(ResponseCache cache, HttpRequest req, String base, CacheEntry stale) {
+        this.cache = cache;
+        this.req   = req;
+        this.base  = base;
+        this.stale = stale;
+    }
+
+    /// Look at a response message before it's sent to client,
+    /// true when it was consumed here and must not be forwarded
+    public boolean response(Channel client, Object msg) {
+        if (msg instanceof HttpResponse) {
+            HttpResponse response = (HttpResponse)msg;
+            if (response.status().codeClass() == HttpStatusClass.INFORMATIONAL) {
+                return false;
+            }
+
+            if (this.stale != null && response.status().equals(HttpResponseStatus.NOT_MODIFIED)) {
+                this.cache.hits.increment();
+                CacheEntry entry = this.cache.revalidated(this.stale, response);
+                this.stale       = null;
+                this.swallow     = true;
+                entry.write(client, this.req);
+                ReferenceCountUtil.release(msg);
+                return true;
+            }
+            this.release_stale();
+            this.cache.misses.increment();
+
+            this.ttl = ResponseCache.ttl(response);
+            if (this.ttl >= 0) {
+                long length = HttpUtil.getContentLength(response, -1L);
+                if (length <= this.cache.max_object) {
+                    // Without length it may take up to max_object
+                    long want = length >= 0 ? length : this.cache.max_object;
+                    if (this.cache.reserve_memory(want)) {
+                        this.reserved = want;
+                        this.response = response;
+                        this.body     = client.alloc().directBuffer(length >= 0 ? (int)length : 8192, (int)want);
+                    }
+                } else if ((this.region = this.cache.reserve(length)) != null) {
+                    // Written straight to its place on disk as it arrives
+                    this.response = response;
+                }
+            }
+        } else if (this.swallow) {
+            ReferenceCountUtil.release(msg);
+            return true;
+        }
+
+        if (this.region != null && msg instanceof HttpContent) {
+            if (!this.region.write(((HttpContent)msg).content())) {
+                this.abort();
+            } else if (msg instanceof LastHttpContent) {
+                if (this.region.complete()) {
+                    this.cache.store(this.base, this.req, this.response, this.region, this.ttl);
+                }
+                this.abort();
+            }
+        }
+
+        if (this.body != null && msg instanceof HttpContent) {
+            ByteBuf content = ((HttpContent)msg).content();
+            if (this.body.readableBytes() + content.readableBytes() > this.reserved) {
+                // Too big for cache or longer than announced, just relay it
+                this.abort();
+            } else {
+                this.body.writeBytes(content, content.readerIndex(), content.readableBytes());
+                if (msg instanceof LastHttpContent) {
+                    this.complete();
+                }
+            }
+        }
+        return false;
+    }
+
+    private void complete() {
+        if (this.body.capacity() - this.body.readableBytes() > 4096) {
+            this.body.capacity(this.body.readableBytes());
+        }
+        // Stored entry takes over from the reservation
+        this.cache.release_memory(this.reserved);
+        this.cache.store(this.base, this.req, this.response, this.body, this.ttl);
+        this.body     = null;
+        this.reserved = 0;
+        this.response = null;
+    }
+
+    /// Response won't complete, drop what was collected
+    public void abort() {
+        if (this.body != null) {
+            this.body.release();
+            this.body = null;
+            this.cache.release_memory(this.reserved);
+            this.reserved = 0;
+        }
+        if (this.region != null) {
+            // Writer's reference on segment, unused space is reclaimed by compaction
+            this.region.segment.release();
+            this.region = null;
+        }
+        this.response = null;
+        this.release_stale();
+    }
+
+    private void release_stale() {
+        if (this.stale != null) {
+            this.stale.release();
+            this.stale = null;
+        }
+    }
+}
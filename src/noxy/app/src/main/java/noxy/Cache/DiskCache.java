@@ -0,0 +1,450 @@
+package noxy.Cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.concurrent.DefaultEventExecutor;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import noxy.ServerConfig.CacheConf;
+
+/// Space reserved in a segment for a body being received
+class DiskRegion {
+    public DiskSegment segment;
+    public int offset;
+    public int length;
+    public int position;
+
+    public DiskRegion(DiskSegment segment, int offset, int length) {
+        this.segment  = segment;
+        this.offset   = offset;
+        this.length   = length;
+        this.position = 0;
+    }
+
+    /// Copy content at the end of what was written, false if it doesn't fit
+    public boolean write(ByteBuf content) {
+        int n = content.readableBytes();
+        if (this.position + n > this.length) {
+            return false;
+        }
+        ByteBuffer dst = this.segment.map.duplicate();
+        dst.position(this.offset + this.position);
+        dst.limit(this.offset + this.position + n);
+        content.getBytes(content.readerIndex(), dst);
+        this.position += n;
+        return true;
+    }
+
+    public boolean complete() {
+        return this.position == this.length;
+    }
+}
+
+/// Disk tier of the response cache
+/// Bodies too large for memory are written in memory mapped segment files, their
+/// index is an append-only journal replayed at startup so cache comes back warm.
+/// Oldest segment is dropped when disk size cap is reached, segments that are mostly
+/// dead space are compacted in background by moving their live bodies to current segment.
+/// Every method must be called with owner cache locked. Compaction and journal writes run on
+/// the compactor thread and only take the lock to read or change the index, never during I/O
+public class DiskCache {
+    static Logger logger = LogManager.getLogger(DiskCache.class);
+
+    static byte PUT    = 1;
+    static byte REMOVE = 2;
+
+    private ResponseCache owner;
+    private File dir;
+    private long max_size;
+    private int segment_size;
+
+    private HashMap<String, CacheEntry> entries;
+    private TreeMap<Integer, DiskSegment> segments; // oldest first
+    private DiskSegment current;
+
+    private DataOutputStream journal; // only used from compactor thread once loaded
+    private long journal_records;
+    private boolean flush_scheduled; // compactor thread only
+
+    private EventExecutor compactor;
+    private boolean compacting;
+
+    public DiskCache(ResponseCache owner, CacheConf conf) throws IOException {
+        this.owner        = owner;
+        this.dir          = new File(conf.disk_path);
+        this.max_size     = conf.disk_max_size;
+        this.segment_size = conf.disk_segment_size.intValue();
+        this.entries      = new HashMap<>();
+        this.segments     = new TreeMap<>();
+        this.compactor    = new DefaultEventExecutor(new DefaultThreadFactory("noxy-cache-compactor", true));
+
+        if (!this.dir.isDirectory() && !this.dir.mkdirs()) {
+            throw new IOException("Can't create cache directory "+this.dir);
+        }
+
+        File[] files = this.dir.listFiles((d, name) -> name.endsWith(".seg"));
+        for (File file : files) {
+            try {
+                int id = Integer.parseInt(file.getName().replace(".seg", ""));
+                DiskSegment segment = new DiskSegment(id, file, this.segment_size);
+                segment.written     = segment.size; // never appended to again
+                this.segments.put(id, segment);
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring unknown file "+file+" in cache directory");
+            }
+        }
+
+        this.replay();
+
+        // Segments nothing points to anymore
+        Iterator<DiskSegment> it = this.segments.values().iterator();
+        while (it.hasNext()) {
+            DiskSegment segment = it.next();
+            if (segment.live == 0) {
+                it.remove();
+                segment.release();
+            }
+        }
+
+        this.rewrite_journal(this.entries.values());
+        this.journal_records = this.entries.size();
+        this.roll();
+        logger.info("Disk cache "+this.dir+" loaded with "+this.entries.size()+" responses");
+    }
+
+    /// Entries found on disk at startup
+    public Collection<CacheEntry> loaded() {
+        return this.entries.values();
+    }
+
+    public CacheEntry get(String key) {
+        return this.entries.get(key);
+    }
+
+    /// Reserve room for a body of length bytes, null if it can't fit in a segment.
+    /// Caller holds a reference to the segment until it stored or dropped the region
+    public DiskRegion reserve(int length) {
+        if (length > this.segment_size) {
+            return null;
+        }
+        if (this.current.written + length > this.current.size) {
+            try {
+                this.roll();
+            } catch (IOException e) {
+                logger.error("Can't create cache segment: "+e);
+                return null;
+            }
+        }
+        DiskRegion region = new DiskRegion(this.current, this.current.written, length);
+        this.current.written += length;
+        this.current.retain();
+        return region;
+    }
+
+    /// Index a body written on disk, replacing what was there for the same key
+    public void put(CacheEntry entry) {
+        CacheEntry old = this.entries.put(entry.key, entry);
+        if (old != null) {
+            this.forget(old);
+        }
+        entry.segment.live += entry.length;
+        this.append(PUT, entry);
+        this.maybe_compact();
+    }
+
+    public void remove(String key) {
+        CacheEntry entry = this.entries.remove(key);
+        if (entry != null) {
+            this.forget(entry);
+            this.append(REMOVE, entry);
+            this.maybe_compact();
+        }
+    }
+
+    private void forget(CacheEntry entry) {
+        entry.segment.live -= entry.length;
+        this.owner.forget_vary(entry);
+    }
+
+    /// Start a new current segment, dropping oldest ones above disk size cap
+    private void roll() throws IOException {
+        int id = this.segments.isEmpty() ? 0 : this.segments.lastKey() + 1;
+        while (!this.segments.isEmpty() && (long)(this.segments.size() + 1) * this.segment_size > this.max_size) {
+            this.drop(this.segments.firstEntry().getValue());
+        }
+        this.current = new DiskSegment(id, new File(this.dir, id+".seg"), this.segment_size);
+        this.segments.put(id, this.current);
+    }
+
+    private void drop(DiskSegment segment) {
+        Iterator<CacheEntry> it = this.entries.values().iterator();
+        while (it.hasNext()) {
+            CacheEntry entry = it.next();
+            if (entry.segment == segment) {
+                it.remove();
+                this.forget(entry);
+                this.append(REMOVE, entry);
+            }
+        }
+        this.segments.remove(segment.id);
+        segment.release();
+        logger.debug("Dropped cache segment "+segment.file);
+    }
+
+    private void maybe_compact() {
+        if (this.compacting) {
+            return;
+        }
+        for (DiskSegment segment : this.segments.values()) {
+            if (segment != this.current && segment.live < segment.size / 2) {
+                this.compacting = true;
+                this.compactor.execute(this::compact);
+                return;
+            }
+        }
+        if (this.journal_records > 2 * this.entries.size() + 1024) {
+            this.compacting = true;
+            this.compactor.execute(this::compact);
+        }
+    }
+
+    /// Move live bodies out of mostly empty segments, then rewrite journal. Bodies are
+    /// copied without the lock, event loops only wait for index lookups and swaps
+    private void compact() {
+        while (true) {
+            DiskSegment victim        = null;
+            List<CacheEntry> moving   = new ArrayList<>();
+            List<CacheEntry> snapshot = null;
+            synchronized (this.owner) {
+                for (DiskSegment segment : this.segments.values()) {
+                    if (segment != this.current && segment.live < segment.size / 2) {
+                        victim = segment;
+                        break;
+                    }
+                }
+
+                if (victim == null) {
+                    // Records appended from now on are queued behind this task and go to the new journal,
+                    // ones queued earlier are already part of snapshot and replay the same
+                    snapshot             = new ArrayList<>(this.entries.values());
+                    this.journal_records = snapshot.size();
+                    this.compacting      = false;
+                } else {
+                    // Mapping stays usable even if segment is dropped while bodies are copied
+                    victim.retain();
+                    for (CacheEntry entry : this.entries.values()) {
+                        if (entry.segment == victim) {
+                            moving.add(entry);
+                        }
+                    }
+                }
+            }
+
+            if (victim == null) {
+                try {
+                    this.rewrite_journal(snapshot);
+                } catch (IOException e) {
+                    logger.error("Can't rewrite cache index: "+e);
+                }
+                return;
+            }
+
+            for (CacheEntry entry : moving) {
+                if (!this.move(entry, victim)) {
+                    break;
+                }
+            }
+            synchronized (this.owner) {
+                if (this.segments.get(victim.id) == victim) {
+                    this.drop(victim);
+                }
+            }
+            victim.release();
+            logger.debug("Compacted cache segment "+victim.file+", "+moving.size()+" responses moved");
+        }
+    }
+
+    /// Copy one body out of victim to current segment, false when there is no room for it
+    private boolean move(CacheEntry entry, DiskSegment victim) {
+        DiskRegion region;
+        synchronized (this.owner) {
+            if (this.entries.get(entry.key) != entry) {
+                // Replaced meanwhile, or victim dropped to make room
+                return true;
+            }
+            region = this.reserve(entry.length);
+            if (region == null) {
+                return false;
+            }
+        }
+
+        region.write(Unpooled.wrappedBuffer(victim.map.slice(entry.offset, entry.length)));
+
+        synchronized (this.owner) {
+            // Entry may have changed during copy, the copied body is dead space then
+            if (this.entries.get(entry.key) == entry) {
+                if (entry.vary != null) {
+                    entry.vary.entries += 1; // taken back when old entry is replaced
+                }
+                this.put(new CacheEntry(entry.key, entry.base, entry.vary, entry.status, entry.headers,
+                            region.segment, region.offset, region.length,
+                            entry.stored, entry.age, entry.fresh_until - entry.stored + entry.age));
+            }
+        }
+        region.segment.release();
+        return true;
+    }
+
+    /// Queue a journal record, written and flushed in batches by compactor thread
+    private void append(byte type, CacheEntry entry) {
+        this.journal_records += 1;
+        this.compactor.execute(() -> {
+            try {
+                write_record(this.journal, type, entry);
+            } catch (IOException e) {
+                logger.error("Can't write cache index: "+e);
+            }
+            if (!this.flush_scheduled) {
+                // Behind records already queued, one flush for all of them
+                this.flush_scheduled = true;
+                this.compactor.execute(this::flush_journal);
+            }
+        });
+    }
+
+    /// Wait until records queued so far are written, owner cache must not be locked:
+    /// tasks ahead on compactor thread may take it
+    void flush() {
+        this.compactor.submit(this::flush_journal).syncUninterruptibly();
+    }
+
+    private void flush_journal() {
+        this.flush_scheduled = false;
+        try {
+            this.journal.flush();
+        } catch (IOException e) {
+            logger.error("Can't write cache index: "+e);
+        }
+    }
+
+    private static void write_record(DataOutputStream out, byte type, CacheEntry entry) throws IOException {
+        out.writeByte(type);
+        out.writeUTF(entry.key);
+        if (type == REMOVE) {
+            return;
+        }
+        out.writeUTF(entry.base);
+        String[] vary = entry.vary == null ? new String[0] : entry.vary.names;
+        out.writeInt(vary.length);
+        for (String name : vary) {
+            out.writeUTF(name);
+        }
+        out.writeInt(entry.status.code());
+        out.writeUTF(entry.status.reasonPhrase());
+        out.writeInt(entry.headers.size());
+        for (Map.Entry<String, String> h : entry.headers) {
+            out.writeUTF(h.getKey());
+            out.writeUTF(h.getValue());
+        }
+        out.writeLong(entry.stored);
+        out.writeLong(entry.age);
+        out.writeLong(entry.fresh_until);
+        out.writeInt(entry.segment.id);
+        out.writeInt(entry.offset);
+        out.writeInt(entry.length);
+    }
+
+    /// Rebuild index from journal, a truncated last record is ignored
+    private void replay() throws IOException {
+        File file = new File(this.dir, "index");
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte type  = in.readByte();
+                String key = in.readUTF();
+                if (type == REMOVE) {
+                    CacheEntry entry = this.entries.remove(key);
+                    if (entry != null) {
+                        entry.segment.live -= entry.length;
+                    }
+                    continue;
+                }
+
+                String base     = in.readUTF();
+                String[] vary   = new String[in.readInt()];
+                for (int i = 0; i < vary.length; i++) {
+                    vary[i] = in.readUTF();
+                }
+                HttpResponseStatus status = new HttpResponseStatus(in.readInt(), in.readUTF());
+                HttpHeaders headers       = new DefaultHttpHeaders();
+                int count                 = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    headers.add(in.readUTF(), in.readUTF());
+                }
+                long stored        = in.readLong();
+                long age           = in.readLong();
+                long fresh_until   = in.readLong();
+                DiskSegment segment = this.segments.get(in.readInt());
+                int offset         = in.readInt();
+                int length         = in.readInt();
+
+                if (segment == null || offset < 0 || length < 0 || (long)offset + length > segment.size) {
+                    continue;
+                }
+                CacheEntry entry = new CacheEntry(key, base, vary.length == 0 ? null : new VaryNames(vary), status, headers,
+                        segment, offset, length, stored, age, fresh_until - stored + age);
+                CacheEntry old   = this.entries.put(key, entry);
+                if (old != null) {
+                    old.segment.live -= old.length;
+                }
+                segment.live += length;
+            }
+        } catch (EOFException e) {
+            // End of journal
+        }
+    }
+
+    /// Write a journal with only live entries and switch to it
+    private void rewrite_journal(Collection<CacheEntry> live) throws IOException {
+        File file = new File(this.dir, "index");
+        File tmp  = new File(this.dir, "index.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            for (CacheEntry entry : live) {
+                write_record(out, PUT, entry);
+            }
+        }
+        if (this.journal != null) {
+            this.journal.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Can't replace "+file);
+        }
+        this.journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+}
@@ -0,0 +1,61 @@
+package noxy.Cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.internal.PlatformDependent;
+
+/// Disk cache segment
+/// A file mapped in memory where bodies are appended one after the other.
+/// Cache holds one reference while segment is in use, every response being sent
+/// from it holds another one, file is unmapped and deleted once all are gone
+public class DiskSegment extends AbstractReferenceCounted {
+    static Logger logger = LogManager.getLogger(DiskSegment.class);
+
+    public int id;
+    public File file;
+    public MappedByteBuffer map;
+    public int size;
+    public int written; // end of reserved space
+    public long live;   // bytes of bodies still indexed
+
+    /// Map segment file, created with size when it doesn't exist
+    public DiskSegment(int id, File file, int size) throws IOException {
+        this.id   = id;
+        this.file = file;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() == 0) {
+                raf.setLength(size);
+            }
+            this.size = (int)raf.length();
+            // Mapping stays valid once file is closed
+            this.map  = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.size);
+        }
+        this.written = 0;
+        this.live    = 0;
+    }
+
+    @Override
+    protected void deallocate() {
+        try {
+            PlatformDependent.freeDirectBuffer(this.map);
+        } catch (Throwable e) {
+            // Left to GC
+        }
+        if (!this.file.delete()) {
+            logger.warn("Can't delete cache segment "+this.file);
+        }
+    }
+
+    @Override
+    public DiskSegment touch(Object hint) {
+        return this;
+    }
+}
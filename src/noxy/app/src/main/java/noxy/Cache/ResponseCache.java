@@ -0,0 +1,425 @@
+package noxy.Cache;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.util.AsciiString;
+import noxy.ServerConfig.CacheConf;
+
+/// HTTP response cache
+/// Shared by all connections of a frontend, bodies are kept in direct buffers
+/// and least recently used entries are evicted once max_memory is reached.
+/// Freshness follows Cache-Control (s-maxage, max-age, no-cache, no-store, private)
+/// and Expires, stale entries with an ETag or Last-Modified are revalidated with backend.
+/// With a disk path, responses too large for memory go to the disk tier
+public class ResponseCache {
+    static Logger logger = LogManager.getLogger(ResponseCache.class);
+
+    // Responses a shared cache may store when freshness is known
+    static Set<Integer> CACHEABLE_STATUS = Set.of(200, 203, 204, 300, 301, 404, 405, 410, 414, 501);
+
+    // Connection specific headers, never stored. Keep-Alive and Proxy-Connection are not
+    // HTTP/1.1 headers anymore (deprecated in HttpHeaderNames) but old backends still send them
+    static AsciiString[] HOP_BY_HOP = new AsciiString[] {
+        HttpHeaderNames.CONNECTION, AsciiString.cached("keep-alive"), AsciiString.cached("proxy-connection"),
+        HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderNames.UPGRADE, HttpHeaderNames.TE,
+        HttpHeaderNames.TRAILER, HttpHeaderNames.AGE
+    };
+
+    public long max_memory;
+    public long max_object;
+
+    public LongAdder hits; // answered with a stored response, fresh or confirmed by backend
+    public LongAdder misses; // answered with what backend sent
+
+    private LinkedHashMap<String, CacheEntry> entries; // access ordered, eldest is evicted first
+    private HashMap<String, VaryNames> vary;
+    private long used; // stored entries and bodies being collected
+    private long filling; // part of used reserved by responses being collected
+
+    private DiskCache disk; // null when cache is memory only
+
+    public ResponseCache(CacheConf conf) throws IOException {
+        this.max_memory = conf.max_memory;
+        this.max_object = conf.max_object;
+        this.hits       = new LongAdder();
+        this.misses     = new LongAdder();
+        this.entries    = new LinkedHashMap<>(1024, 0.75f, true);
+        this.vary       = new HashMap<>();
+        this.used       = 0;
+        this.filling    = 0;
+
+        if (conf.disk_path != null) {
+            synchronized (this) {
+                this.disk = new DiskCache(this, conf);
+                for (CacheEntry entry : this.disk.loaded()) {
+                    if (entry.vary != null) {
+                        entry.vary = this.vary_names(entry.base, entry.vary.names);
+                        entry.vary.entries += 1;
+                    }
+                }
+            }
+        }
+    }
+
+    /// Only GET and HEAD without credentials go through cache
+    public static boolean cacheable(HttpRequest req) {
+        if (!req.method().equals(HttpMethod.GET) && !req.method().equals(HttpMethod.HEAD)) {
+            return false;
+        }
+        if (req.headers().contains(HttpHeaderNames.AUTHORIZATION)) {
+            return false;
+        }
+        return !has_directive(req.headers().get(HttpHeaderNames.CACHE_CONTROL), "no-store");
+    }
+
+    /// Client asked for an answer checked with origin server
+    public static boolean no_cache(HttpRequest req) {
+        String cache_control = req.headers().get(HttpHeaderNames.CACHE_CONTROL);
+        return has_directive(cache_control, "no-cache")
+            || directive_value(cache_control, "max-age") == 0
+            || (cache_control == null && has_directive(req.headers().get(HttpHeaderNames.PRAGMA), "no-cache"));
+    }
+
+    static String base_key(HttpRequest req, String scheme) {
+        String host = req.headers().get(HttpHeaderNames.HOST);
+        return scheme+"://"+(host == null ? "" : host.toLowerCase())+req.uri();
+    }
+
+    static String variant_key(String base, VaryNames vary, HttpHeaders headers) {
+        if (vary == null) {
+            return base;
+        }
+        StringBuilder key = new StringBuilder(base);
+        for (String name : vary.names) {
+            key.append('\0').append(String.join(",", headers.getAll(name)));
+        }
+        return key.toString();
+    }
+
+    /// Find response for request, fresh or not. Caller owns a reference
+    /// to the entry's body and must write or release it
+    public synchronized CacheEntry lookup(HttpRequest req, String scheme) {
+        String base       = base_key(req, scheme);
+        String key        = variant_key(base, this.vary.get(base), req.headers());
+        CacheEntry entry  = this.entries.get(key);
+        if (entry == null && this.disk != null) {
+            entry = this.disk.get(key);
+        }
+        if (entry == null) {
+            return null;
+        }
+        entry.retain();
+        return entry;
+    }
+
+    /// Start recording the response to request, stale is the entry to revalidate if any
+    public CacheFill fill(HttpRequest req, String scheme, CacheEntry stale) {
+        if (!req.method().equals(HttpMethod.GET)) {
+            // Nothing to learn from a HEAD response
+            if (stale != null) {
+                stale.release();
+            }
+            this.misses.increment();
+            return null;
+        }
+
+        HttpHeaders headers = req.headers();
+        if (stale != null && (!stale.has_validators()
+                || headers.contains(HttpHeaderNames.IF_NONE_MATCH) || headers.contains(HttpHeaderNames.IF_MODIFIED_SINCE))) {
+            // Can't revalidate, or client is revalidating its own copy and gets backend's answer
+            stale.release();
+            stale = null;
+        }
+
+        if (stale != null) {
+            if (stale.etag != null) {
+                headers.set(HttpHeaderNames.IF_NONE_MATCH, stale.etag);
+            }
+            if (stale.last_modified != null) {
+                headers.set(HttpHeaderNames.IF_MODIFIED_SINCE, stale.last_modified);
+            }
+        }
+        return new CacheFill(this, req, base_key(req, scheme), stale);
+    }
+
+    /// Time a response can be served without asking backend, -1 if it must not be stored
+    static long ttl(HttpResponse response) {
+        HttpHeaders headers  = response.headers();
+        String cache_control = headers.get(HttpHeaderNames.CACHE_CONTROL);
+
+        if (!CACHEABLE_STATUS.contains(response.status().code())
+                || has_directive(cache_control, "no-store")
+                || has_directive(cache_control, "private")
+                || headers.contains(HttpHeaderNames.SET_COOKIE)
+                || "*".equals(headers.get(HttpHeaderNames.VARY))) {
+            return -1;
+        }
+
+        boolean validators = headers.contains(HttpHeaderNames.ETAG) || headers.contains(HttpHeaderNames.LAST_MODIFIED);
+        if (has_directive(cache_control, "no-cache")) {
+            return validators ? 0 : -1;
+        }
+
+        long ttl = directive_value(cache_control, "s-maxage");
+        if (ttl < 0) {
+            ttl = directive_value(cache_control, "max-age");
+        }
+        if (ttl >= 0) {
+            return ttl * 1000;
+        }
+
+        String expires = headers.get(HttpHeaderNames.EXPIRES);
+        if (expires != null) {
+            Date expires_date = DateFormatter.parseHttpDate(expires);
+            Date date         = DateFormatter.parseHttpDate(headers.get(HttpHeaderNames.DATE, ""));
+            long now          = date == null ? System.currentTimeMillis() : date.getTime();
+            // An invalid Expires means already expired
+            return expires_date == null ? 0 : Math.max(0, expires_date.getTime() - now);
+        }
+
+        // No explicit freshness, keep it only if it can be revalidated
+        return validators ? 0 : -1;
+    }
+
+    /// Age the response already had when received from backend, in ms
+    static long age(HttpResponse response) {
+        try {
+            return Math.max(0, Long.parseLong(response.headers().get(HttpHeaderNames.AGE, "0").trim()) * 1000);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /// Headers as they are stored, without connection specific ones
+    static HttpHeaders stored_headers(HttpHeaders headers, int length) {
+        HttpHeaders stored = new DefaultHttpHeaders().add(headers);
+        for (AsciiString name : HOP_BY_HOP) {
+            stored.remove(name);
+        }
+        stored.setInt(HttpHeaderNames.CONTENT_LENGTH, length);
+        return stored;
+    }
+
+    /// Vary names of a resource, reusing the current ones when they didn't change
+    private VaryNames vary_names(String base, String[] list) {
+        VaryNames names = this.vary.get(base);
+        if (names == null || !String.join(",", names.names).equals(String.join(",", list))) {
+            names = new VaryNames(list);
+            this.vary.put(base, names);
+        }
+        return names;
+    }
+
+    private VaryNames response_vary(String base, HttpResponse response) {
+        String vary = response.headers().get(HttpHeaderNames.VARY);
+        if (vary == null) {
+            this.vary.remove(base);
+            return null;
+        }
+        return this.vary_names(base, vary.toLowerCase().split("\\s*,\\s*"));
+    }
+
+    /// Store a complete response to request, takes ownership of body
+    synchronized void store(String base, HttpRequest req, HttpResponse response, ByteBuf body, long ttl) {
+        VaryNames names   = this.response_vary(base, response);
+        String key        = variant_key(base, names, req.headers());
+        CacheEntry entry  = new CacheEntry(key, base, names, response.status(),
+                stored_headers(response.headers(), body.readableBytes()), body,
+                System.currentTimeMillis(), age(response), ttl);
+        if (this.disk != null) {
+            this.disk.remove(key);
+        }
+        if (names != null) {
+            names.entries += 1;
+        }
+        this.put(entry);
+    }
+
+    /// Room in memory for a body being collected, counted in max_memory until it's stored or dropped.
+    /// Bodies being collected never take more than half of it, false when there's no room left for them
+    synchronized boolean reserve_memory(long length) {
+        if (this.filling + length > this.max_memory / 2) {
+            return false;
+        }
+        this.filling += length;
+        this.used    += length;
+        this.evict();
+        return true;
+    }
+
+    synchronized void release_memory(long length) {
+        this.filling -= length;
+        this.used    -= length;
+    }
+
+    /// Room on disk for a body too large for memory, null if there is no disk tier or it doesn't fit
+    synchronized DiskRegion reserve(long length) {
+        if (this.disk == null || length > Integer.MAX_VALUE) {
+            return null;
+        }
+        return this.disk.reserve((int)length);
+    }
+
+    /// Wait until disk index has every response stored so far
+    void flush_disk() {
+        if (this.disk != null) {
+            this.disk.flush();
+        }
+    }
+
+    /// Index a response whose body was completely written in region
+    synchronized void store(String base, HttpRequest req, HttpResponse response, DiskRegion region, long ttl) {
+        VaryNames names   = this.response_vary(base, response);
+        String key        = variant_key(base, names, req.headers());
+        CacheEntry entry  = new CacheEntry(key, base, names, response.status(),
+                stored_headers(response.headers(), region.length), region.segment, region.offset, region.length,
+                System.currentTimeMillis(), age(response), ttl);
+        this.remove(key, this.entries.get(key));
+        if (names != null) {
+            names.entries += 1;
+        }
+        this.disk.put(entry);
+    }
+
+    /// Backend confirmed stale entry is still valid, store it with the freshness it sent.
+    /// Gives the new entry with a reference for caller
+    synchronized CacheEntry revalidated(CacheEntry stale, HttpResponse not_modified) {
+        HttpHeaders headers = stale.headers.copy();
+        for (AsciiString name : new AsciiString[] { HttpHeaderNames.CACHE_CONTROL, HttpHeaderNames.EXPIRES,
+                HttpHeaderNames.DATE, HttpHeaderNames.ETAG, HttpHeaderNames.LAST_MODIFIED }) {
+            String value = not_modified.headers().get(name);
+            if (value != null) {
+                headers.set(name, value);
+            }
+        }
+
+        // Freshness is computed on merged headers, status is the stored one
+        HttpResponse merged = new DefaultHttpResponse(not_modified.protocolVersion(), stale.status, headers);
+        long ttl = ttl(merged);
+        if (ttl < 0) {
+            // Not storable anymore, still good for this client
+            if (stale.segment != null) {
+                if (this.disk.get(stale.key) == stale) {
+                    this.disk.remove(stale.key);
+                }
+            } else {
+                this.remove(stale.key, stale);
+            }
+            return stale;
+        }
+
+        if (stale.vary != null) {
+            stale.vary.entries += 1;
+        }
+        if (stale.segment != null) {
+            // Same bytes on disk, only index changes
+            CacheEntry entry = new CacheEntry(stale.key, stale.base, stale.vary, stale.status, headers,
+                    stale.segment, stale.offset, stale.length, System.currentTimeMillis(), age(not_modified), ttl);
+            if (this.disk.get(stale.key) == stale) {
+                this.disk.put(entry);
+            } else {
+                this.forget_vary(entry);
+            }
+            return entry;
+        }
+
+        CacheEntry entry = new CacheEntry(stale.key, stale.base, stale.vary, stale.status, headers, stale.body.retain(),
+                System.currentTimeMillis(), age(not_modified), ttl);
+        this.put(entry);
+        // Reference given by lookup goes on to the caller with the new entry
+        return entry;
+    }
+
+    private void put(CacheEntry entry) {
+        CacheEntry old = this.entries.put(entry.key, entry);
+        if (old != null) {
+            this.forget(old);
+        }
+        this.used += entry.size;
+        this.evict();
+    }
+
+    /// Least recently used entries leave until stored and collected bodies fit in max_memory
+    private void evict() {
+        Iterator<CacheEntry> it = this.entries.values().iterator();
+        while (this.used > this.max_memory && it.hasNext()) {
+            CacheEntry eldest = it.next();
+            it.remove();
+            this.forget(eldest);
+            logger.debug("Evicted "+eldest.key+" from cache");
+        }
+    }
+
+    private void remove(String key, CacheEntry entry) {
+        if (entry != null && this.entries.remove(key, entry)) {
+            this.forget(entry);
+        }
+    }
+
+    private void forget(CacheEntry entry) {
+        this.used -= entry.size;
+        this.forget_vary(entry);
+        entry.body.release();
+    }
+
+    /// Entry left memory or disk
+    void forget_vary(CacheEntry entry) {
+        if (entry.vary != null) {
+            entry.vary.entries -= 1;
+            if (entry.vary.entries == 0) {
+                // Drop vary names once last variant is gone, only if they are still the current ones
+                this.vary.values().remove(entry.vary);
+            }
+        }
+    }
+
+    static boolean has_directive(String header, String directive) {
+        if (header == null) {
+            return false;
+        }
+        for (String d : header.split(",")) {
+            d = d.trim();
+            int eq = d.indexOf('=');
+            if ((eq < 0 ? d : d.substring(0, eq).trim()).equalsIgnoreCase(directive)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /// Seconds of a delta-seconds directive, -1 if missing or invalid
+    static long directive_value(String header, String directive) {
+        if (header == null) {
+            return -1;
+        }
+        for (String d : header.split(",")) {
+            int eq = d.indexOf('=');
+            if (eq > 0 && d.substring(0, eq).trim().equalsIgnoreCase(directive)) {
+                try {
+                    return Long.parseLong(d.substring(eq+1).trim().replace("\"", ""));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,12 @@
+package noxy.Cache;
+
+/// Request headers a resource varies on, every combination of their values is its own entry
+public class VaryNames {
+    public String[] names;
+    public int entries; // cached variants using these names
+
+    public VaryNames(String[] names) {
+        this.names   = names;
+        this.entries = 0;
+    }
+}
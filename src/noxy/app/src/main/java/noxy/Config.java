@@ -16,13 +16,20 @@ import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.constructor.Constructor;
 
 import noxy.ServerConfig.FrontendConf;
+import noxy.ServerConfig.HashKey;
+import noxy.ServerConfig.HealthCheckConf;
 import noxy.ServerConfig.HttpCondition;
+import noxy.ServerConfig.HttpRouter;
 import noxy.ServerConfig.HttpSettings;
 
 class GlobalConf {
     public Long maxconn = 5000L;
     public Object threads = 1;
     public Long health_check = 5000L;
+    public String transport  = "auto";
+    public String condition_engine = "native";
+    public String stats; // addr:port serving metrics in prometheus text format, none when not set
+    public Long slow_log_rate = 10L; // slow log lines written per second at most
 }
 
 class DefaultConf {
@@ -31,16 +38,50 @@ class DefaultConf {
     public Long timeout_server     = 30000L;
     public Long maxconn            = 1000L;
     public String mode             = "tcp";
+    public String relay            = "buffered";
+    public Boolean h2c             = false;
+    public Integer write_buffer_high = 64 * 1024;
+    public Integer write_buffer_low  = 32 * 1024;
+    public Integer flush_consolidation = 0;
+    public Integer pool_size           = 32;
+    public Integer pool_max_conns      = 0;
+    public Long pool_max_idle          = 30000L;
+    public Long pool_max_lifetime      = 300000L;
+    public Integer compression_level      = 6;
+    public Integer compression_min_length = 1024;
+    public Long cache_max_memory          = 64L * 1024 * 1024;
+    public Long cache_max_object          = 1024L * 1024;
+    public Long cache_disk_max_size       = 1024L * 1024 * 1024;
+    public Long cache_disk_segment_size   = 64L * 1024 * 1024;
+    public Integer route_cache            = 0;
+    public Long slow_log                  = 0L;
+    public Long health_check_timeout      = 5000L;
+    public Integer health_check_rise      = 2;
+    public Integer health_check_fall      = 3;
 }
 
 class BackEndConf {
     public String name;
     public String balance;
     public List<ServerConf> servers;
+
+    public String protocol = "http1";
+    public String ca; // CA to verify h2 servers, system trust store if not set
+
+    public String hash_key         = "client_ip"; // hash balance, request attribute keys are hashed on
+    public Double hash_load_factor = 1.25; // hash balance, max connections of a server relative to average
+
+    public Integer pool_size;
+    public Integer pool_max_conns;
+    public Long pool_max_idle;
+    public Long pool_max_lifetime;
+
+    public HealthCheckConf health_check;
 }
 
 class ServerConf {
     public String addr_port;
+    public Integer weight = 1; // roundrobin share of connections, 0 drains server
 }
 
 class InputConfig {
@@ -79,7 +120,11 @@ class Config {
     }
 
     private void set_defaults(InputConfig conf) {
-        HttpCondition.init();
+        if (!conf.global.condition_engine.equals("native") && !conf.global.condition_engine.equals("groovy")) {
+            logger.error("Unknown condition engine "+conf.global.condition_engine);
+            System.exit(1);
+        }
+        HttpCondition.init(conf.global.condition_engine);
         
         for (FrontendConf frontend: conf.frontend) {
             if (frontend.timeout_client == null) {
@@ -97,6 +142,92 @@ class Config {
             if (frontend.mode == null) {
                 frontend.mode = conf.defaults.mode;
             }
+            if (frontend.relay == null) {
+                frontend.relay = conf.defaults.relay;
+            }
+            if (frontend.h2c == null) {
+                frontend.h2c = conf.defaults.h2c;
+            }
+            if (frontend.write_buffer_high == null) {
+                frontend.write_buffer_high = conf.defaults.write_buffer_high;
+            }
+            if (frontend.write_buffer_low == null) {
+                frontend.write_buffer_low = conf.defaults.write_buffer_low;
+            }
+
+            if (frontend.slow_log == null) {
+                frontend.slow_log = conf.defaults.slow_log;
+            }
+
+            if (frontend.flush_consolidation == null) {
+                frontend.flush_consolidation = conf.defaults.flush_consolidation;
+            }
+
+            if (frontend.write_buffer_low <= 0 || frontend.write_buffer_low > frontend.write_buffer_high) {
+                logger.error("Write buffer low watermark of frontend ["+frontend.name+"] must be positive and not above high watermark");
+                System.exit(1);
+            }
+
+            if (!frontend.relay.equals("buffered") && !frontend.relay.equals("splice")) {
+                logger.error("Unknown relay "+frontend.relay+" for frontend ["+frontend.name+"]");
+                System.exit(1);
+            }
+            if (frontend.relay.equals("splice") && !frontend.mode.equals("tcp")) {
+                logger.error("Splice relay is only available in tcp mode for frontend ["+frontend.name+"]");
+                System.exit(1);
+            }
+
+            if (frontend.compression != null) {
+                if (!frontend.mode.equals("http")) {
+                    logger.error("Compression is only available in http mode for frontend ["+frontend.name+"]");
+                    System.exit(1);
+                }
+                if (frontend.compression.types == null || frontend.compression.types.isEmpty()) {
+                    logger.error("Compression of frontend ["+frontend.name+"] needs at least one content type");
+                    System.exit(1);
+                }
+                if (frontend.compression.level == null) {
+                    frontend.compression.level = conf.defaults.compression_level;
+                }
+                if (frontend.compression.min_length == null) {
+                    frontend.compression.min_length = conf.defaults.compression_min_length;
+                }
+                if (frontend.compression.level < 1 || frontend.compression.level > 9) {
+                    logger.error("Compression level of frontend ["+frontend.name+"] must be between 1 and 9");
+                    System.exit(1);
+                }
+            }
+
+            if (frontend.cache != null) {
+                if (!frontend.mode.equals("http")) {
+                    logger.error("Cache is only available in http mode for frontend ["+frontend.name+"]");
+                    System.exit(1);
+                }
+                if (frontend.cache.max_memory == null) {
+                    frontend.cache.max_memory = conf.defaults.cache_max_memory;
+                }
+                if (frontend.cache.max_object == null) {
+                    frontend.cache.max_object = conf.defaults.cache_max_object;
+                }
+                if (frontend.cache.max_object <= 0 || frontend.cache.max_object > frontend.cache.max_memory
+                        || frontend.cache.max_object > Integer.MAX_VALUE) {
+                    logger.error("Cache max object of frontend ["+frontend.name+"] must be positive and not above max memory");
+                    System.exit(1);
+                }
+                if (frontend.cache.disk_path != null) {
+                    if (frontend.cache.disk_max_size == null) {
+                        frontend.cache.disk_max_size = conf.defaults.cache_disk_max_size;
+                    }
+                    if (frontend.cache.disk_segment_size == null) {
+                        frontend.cache.disk_segment_size = conf.defaults.cache_disk_segment_size;
+                    }
+                    if (frontend.cache.disk_segment_size <= 0 || frontend.cache.disk_segment_size > Integer.MAX_VALUE
+                            || frontend.cache.disk_segment_size * 2 > frontend.cache.disk_max_size) {
+                        logger.error("Cache disk segment size of frontend ["+frontend.name+"] must be positive, below 2GB and at most half of disk max size");
+                        System.exit(1);
+                    }
+                }
+            }
 
             if (frontend.http_condition != null) {
                 if (frontend.mode.equals("tcp")) {
@@ -139,6 +270,10 @@ class Config {
                         }
                     }
                 }
+                if (frontend.route_cache == null) {
+                    frontend.route_cache = conf.defaults.route_cache;
+                }
+                frontend.router = new HttpRouter(frontend.http_condition, frontend.use_backend, frontend.route_cache);
             }
 
             boolean backend_found = false;
@@ -154,5 +289,92 @@ class Config {
                 System.exit(1);
             }
         }
+
+        for (BackEndConf backend: conf.backend) {
+            if (backend.pool_size == null) {
+                backend.pool_size = conf.defaults.pool_size;
+            }
+            if (backend.pool_max_conns == null) {
+                backend.pool_max_conns = conf.defaults.pool_max_conns;
+            }
+            if (backend.pool_max_idle == null) {
+                backend.pool_max_idle = conf.defaults.pool_max_idle;
+            }
+            if (backend.pool_max_lifetime == null) {
+                backend.pool_max_lifetime = conf.defaults.pool_max_lifetime;
+            }
+
+            if (backend.health_check == null) {
+                backend.health_check = new HealthCheckConf();
+            }
+            HealthCheckConf health = backend.health_check;
+            if (health.type == null) {
+                health.type = "connect";
+            }
+            if (health.interval == null) {
+                health.interval = conf.global.health_check;
+            }
+            if (health.timeout == null) {
+                health.timeout = conf.defaults.health_check_timeout;
+            }
+            if (health.rise == null) {
+                health.rise = conf.defaults.health_check_rise;
+            }
+            if (health.fall == null) {
+                health.fall = conf.defaults.health_check_fall;
+            }
+            if (health.type.equals("http") && health.uri == null) {
+                health.uri = "/";
+            }
+            if (!health.type.equals("connect") && !health.type.equals("http") && !health.type.equals("send_expect")) {
+                logger.error("Unknown health_check type "+health.type+" for backend ["+backend.name+"]");
+                System.exit(1);
+            }
+            if (health.type.equals("send_expect") && health.send == null && health.expect == null) {
+                logger.error("send_expect health_check of backend ["+backend.name+"] needs send or expect");
+                System.exit(1);
+            }
+            if (health.interval <= 0 || health.timeout <= 0 || health.timeout > Integer.MAX_VALUE
+                    || health.rise < 1 || health.fall < 1) {
+                logger.error("Invalid health_check settings for backend ["+backend.name+"]");
+                System.exit(1);
+            }
+
+            for (ServerConf server: backend.servers) {
+                if (server.weight == null || server.weight < 0 || server.weight > 1000) {
+                    logger.error("Weight of server "+server.addr_port+" in backend ["+backend.name+"] must be between 0 and 1000");
+                    System.exit(1);
+                }
+                if (server.weight != 1 && !backend.balance.equals("roundrobin")) {
+                    logger.warn("Weight of server "+server.addr_port+" in backend ["+backend.name+"] is only used by roundrobin balance");
+                }
+            }
+
+            if (backend.balance.equals("hash")) {
+                if (backend.hash_key == null || HashKey.parse(backend.hash_key) == null) {
+                    logger.error("Invalid hash_key "+backend.hash_key+" for backend ["+backend.name+"], expected client_ip, uri, header:Name, cookie:Name or query:Name");
+                    System.exit(1);
+                }
+                if (backend.hash_load_factor == null || backend.hash_load_factor <= 1) {
+                    logger.error("hash_load_factor of backend ["+backend.name+"] must be greater than 1");
+                    System.exit(1);
+                }
+            }
+
+            if (!backend.protocol.equals("http1") && !backend.protocol.equals("h2c") && !backend.protocol.equals("h2")) {
+                logger.error("Unknown protocol "+backend.protocol+" for backend ["+backend.name+"]");
+                System.exit(1);
+            }
+            if (health.type.equals("http") && !backend.protocol.equals("http1")) {
+                // Probe is a plaintext http1 GET, an h2 or h2c server would fail it while healthy
+                logger.error("http health_check of backend ["+backend.name+"] needs protocol http1, use connect or send_expect with "+backend.protocol);
+                System.exit(1);
+            }
+
+            if (backend.pool_size < 0 || backend.pool_max_conns < 0 || backend.pool_max_idle <= 0 || backend.pool_max_lifetime <= 0) {
+                logger.error("Invalid connection pool settings for backend ["+backend.name+"]");
+                System.exit(1);
+            }
+        }
     }
 }
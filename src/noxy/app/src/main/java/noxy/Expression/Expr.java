@@ -0,0 +1,482 @@
+package noxy.Expression;
+
+import java.util.regex.Pattern;
+
+import noxy.ServerConfig.HttpSettings;
+
+/// Compiled condition expression
+/// A tree of typed nodes checked once at parse time, evaluating it only reads
+/// request settings and never boxes values or builds bindings
+public abstract class Expr {
+    public static final int BOOL = 0;
+    public static final int STR  = 1;
+    public static final int NUM  = 2;
+
+    public int type;
+
+    Expr(int type) {
+        this.type = type;
+    }
+
+    /// Truth value, Groovy style for strings and numbers: non empty and non zero are true
+    public boolean test(HttpSettings s) {
+        if (this.type == STR) {
+            String v = this.str(s);
+            return v != null && !v.isEmpty();
+        }
+        return this.num(s) != 0;
+    }
+
+    public String str(HttpSettings s) {
+        if (this.type == BOOL) {
+            return this.test(s) ? "true" : "false";
+        }
+        return Long.toString(this.num(s));
+    }
+
+    public long num(HttpSettings s) {
+        throw new IllegalStateException("Not a number");
+    }
+
+    /// Record request attributes this expression reads
+    public void refs(Refs r) {
+    }
+
+    /// Host when this is host == 'literal', null otherwise
+    public String host_equals() {
+        return null;
+    }
+
+    /// Prefix when this is uri.startsWith('literal'), null otherwise
+    public String uri_prefix() {
+        return null;
+    }
+}
+
+class BoolConst extends Expr {
+    boolean value;
+
+    BoolConst(boolean value) {
+        super(BOOL);
+        this.value = value;
+    }
+
+    @Override
+    public boolean test(HttpSettings s) {
+        return this.value;
+    }
+}
+
+class StrConst extends Expr {
+    String value;
+
+    StrConst(String value) {
+        super(STR);
+        this.value = value;
+    }
+
+    @Override
+    public String str(HttpSettings s) {
+        return this.value;
+    }
+}
+
+class NumConst extends Expr {
+    long value;
+
+    NumConst(long value) {
+        super(NUM);
+        this.value = value;
+    }
+
+    @Override
+    public long num(HttpSettings s) {
+        return this.value;
+    }
+}
+
+/// Request attribute
+class Var extends Expr {
+    static final int SCHEME = 0;
+    static final int HOST   = 1;
+    static final int PORT   = 2;
+    static final int URI    = 3;
+    static final int METHOD = 4;
+    static final int CLIENT_IP = 5;
+
+    int field;
+
+    Var(int field, int type) {
+        super(type);
+        this.field = field;
+    }
+
+    @Override
+    public void refs(Refs r) {
+        switch (this.field) {
+            case SCHEME: r.scheme = true; break;
+            case HOST:   r.host   = true; break;
+            case PORT:   r.port   = true; break;
+            case METHOD: r.method = true; break;
+            case CLIENT_IP: r.client_ip = true; break;
+            default:     r.uri    = true; break;
+        }
+    }
+
+    static Var of(String name) {
+        switch (name) {
+            case "scheme": return new Var(SCHEME, STR);
+            case "host":   return new Var(HOST, STR);
+            case "port":   return new Var(PORT, NUM);
+            case "uri":    return new Var(URI, STR);
+            case "method": return new Var(METHOD, STR);
+            case "client_ip": return new Var(CLIENT_IP, STR);
+            default:       return null;
+        }
+    }
+
+    @Override
+    public String str(HttpSettings s) {
+        switch (this.field) {
+            case SCHEME: return s.scheme();
+            case HOST:   return s.host();
+            case URI:    return s.uri();
+            case METHOD: return s.method();
+            case CLIENT_IP: return s.client_ip();
+            default:     return Integer.toString(s.port());
+        }
+    }
+
+    @Override
+    public long num(HttpSettings s) {
+        return s.port();
+    }
+}
+
+/// Named request attribute: header('X-Tenant'), cookie('session'), query('lang')
+class Attr extends Expr {
+    static final int HEADER = 0;
+    static final int COOKIE = 1;
+    static final int QUERY  = 2;
+
+    int kind;
+    String name;
+
+    Attr(int kind, String name) {
+        super(STR);
+        this.kind = kind;
+        this.name = name;
+    }
+
+    @Override
+    public void refs(Refs r) {
+        switch (this.kind) {
+            case HEADER: Refs.add(r.headers, this.name); break;
+            case COOKIE: Refs.add(r.cookies, this.name); break;
+            default:     Refs.add(r.queries, this.name); break;
+        }
+    }
+
+    @Override
+    public String str(HttpSettings s) {
+        switch (this.kind) {
+            case HEADER: return s.header(this.name);
+            case COOKIE: return s.cookie(this.name);
+            default:     return s.query(this.name);
+        }
+    }
+}
+
+class Not extends Expr {
+    Expr e;
+
+    Not(Expr e) {
+        super(BOOL);
+        this.e = e;
+    }
+
+    @Override
+    public void refs(Refs r) {
+        this.e.refs(r);
+    }
+
+    @Override
+    public boolean test(HttpSettings s) {
+        return !this.e.test(s);
+    }
+}
+
+class And extends Expr {
+    Expr left, right;
+
+    And(Expr left, Expr right) {
+        super(BOOL);
+        this.left  = left;
+        this.right = right;
+    }
+
+    @Override
+    public void refs(Refs r) {
+        this.left.refs(r);
+        this.right.refs(r);
+    }
+
+    @Override
+    public boolean test(HttpSettings s) {
+        return this.left.test(s) && this.right.test(s);
+    }
+}
+
+class Or extends Expr {
+    Expr left, right;
+
+    Or(Expr left, Expr right) {
+        super(BOOL);
+        this.left  = left;
+        this.right = right;
+    }
+
+    @Override
+    public void refs(Refs r) {
+        this.left.refs(r);
+        this.right.refs(r);
+    }
+
+    @Override
+    public boolean test(HttpSettings s) {
+        return this.left.test(s) || this.right.test(s);
+    }
+}
+
+/// ==, !=, <, <=, >, >=, numeric when both sides are numbers, string otherwise
+class Compare extends Expr {
+    static final int EQ = 0;
+    static final int NE = 1;
+    static final int LT = 2;
+    static final int LE = 3;
+    static final int GT = 4;
+    static final int GE = 5;
+
+    int op;
+    Expr left, right;
+
+    Compare(int op, Expr left, Expr right) {
+        super(BOOL);
+        this.op    = op;
+        this.left  = left;
+        this.right = right;
+    }
+
+    @Override
+    public void refs(Refs r) {
+        this.left.refs(r);
+        this.right.refs(r);
+    }
+
+    @Override
+    public String host_equals() {
+        if (this.op != EQ) {
+            return null;
+        }
+        if (is_var(this.left, Var.HOST) && this.right instanceof StrConst) {
+            return ((StrConst)this.right).value;
+        }
+        if (is_var(this.right, Var.HOST) && this.left instanceof StrConst) {
+            return ((StrConst)this.left).value;
+        }
+        return null;
+    }
+
+    static boolean is_var(Expr e, int field) {
+        return e instanceof Var && ((Var)e).field == field;
+    }
+
+    @Override
+    public boolean test(HttpSettings s) {
+        int c;
+        if (this.left.type == NUM && this.right.type == NUM) {
+            c = Long.compare(this.left.num(s), this.right.num(s));
+        } else if (this.left.type == BOOL && this.right.type == BOOL) {
+            c = Boolean.compare(this.left.test(s), this.right.test(s));
+        } else {
+            String l = this.left.str(s);
+            String r = this.right.str(s);
+            if (l == null || r == null) {
+                c = (l == r) ? 0 : (l == null ? -1 : 1);
+            } else {
+                c = l.compareTo(r);
+            }
+        }
+
+        switch (this.op) {
+            case EQ: return c == 0;
+            case NE: return c != 0;
+            case LT: return c < 0;
+            case LE: return c <= 0;
+            case GT: return c > 0;
+            default: return c >= 0;
+        }
+    }
+}
+
+/// =~ finds pattern in value, ==~ and matches() need the whole value to match
+class Regex extends Expr {
+    Expr value;
+    Pattern pattern;
+    boolean whole;
+
+    Regex(Expr value, Pattern pattern, boolean whole) {
+        super(BOOL);
+        this.value   = value;
+        this.pattern = pattern;
+        this.whole   = whole;
+    }
+
+    @Override
+    public void refs(Refs r) {
+        this.value.refs(r);
+    }
+
+    @Override
+    public boolean test(HttpSettings s) {
+        String v = this.value.str(s);
+        if (v == null) {
+            return false;
+        }
+        return this.whole ? this.pattern.matcher(v).matches() : this.pattern.matcher(v).find();
+    }
+}
+
+/// startsWith, endsWith, contains, equalsIgnoreCase
+class StrTest extends Expr {
+    static final int STARTS  = 0;
+    static final int ENDS    = 1;
+    static final int CONTAINS = 2;
+    static final int EQUALS_IC = 3;
+
+    int op;
+    Expr value, arg;
+
+    StrTest(int op, Expr value, Expr arg) {
+        super(BOOL);
+        this.op    = op;
+        this.value = value;
+        this.arg   = arg;
+    }
+
+    @Override
+    public void refs(Refs r) {
+        String prefix = this.uri_prefix();
+        if (prefix != null) {
+            // Only the start of uri matters
+            r.uri_prefix = Math.max(r.uri_prefix, prefix.length());
+            return;
+        }
+        this.value.refs(r);
+        this.arg.refs(r);
+    }
+
+    @Override
+    public String uri_prefix() {
+        if (this.op == STARTS && Compare.is_var(this.value, Var.URI) && this.arg instanceof StrConst) {
+            return ((StrConst)this.arg).value;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean test(HttpSettings s) {
+        String v = this.value.str(s);
+        String a = this.arg.str(s);
+        if (v == null || a == null) {
+            return false;
+        }
+        switch (this.op) {
+            case STARTS:   return v.startsWith(a);
+            case ENDS:     return v.endsWith(a);
+            case CONTAINS: return v.contains(a);
+            default:       return v.equalsIgnoreCase(a);
+        }
+    }
+}
+
+/// toLowerCase, toUpperCase
+class StrCase extends Expr {
+    Expr value;
+    boolean upper;
+
+    StrCase(Expr value, boolean upper) {
+        super(STR);
+        this.value = value;
+        this.upper = upper;
+    }
+
+    @Override
+    public void refs(Refs r) {
+        this.value.refs(r);
+    }
+
+    @Override
+    public String str(HttpSettings s) {
+        String v = this.value.str(s);
+        if (v == null) {
+            return null;
+        }
+        return this.upper ? v.toUpperCase() : v.toLowerCase();
+    }
+}
+
+class Add extends Expr {
+    Expr left, right;
+
+    Add(Expr left, Expr right) {
+        super(left.type == NUM && right.type == NUM ? NUM : STR);
+        this.left  = left;
+        this.right = right;
+    }
+
+    @Override
+    public void refs(Refs r) {
+        this.left.refs(r);
+        this.right.refs(r);
+    }
+
+    @Override
+    public long num(HttpSettings s) {
+        return this.left.num(s) + this.right.num(s);
+    }
+
+    @Override
+    public String str(HttpSettings s) {
+        if (this.type == NUM) {
+            return Long.toString(this.num(s));
+        }
+        return this.left.str(s) + this.right.str(s);
+    }
+}
+
+/// GString "...${expr}..." and sprintf, parts are joined in one builder
+class Template extends Expr {
+    Expr[] parts;
+
+    Template(Expr[] parts) {
+        super(STR);
+        this.parts = parts;
+    }
+
+    @Override
+    public void refs(Refs r) {
+        for (Expr part : this.parts) {
+            part.refs(r);
+        }
+    }
+
+    @Override
+    public String str(HttpSettings s) {
+        StringBuilder sb = new StringBuilder();
+        for (Expr part : this.parts) {
+            sb.append(part.str(s));
+        }
+        return sb.toString();
+    }
+}
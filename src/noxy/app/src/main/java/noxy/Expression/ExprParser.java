@@ -0,0 +1,377 @@
+package noxy.Expression;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/// Condition expression parser
+/// Groovy compatible subset used by http conditions and redirects:
+/// 'strings', "GStrings ${expr}", numbers, true/false, request attributes (scheme, host,
+/// port, uri, method, client_ip, header('name'), cookie('name'), query('name')),
+/// == != < <= > >=, =~ ==~ with a literal pattern, && || ! and parentheses, +,
+/// sprintf('%s', ...) and the string methods startsWith, endsWith, contains,
+/// matches, equalsIgnoreCase, toLowerCase, toUpperCase
+public class ExprParser {
+    private String src;
+    private int pos;
+
+    private ExprParser(String src) {
+        this.src = src;
+        this.pos = 0;
+    }
+
+    /// Parse a whole expression, IllegalArgumentException tells what and where it's wrong
+    public static Expr parse(String src) {
+        ExprParser p = new ExprParser(src);
+        Expr e       = p.or();
+        p.skip_ws();
+        if (p.pos != p.src.length()) {
+            throw p.error("Unexpected '"+p.src.charAt(p.pos)+"'");
+        }
+        return e;
+    }
+
+    private IllegalArgumentException error(String msg) {
+        return new IllegalArgumentException(msg+" at position "+this.pos+" in: "+this.src);
+    }
+
+    private void skip_ws() {
+        while (this.pos < this.src.length() && Character.isWhitespace(this.src.charAt(this.pos))) {
+            this.pos++;
+        }
+    }
+
+    /// Consume op if it's next
+    private boolean accept(String op) {
+        this.skip_ws();
+        if (this.src.startsWith(op, this.pos)) {
+            this.pos += op.length();
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String op) {
+        if (!this.accept(op)) {
+            throw this.error("Expected '"+op+"'");
+        }
+    }
+
+    private Expr or() {
+        Expr e = this.and();
+        while (this.accept("||")) {
+            e = new Or(e, this.and());
+        }
+        return e;
+    }
+
+    private Expr and() {
+        Expr e = this.not();
+        while (this.accept("&&")) {
+            e = new And(e, this.not());
+        }
+        return e;
+    }
+
+    private Expr not() {
+        this.skip_ws();
+        if (this.src.startsWith("!", this.pos) && !this.src.startsWith("!=", this.pos)) {
+            this.pos++;
+            return new Not(this.not());
+        }
+        return this.compare();
+    }
+
+    private Expr compare() {
+        Expr left = this.add();
+
+        if (this.accept("==~")) {
+            return new Regex(left, this.pattern(this.add()), true);
+        }
+        if (this.accept("=~")) {
+            return new Regex(left, this.pattern(this.add()), false);
+        }
+
+        int op;
+        if (this.accept("==")) {
+            op = Compare.EQ;
+        } else if (this.accept("!=")) {
+            op = Compare.NE;
+        } else if (this.accept("<=")) {
+            op = Compare.LE;
+        } else if (this.accept(">=")) {
+            op = Compare.GE;
+        } else if (this.accept("<")) {
+            op = Compare.LT;
+        } else if (this.accept(">")) {
+            op = Compare.GT;
+        } else {
+            return left;
+        }
+        return new Compare(op, left, this.add());
+    }
+
+    /// Patterns are compiled once, so they must be literals
+    private Pattern pattern(Expr e) {
+        if (!(e instanceof StrConst)) {
+            throw this.error("Regex must be a string literal");
+        }
+        try {
+            return Pattern.compile(((StrConst)e).value);
+        } catch (PatternSyntaxException ex) {
+            throw this.error("Invalid regex: "+ex.getDescription());
+        }
+    }
+
+    private Expr add() {
+        Expr e = this.postfix();
+        while (this.accept("+")) {
+            e = new Add(e, this.postfix());
+        }
+        return e;
+    }
+
+    private Expr postfix() {
+        Expr e = this.primary();
+        while (this.accept(".")) {
+            String method = this.ident();
+            List<Expr> args = this.args();
+            e = this.method(e, method, args);
+        }
+        return e;
+    }
+
+    private Expr method(Expr value, String method, List<Expr> args) {
+        switch (method) {
+            case "startsWith":
+            case "endsWith":
+            case "contains":
+            case "equalsIgnoreCase":
+            case "matches":
+                if (args.size() != 1) {
+                    throw this.error(method+" takes one argument");
+                }
+                break;
+            case "toLowerCase":
+            case "toUpperCase":
+                if (args.size() != 0) {
+                    throw this.error(method+" takes no argument");
+                }
+                break;
+            default:
+                throw this.error("Unknown method "+method);
+        }
+
+        switch (method) {
+            case "startsWith":       return new StrTest(StrTest.STARTS, value, args.get(0));
+            case "endsWith":         return new StrTest(StrTest.ENDS, value, args.get(0));
+            case "contains":         return new StrTest(StrTest.CONTAINS, value, args.get(0));
+            case "equalsIgnoreCase": return new StrTest(StrTest.EQUALS_IC, value, args.get(0));
+            case "matches":          return new Regex(value, this.pattern(args.get(0)), true);
+            case "toLowerCase":      return new StrCase(value, false);
+            default:                 return new StrCase(value, true);
+        }
+    }
+
+    private List<Expr> args() {
+        List<Expr> args = new ArrayList<>();
+        this.expect("(");
+        if (this.accept(")")) {
+            return args;
+        }
+        do {
+            args.add(this.or());
+        } while (this.accept(","));
+        this.expect(")");
+        return args;
+    }
+
+    private String ident() {
+        this.skip_ws();
+        int start = this.pos;
+        while (this.pos < this.src.length()
+                && (Character.isLetterOrDigit(this.src.charAt(this.pos)) || this.src.charAt(this.pos) == '_')) {
+            this.pos++;
+        }
+        if (start == this.pos || Character.isDigit(this.src.charAt(start))) {
+            throw this.error("Expected a name");
+        }
+        return this.src.substring(start, this.pos);
+    }
+
+    private Expr primary() {
+        this.skip_ws();
+        if (this.pos >= this.src.length()) {
+            throw this.error("Unexpected end of expression");
+        }
+
+        char c = this.src.charAt(this.pos);
+        if (c == '(') {
+            this.pos++;
+            Expr e = this.or();
+            this.expect(")");
+            return e;
+        }
+        if (c == '\'') {
+            return new StrConst(this.quoted('\''));
+        }
+        if (c == '"') {
+            return this.gstring();
+        }
+        if (Character.isDigit(c)) {
+            int start = this.pos;
+            while (this.pos < this.src.length() && Character.isDigit(this.src.charAt(this.pos))) {
+                this.pos++;
+            }
+            return new NumConst(Long.parseLong(this.src.substring(start, this.pos)));
+        }
+
+        String name = this.ident();
+        if (name.equals("true")) {
+            return new BoolConst(true);
+        }
+        if (name.equals("false")) {
+            return new BoolConst(false);
+        }
+        if (name.equals("sprintf")) {
+            return this.sprintf(this.args());
+        }
+        if (name.equals("header") || name.equals("cookie") || name.equals("query")) {
+            List<Expr> args = this.args();
+            if (args.size() != 1 || !(args.get(0) instanceof StrConst)) {
+                throw this.error(name+" takes one string literal");
+            }
+            String attr = ((StrConst)args.get(0)).value;
+            switch (name) {
+                case "header": return new Attr(Attr.HEADER, attr);
+                case "cookie": return new Attr(Attr.COOKIE, attr);
+                default:       return new Attr(Attr.QUERY, attr);
+            }
+        }
+
+        Var var = Var.of(name);
+        if (var == null) {
+            throw this.error("Unknown attribute "+name);
+        }
+        return var;
+    }
+
+    /// Single quoted string, backslash escapes
+    private String quoted(char quote) {
+        StringBuilder sb = new StringBuilder();
+        this.pos++;
+        while (true) {
+            if (this.pos >= this.src.length()) {
+                throw this.error("Unterminated string");
+            }
+            char c = this.src.charAt(this.pos++);
+            if (c == quote) {
+                return sb.toString();
+            }
+            if (c == '\\') {
+                sb.append(this.escape());
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    private char escape() {
+        if (this.pos >= this.src.length()) {
+            throw this.error("Unterminated string");
+        }
+        char c = this.src.charAt(this.pos++);
+        switch (c) {
+            case 'n': return '\n';
+            case 't': return '\t';
+            case 'r': return '\r';
+            default:  return c;
+        }
+    }
+
+    /// Double quoted string with $name and ${expr} placeholders
+    private Expr gstring() {
+        List<Expr> parts = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        this.pos++;
+        while (true) {
+            if (this.pos >= this.src.length()) {
+                throw this.error("Unterminated string");
+            }
+            char c = this.src.charAt(this.pos++);
+            if (c == '"') {
+                break;
+            }
+            if (c == '\\') {
+                sb.append(this.escape());
+            } else if (c == '$' && this.pos < this.src.length() && this.src.charAt(this.pos) == '{') {
+                this.pos++;
+                flush_literal(parts, sb);
+                parts.add(this.or());
+                this.expect("}");
+            } else if (c == '$' && this.pos < this.src.length() && Character.isLetter(this.src.charAt(this.pos))) {
+                flush_literal(parts, sb);
+                String name = this.ident();
+                Var var     = Var.of(name);
+                if (var == null) {
+                    throw this.error("Unknown attribute "+name);
+                }
+                parts.add(var);
+            } else {
+                sb.append(c);
+            }
+        }
+        flush_literal(parts, sb);
+
+        if (parts.isEmpty()) {
+            return new StrConst("");
+        }
+        if (parts.size() == 1 && parts.get(0) instanceof StrConst) {
+            return parts.get(0);
+        }
+        return new Template(parts.toArray(new Expr[0]));
+    }
+
+    private static void flush_literal(List<Expr> parts, StringBuilder sb) {
+        if (sb.length() > 0) {
+            parts.add(new StrConst(sb.toString()));
+            sb.setLength(0);
+        }
+    }
+
+    /// sprintf with %s, %d and %%, format must be a literal so it's split once here
+    private Expr sprintf(List<Expr> args) {
+        if (args.isEmpty() || !(args.get(0) instanceof StrConst)) {
+            throw this.error("sprintf format must be a string literal");
+        }
+        String format    = ((StrConst)args.get(0)).value;
+        List<Expr> parts = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        int arg          = 1;
+        for (int i = 0; i < format.length(); i++) {
+            char c = format.charAt(i);
+            if (c != '%') {
+                sb.append(c);
+                continue;
+            }
+            if (++i >= format.length()) {
+                throw this.error("Incomplete sprintf specifier");
+            }
+            char spec = format.charAt(i);
+            if (spec == '%') {
+                sb.append('%');
+            } else if (spec == 's' || spec == 'd') {
+                if (arg >= args.size()) {
+                    throw this.error("Missing sprintf argument");
+                }
+                flush_literal(parts, sb);
+                parts.add(args.get(arg++));
+            } else {
+                throw this.error("Unsupported sprintf specifier %"+spec);
+            }
+        }
+        flush_literal(parts, sb);
+        return new Template(parts.toArray(new Expr[0]));
+    }
+}
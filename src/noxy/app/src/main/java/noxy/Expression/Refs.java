@@ -0,0 +1,31 @@
+package noxy.Expression;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/// Request attributes a set of expressions reads, outcome of evaluating
+/// them only depends on these
+public class Refs {
+    public boolean scheme;
+    public boolean host;
+    public boolean port;
+    public boolean uri;       // whole uri is read
+    public int uri_prefix;    // otherwise only this many first chars of it, through startsWith
+    public boolean method;
+    public boolean client_ip;
+    public List<String> headers = new ArrayList<>();
+    public List<String> cookies = new ArrayList<>();
+    public List<String> queries = new ArrayList<>();
+    public boolean opaque;    // scripts may read anything, including any header
+
+    /// Anything may be read, for expressions that can't be inspected
+    public void all() {
+        this.opaque = true;
+    }
+
+    static void add(List<String> names, String name) {
+        if (!names.contains(name)) {
+            names.add(name);
+        }
+    }
+}
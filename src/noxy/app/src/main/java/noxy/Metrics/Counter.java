@@ -0,0 +1,32 @@
+package noxy.Metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/// Striped counter, also used as gauge with negative adds
+public class Counter {
+    private AtomicLongArray cells;
+
+    public Counter() {
+        this.cells = new AtomicLongArray(Stripes.COUNT * Stripes.PAD);
+    }
+
+    public void add(long n) {
+        this.cells.getAndAdd(Stripes.index() * Stripes.PAD, n);
+    }
+
+    public void increment() {
+        this.add(1);
+    }
+
+    public void decrement() {
+        this.add(-1);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < Stripes.COUNT; i++) {
+            sum += this.cells.get(i * Stripes.PAD);
+        }
+        return sum;
+    }
+}
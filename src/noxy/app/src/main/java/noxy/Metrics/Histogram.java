@@ -0,0 +1,58 @@
+package noxy.Metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/// Striped latency histogram with fixed buckets
+/// Every stripe holds its bucket counts followed by the sum of recorded values,
+/// 16 longs so stripes stay on distinct cache lines
+public class Histogram {
+    // Upper bounds in seconds, a last bucket takes everything above
+    public static final double[] BOUNDS = {
+        0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+
+    private static final long[] BOUNDS_NS = new long[BOUNDS.length];
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUNDS_NS[i] = (long)(BOUNDS[i] * 1e9);
+        }
+    }
+
+    private static final int SUM   = BOUNDS.length + 1;
+    private static final int WIDTH = BOUNDS.length + 2;
+
+    private AtomicLongArray cells;
+
+    public Histogram() {
+        this.cells = new AtomicLongArray(Stripes.COUNT * WIDTH);
+    }
+
+    public void record(long nanos) {
+        int bucket = 0;
+        while (bucket < BOUNDS_NS.length && nanos > BOUNDS_NS[bucket]) {
+            bucket++;
+        }
+        int base = Stripes.index() * WIDTH;
+        this.cells.getAndIncrement(base + bucket);
+        this.cells.getAndAdd(base + SUM, nanos);
+    }
+
+    /// Count of every bucket, not cumulative, last one is above all bounds
+    public long[] counts() {
+        long[] counts = new long[BOUNDS.length + 1];
+        for (int stripe = 0; stripe < Stripes.COUNT; stripe++) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += this.cells.get(stripe * WIDTH + i);
+            }
+        }
+        return counts;
+    }
+
+    public long sum_nanos() {
+        long sum = 0;
+        for (int stripe = 0; stripe < Stripes.COUNT; stripe++) {
+            sum += this.cells.get(stripe * WIDTH + SUM);
+        }
+        return sum;
+    }
+}
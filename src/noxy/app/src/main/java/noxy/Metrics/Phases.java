@@ -0,0 +1,160 @@
+package noxy.Metrics;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.util.AttributeKey;
+import noxy.ServerConfig.FrontendConf;
+
+/// Phase timing of a tcp connection or an http request
+/// Every step stamps System.nanoTime when it's over, slow ones are written to the
+/// slow log with time spent in each phase. Stamps may come out of order (tcp connects
+/// to backend while TLS handshake goes on) so phases are reported in time order
+public class Phases {
+    // Accept and handshake times of a client connection, taken by its first request
+    static AttributeKey<long[]> CONNECTION = AttributeKey.valueOf("noxy.phases.connection");
+
+    public enum Phase {
+        TLS("tls"),
+        ROUTE("route"),
+        BALANCE("balance"),
+        CONNECT("connect"),
+        REQUEST("request"),
+        FIRST_BYTE("first_byte"),
+        END("transfer");
+
+        public String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    private FrontendConf frontend;
+    private SocketAddress client;
+
+    private long start;
+    private long[] stamps;
+    private int retries;
+    private boolean finished;
+
+    public String backend;
+    public InetSocketAddress server;
+
+    public Phases(FrontendConf frontend) {
+        this.frontend = frontend;
+        this.stamps   = new long[Phase.values().length];
+        this.finished = true;
+    }
+
+    /// Client connection accepted
+    public static void accepted(Channel ch) {
+        ch.attr(CONNECTION).set(new long[] { System.nanoTime(), 0 });
+    }
+
+    /// TLS handshake of client connection done
+    public static void handshaken(Channel ch) {
+        long[] conn = ch.attr(CONNECTION).get();
+        if (conn != null) {
+            conn[1] = System.nanoTime();
+        }
+    }
+
+    /// Start timing a connection or a request, the first one of a connection
+    /// starts at accept and includes the TLS handshake
+    public void begin(Channel ch) {
+        Channel conn = ch instanceof Http2StreamChannel ? ch.parent() : ch;
+
+        this.client   = conn.remoteAddress();
+        this.retries  = 0;
+        this.finished = false;
+        this.backend  = null;
+        this.server   = null;
+        for (int i = 0; i < this.stamps.length; i++) {
+            this.stamps[i] = 0;
+        }
+
+        long[] setup = conn.attr(CONNECTION).getAndSet(null);
+        if (setup != null) {
+            this.start                       = setup[0];
+            this.stamps[Phase.TLS.ordinal()]   = setup[1];
+        } else {
+            this.start = System.nanoTime();
+        }
+    }
+
+    public void stamp(Phase phase) {
+        this.stamps[phase.ordinal()] = System.nanoTime();
+    }
+
+    /// First stamp of phase only, for phases that may happen again (first byte)
+    public void stamp_once(Phase phase) {
+        if (this.stamps[phase.ordinal()] == 0) {
+            this.stamp(phase);
+        }
+    }
+
+    /// A backend connection failed and another one is tried
+    public void retry() {
+        this.retries += 1;
+    }
+
+    /// Connection or request is over, written to slow log when it took too long
+    public void finish(String what) {
+        if (this.finished) {
+            return;
+        }
+        this.finished = true;
+        this.stamp(Phase.END);
+
+        long total = this.stamps[Phase.END.ordinal()] - this.start;
+        if (this.frontend.slow_log > 0 && total >= this.frontend.slow_log * 1000000L) {
+            SlowLog.log(this, what, total);
+        }
+    }
+
+    public boolean finished() {
+        return this.finished;
+    }
+
+    /// Phases in time order with their duration
+    String breakdown(String what, long total) {
+        List<Phase> order = new ArrayList<>();
+        for (Phase phase : Phase.values()) {
+            if (this.stamps[phase.ordinal()] != 0) {
+                order.add(phase);
+            }
+        }
+        order.sort((a, b) -> Long.compare(this.stamps[a.ordinal()], this.stamps[b.ordinal()]));
+
+        StringBuilder out = new StringBuilder(256);
+        out.append("Slow ").append(what).append(" frontend=").append(this.frontend.name)
+            .append(" client=").append(this.client);
+        if (this.backend != null) {
+            out.append(" backend=").append(this.backend);
+        }
+        if (this.server != null) {
+            out.append(" server=").append(this.server.getHostString()).append(':').append(this.server.getPort());
+        }
+        out.append(" total=").append(millis(total));
+
+        long prev = this.start;
+        for (Phase phase : order) {
+            long stamp = this.stamps[phase.ordinal()];
+            out.append(' ').append(phase.label).append('=').append(millis(stamp - prev));
+            if (phase == Phase.CONNECT && this.retries > 0) {
+                out.append(" retries=").append(this.retries);
+            }
+            prev = stamp;
+        }
+        return out.toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3fms", nanos / 1e6);
+    }
+}
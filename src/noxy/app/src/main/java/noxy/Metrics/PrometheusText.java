@@ -0,0 +1,61 @@
+package noxy.Metrics;
+
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.function.Function;
+
+/// Prometheus text exposition format
+/// Samples of a family must follow its HELP and TYPE lines, so every
+/// metric is written for all its label sets at once
+public class PrometheusText {
+    private StringBuilder out = new StringBuilder(8192);
+
+    public <T> void metric(String name, String type, String help, Collection<T> items,
+            Function<T, String> labels, Function<T, Number> value) {
+        this.family(name, type, help);
+        for (T item : items) {
+            Number val = value.apply(item);
+            if (val != null) {
+                this.sample(name, labels.apply(item), val);
+            }
+        }
+    }
+
+    /// Latency histogram, buckets and sum in seconds
+    public <T> void histogram(String name, String help, Collection<T> items,
+            Function<T, String> labels, Function<T, Histogram> histogram) {
+        this.family(name, "histogram", help);
+        for (T item : items) {
+            String lbl     = labels.apply(item);
+            Histogram hist = histogram.apply(item);
+            long[] counts  = hist.counts();
+            long total     = 0;
+            for (int i = 0; i < counts.length; i++) {
+                total += counts[i];
+                String le = i < Histogram.BOUNDS.length ? BigDecimal.valueOf(Histogram.BOUNDS[i]).toPlainString() : "+Inf";
+                this.sample(name+"_bucket", lbl+",le=\""+le+"\"", total);
+            }
+            this.sample(name+"_sum", lbl, hist.sum_nanos() / 1e9);
+            this.sample(name+"_count", lbl, total);
+        }
+    }
+
+    private void family(String name, String type, String help) {
+        this.out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        this.out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private void sample(String name, String labels, Number value) {
+        this.out.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    /// label="value" with value escaped
+    public static String label(String label, String value) {
+        return label+"=\""+value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")+"\"";
+    }
+
+    @Override
+    public String toString() {
+        return this.out.toString();
+    }
+}
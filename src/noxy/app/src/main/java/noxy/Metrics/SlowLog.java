@@ -0,0 +1,42 @@
+package noxy.Metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/// Slow connections and requests log
+/// At most rate lines per second are written so a backend going slow doesn't
+/// turn into a logging storm, dropped lines are counted in the next one
+public class SlowLog {
+    static Logger logger = LogManager.getLogger(SlowLog.class);
+
+    static long rate = 10;
+
+    private static AtomicLong second  = new AtomicLong(0);
+    private static AtomicLong written = new AtomicLong(0);
+    private static AtomicLong dropped = new AtomicLong(0);
+
+    public static void init(long lines_per_second) {
+        rate = lines_per_second;
+    }
+
+    static void log(Phases phases, String what, long total) {
+        long now = System.nanoTime() / 1000000000L;
+        long cur = second.get();
+        if (cur != now && second.compareAndSet(cur, now)) {
+            written.set(0);
+        }
+        if (written.incrementAndGet() > rate) {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        String line     = phases.breakdown(what, total);
+        long suppressed = dropped.getAndSet(0);
+        if (suppressed > 0) {
+            line += " ("+suppressed+" slow lines dropped before)";
+        }
+        logger.warn(line);
+    }
+}
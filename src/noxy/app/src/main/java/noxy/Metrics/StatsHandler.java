@@ -0,0 +1,109 @@
+package noxy.Metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.util.CharsetUtil;
+import noxy.ServerInit;
+import noxy.Cache.ResponseCache;
+import noxy.Server.BackendStats;
+import noxy.Server.FrontendStats;
+import noxy.Server.ServerStats;
+
+/// Serves frontend and backend server metrics on GET /metrics, in prometheus text format
+public class StatsHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+    static String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest req) {
+        FullHttpResponse response;
+        if (!req.method().equals(HttpMethod.GET) || !req.uri().split("\\?")[0].equals("/metrics")) {
+            response = new DefaultFullHttpResponse(req.protocolVersion(), HttpResponseStatus.NOT_FOUND);
+        } else {
+            response = new DefaultFullHttpResponse(req.protocolVersion(), HttpResponseStatus.OK,
+                Unpooled.copiedBuffer(render(), CharsetUtil.UTF_8));
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE);
+        }
+        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+
+        if (HttpUtil.isKeepAlive(req)) {
+            HttpUtil.setKeepAlive(response, true);
+            ctx.writeAndFlush(response);
+        } else {
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    public static String render() {
+        PrometheusText out = new PrometheusText();
+
+        Collection<FrontendStats> frontends = ServerInit.frontend_stats.values();
+        Function<FrontendStats, String> fl  = f -> PrometheusText.label("frontend", f.name);
+
+        out.metric("noxy_frontend_connections_accepted_total", "counter", "Client connections accepted",
+            frontends, fl, f -> f.accepted.sum());
+        out.metric("noxy_frontend_connections_rejected_total", "counter", "Client connections refused by maxconn limits",
+            frontends, fl, f -> f.rejected.sum());
+        out.metric("noxy_frontend_connections_active", "gauge", "Open client connections",
+            frontends, fl, f -> f.limits.active());
+        out.metric("noxy_frontend_bytes_received_total", "counter", "Bytes read from clients, spliced relays excluded",
+            frontends, fl, f -> f.bytes_in.sum());
+        out.metric("noxy_frontend_bytes_sent_total", "counter", "Bytes written to clients, spliced relays excluded",
+            frontends, fl, f -> f.bytes_out.sum());
+        out.metric("noxy_frontend_backend_retries_total", "counter", "Backend connections tried again on another server",
+            frontends, fl, f -> f.retries.sum());
+        out.metric("noxy_frontend_read_paused_total", "counter", "Reads paused until the other side drained its buffer",
+            frontends, fl, f -> f.paused.sum());
+        out.metric("noxy_frontend_cache_hits_total", "counter", "Requests answered with a cached response, fresh or revalidated",
+            frontends, fl, f -> cache(f) == null ? null : cache(f).hits.sum());
+        out.metric("noxy_frontend_cache_misses_total", "counter", "Cacheable requests answered with the backend's response",
+            frontends, fl, f -> cache(f) == null ? null : cache(f).misses.sum());
+        out.metric("noxy_frontend_route_cache_hits_total", "counter", "Routing decisions taken from route cache",
+            frontends, fl, f -> f.route_cache == null ? null : f.route_cache.hits.sum());
+        out.metric("noxy_frontend_route_cache_misses_total", "counter", "Routing decisions evaluated from http conditions",
+            frontends, fl, f -> f.route_cache == null ? null : f.route_cache.misses.sum());
+
+        List<ServerStats> servers = new ArrayList<>();
+        for (BackendStats backend : ServerInit.backend_stats.values()) {
+            servers.addAll(backend.servers);
+        }
+        Function<ServerStats, String> sl = s -> PrometheusText.label("backend", s.backend)+","
+            +PrometheusText.label("server", s.addr_port.getHostString()+":"+s.addr_port.getPort());
+
+        out.metric("noxy_server_up", "gauge", "Server passed its last health check",
+            servers, sl, s -> ServerInit.balance_algorithm.get(s.backend).is_up(s.id) ? 1 : 0);
+        out.metric("noxy_server_connections_total", "counter", "Connections established to server",
+            servers, sl, s -> s.connections.sum());
+        out.metric("noxy_server_connections_active", "gauge", "Open connections to server, pooled ones included",
+            servers, sl, s -> s.active.sum());
+        out.metric("noxy_server_connect_failures_total", "counter", "Connections or streams to server that failed to open",
+            servers, sl, s -> s.connect_failures.sum());
+        out.metric("noxy_server_bytes_received_total", "counter", "Bytes read from server, spliced relays excluded",
+            servers, sl, s -> s.bytes_in.sum());
+        out.metric("noxy_server_bytes_sent_total", "counter", "Bytes written to server, spliced relays excluded",
+            servers, sl, s -> s.bytes_out.sum());
+        out.histogram("noxy_server_connect_seconds", "Time to establish a usable connection to server, TLS included",
+            servers, sl, s -> s.connect_time);
+        out.histogram("noxy_server_first_byte_seconds", "Time from request sent to first byte of response",
+            servers, sl, s -> s.first_byte);
+
+        return out.toString();
+    }
+
+    private static ResponseCache cache(FrontendStats frontend) {
+        return ServerInit.response_cache.get(frontend.name);
+    }
+}
@@ -0,0 +1,38 @@
+package noxy.Metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.util.concurrent.FastThreadLocal;
+
+/// Thread stripes of metrics
+/// Every thread recording metrics gets its own slot, event loops never share one while
+/// there are fewer loops than stripes, so recording is an uncontended add on a cache line
+/// nobody else writes. Readers add all slots together
+public class Stripes {
+    // Longs in a 64 bytes cache line, slots are at least that far apart
+    static final int PAD = 8;
+
+    static final int COUNT = stripes(Runtime.getRuntime().availableProcessors() * 2);
+
+    private static AtomicInteger next = new AtomicInteger(0);
+
+    private static FastThreadLocal<Integer> index = new FastThreadLocal<Integer>() {
+        @Override
+        protected Integer initialValue() {
+            return next.getAndIncrement() & (COUNT - 1);
+        }
+    };
+
+    /// Slot of calling thread
+    static int index() {
+        return index.get();
+    }
+
+    private static int stripes(int threads) {
+        int count = 1;
+        while (count < threads) {
+            count <<= 1;
+        }
+        return count;
+    }
+}
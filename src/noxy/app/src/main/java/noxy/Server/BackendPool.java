@@ -0,0 +1,159 @@
+package noxy.Server;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.channel.Channel;
+import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.netty.util.concurrent.FastThreadLocal;
+
+class ServerConns {
+    public ArrayDeque<Channel> idle;
+    public ArrayDeque<Consumer<Channel>> waiters;
+    public int open; // idle and busy connections, including the ones being established
+
+    public ServerConns() {
+        this.idle    = new ArrayDeque<>();
+        this.waiters = new ArrayDeque<>();
+        this.open    = 0;
+    }
+}
+
+/// Backend connection pool
+/// Keeps idle keep-alive connections to the servers of a backend, every event loop
+/// owns its own connections so checkout and release never need locking.
+/// When max_conns is set, requests above it wait for a connection to be released,
+/// so connections to a server grow with real concurrency and not with number of clients or streams
+public class BackendPool {
+    static Logger logger = LogManager.getLogger(BackendPool.class);
+
+    private int size;
+    private int max_conns;
+    private long max_idle;
+    private long max_lifetime;
+
+    private FastThreadLocal<HashMap<InetSocketAddress, ServerConns>> servers;
+
+    public BackendPool(int size, int max_conns, long max_idle, long max_lifetime) {
+        this.size         = size;
+        this.max_conns    = max_conns;
+        this.max_idle     = max_idle;
+        this.max_lifetime = max_lifetime;
+        this.servers      = new FastThreadLocal<HashMap<InetSocketAddress, ServerConns>>() {
+            @Override
+            protected HashMap<InetSocketAddress, ServerConns> initialValue() {
+                return new HashMap<>();
+            }
+        };
+    }
+
+    private ServerConns server(InetSocketAddress addr_port) {
+        return this.servers.get().computeIfAbsent(addr_port, k -> new ServerConns());
+    }
+
+    /// Take an idle connection to server, null if none is usable.
+    /// Must be called from the event loop that will use the connection
+    public Channel acquire(InetSocketAddress addr_port) {
+        ServerConns conns = this.server(addr_port);
+
+        // Most recently released first, it's the least likely to have been closed by server
+        Channel ch;
+        while ((ch = conns.idle.pollLast()) != null) {
+            if (this.usable(ch)) {
+                return ch;
+            }
+            ch.close();
+        }
+        return null;
+    }
+
+    /// Ask to open a new connection to server, false if max_conns is reached
+    public boolean reserve(InetSocketAddress addr_port) {
+        ServerConns conns = this.server(addr_port);
+        if (this.max_conns > 0 && conns.open >= this.max_conns) {
+            if (conns.waiters.isEmpty()) {
+                // Once each time requests start waiting
+                logger.warn("Backend server "+addr_port+" reached pool_max_conns ("+this.max_conns+") on this thread, requests wait for a free connection");
+            }
+            return false;
+        }
+        conns.open += 1;
+        return true;
+    }
+
+    /// Account for a new connection, call once reserve succeeded and connection is created
+    public void opened(Channel ch, InetSocketAddress addr_port) {
+        ch.closeFuture().addListener(future -> {
+            ServerConns conns = this.server(addr_port);
+            conns.open -= 1;
+            conns.idle.remove(ch);
+
+            // A slot is free, next waiter can open its own connection
+            Consumer<Channel> waiter = conns.waiters.poll();
+            if (waiter != null && this.reserve(addr_port)) {
+                waiter.accept(null);
+            }
+        });
+    }
+
+    /// Wait for a connection to server, waiter gets a released connection,
+    /// or null when it's allowed to open a new one
+    public void queue(InetSocketAddress addr_port, Consumer<Channel> waiter) {
+        this.server(addr_port).waiters.add(waiter);
+    }
+
+    /// Stop waiting, when waiter gave up
+    public void cancel(InetSocketAddress addr_port, Consumer<Channel> waiter) {
+        this.server(addr_port).waiters.remove(waiter);
+    }
+
+    /// Give back a connection whose last response completed cleanly,
+    /// it's closed instead if it can't be kept
+    public void release(Channel ch, InetSocketAddress addr_port) {
+        if (!this.usable(ch)) {
+            ch.close();
+            return;
+        }
+
+        // Reads may have been paused by a slow client
+        FrontendStats.unhold(ch);
+
+        ServerConns conns = this.server(addr_port);
+
+        // Someone is waiting for this server, handing connection over directly
+        Consumer<Channel> waiter = conns.waiters.poll();
+        if (waiter != null) {
+            waiter.accept(ch);
+            return;
+        }
+
+        if (this.size == 0) {
+            ch.close();
+            return;
+        }
+        if (conns.idle.size() >= this.size) {
+            conns.idle.removeIf(c -> !c.isActive());
+            if (conns.idle.size() >= this.size) {
+                ch.close();
+                return;
+            }
+        }
+
+        // While idle the read timeout enforces max idle time, reading also
+        // makes sure we notice when server closes it
+        ch.pipeline().replace("readTimeoutHandler", "readTimeoutHandler", new ReadTimeoutHandler(this.max_idle, TimeUnit.MILLISECONDS));
+        conns.idle.addLast(ch);
+        logger.debug("Backend connection "+ch.remoteAddress()+" back in pool");
+    }
+
+    private boolean usable(Channel ch) {
+        ProxyModeBackendHandler handler = ch.pipeline().get(ProxyModeBackendHandler.class);
+        return ch.isActive() && handler != null && !handler.expired(this.max_lifetime);
+    }
+}
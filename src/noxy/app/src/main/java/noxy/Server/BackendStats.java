@@ -0,0 +1,38 @@
+package noxy.Server;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+
+/// Backend statistics
+/// One set of counters per server, in the order balancers number them
+public class BackendStats {
+    public String name;
+    public List<ServerStats> servers;
+
+    private HashMap<InetSocketAddress, ServerStats> by_addr;
+
+    public BackendStats(String name, List<Pair<String, InetSocketAddress>> servers) {
+        this.name    = name;
+        this.servers = new ArrayList<>();
+        this.by_addr = new HashMap<>();
+        for (Pair<String, InetSocketAddress> server : servers) {
+            ServerStats stats = new ServerStats(name, this.servers.size(), server.getRight());
+            this.servers.add(stats);
+            this.by_addr.putIfAbsent(server.getRight(), stats);
+        }
+    }
+
+    /// Server of a balancer's tracker id
+    public ServerStats server(int id) {
+        return this.servers.get(id);
+    }
+
+    public ServerStats server(InetSocketAddress addr_port) {
+        return this.by_addr.get(addr_port);
+    }
+}
@@ -0,0 +1,40 @@
+package noxy.Server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import noxy.Metrics.Counter;
+
+/// Counts bytes going through a channel, placed first in the pipeline
+/// so it sees what goes on the wire, TLS included
+@Sharable
+public class ByteCounter extends ChannelDuplexHandler {
+    private Counter in;
+    private Counter out;
+
+    public ByteCounter(Counter in, Counter out) {
+        this.in  = in;
+        this.out = out;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof ByteBuf) {
+            this.in.add(((ByteBuf)msg).readableBytes());
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof ByteBuf) {
+            this.out.add(((ByteBuf)msg).readableBytes());
+        } else if (msg instanceof FileRegion) {
+            this.out.add(((FileRegion)msg).count());
+        }
+        ctx.write(msg, promise);
+    }
+}
@@ -14,18 +14,28 @@ public class ConnectionLimits {
         this.frontend_maxconn_counter = new AtomicLong(0L);
     }
 
+    /// Only an accepted connection is counted, connection_finished must be called once it's
+    /// closed. A refused one is taken back right away and must not be finished
     public boolean new_connection() {
         if (ConnectionLimits.global_maxconn_counter.incrementAndGet() > ConnectionLimits.global_maxconn) {
+            ConnectionLimits.global_maxconn_counter.decrementAndGet();
             return false;
         }
 
         if (this.frontend_maxconn_counter.incrementAndGet() > this.frontend_maxconn) {
+            this.frontend_maxconn_counter.decrementAndGet();
+            ConnectionLimits.global_maxconn_counter.decrementAndGet();
             return false;
         }
 
         return true;
     }
 
+    /// Open connections of frontend
+    public long active() {
+        return this.frontend_maxconn_counter.get();
+    }
+
     public void connection_finished() {
         ConnectionLimits.global_maxconn_counter.decrementAndGet();
         this.frontend_maxconn_counter.decrementAndGet();
@@ -0,0 +1,88 @@
+package noxy.Server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import noxy.Metrics.Counter;
+import noxy.ServerConfig.RouteCache;
+
+/// Frontend statistics
+/// Counters shared by all connections of a frontend
+public class FrontendStats {
+    static Logger logger = LogManager.getLogger(FrontendStats.class);
+
+    // Set on channels pause() stopped, only those are resumed when their peer drains
+    static AttributeKey<Boolean> PAUSED = AttributeKey.valueOf("noxy.paused");
+
+    public String name;
+
+    // Number of times reading from one side was paused because the other side's
+    // outbound buffer went above the high watermark
+    public Counter paused;
+
+    public Counter accepted;
+    public Counter rejected; // refused by connection limits
+    public Counter retries; // backend connections tried again on another server
+    public Counter bytes_in; // from clients, spliced bytes are not seen
+    public Counter bytes_out; // to clients
+
+    public ByteCounter bytes; // counts bytes_in/out, first handler of client pipelines
+
+    public ConnectionLimits limits;
+    public RouteCache route_cache; // null when frontend has none
+
+    public FrontendStats(String name, ConnectionLimits limits) {
+        this.name      = name;
+        this.limits    = limits;
+        this.paused    = new Counter();
+        this.accepted  = new Counter();
+        this.rejected  = new Counter();
+        this.retries   = new Counter();
+        this.bytes_in  = new Counter();
+        this.bytes_out = new Counter();
+        this.bytes     = new ByteCounter(this.bytes_in, this.bytes_out);
+    }
+
+    /// Account for a new client connection, false when limits refuse it
+    public boolean accept() {
+        if (!this.limits.new_connection()) {
+            this.rejected.increment();
+            return false;
+        }
+        this.accepted.increment();
+        return true;
+    }
+
+    /// Stop reading from a channel until its peer drained its outbound buffer
+    public void pause(Channel reader) {
+        if (reader.config().isAutoRead()) {
+            reader.config().setAutoRead(false);
+            reader.attr(PAUSED).set(true);
+            this.paused.increment();
+            logger.debug("Frontend ["+this.name+"] paused reading from "+reader.remoteAddress()
+                    +", "+this.paused.sum()+" pauses so far");
+        }
+    }
+
+    /// Peer of reader drained its outbound buffer, reader goes on if pause() stopped it.
+    /// Channels stopped by hold() stay as they are
+    public static void resume(Channel reader) {
+        if (Boolean.TRUE.equals(reader.attr(PAUSED).getAndSet(false))) {
+            reader.config().setAutoRead(true);
+        }
+    }
+
+    /// Stop reading from a channel because of where its request is, whatever its peer's buffer
+    public static void hold(Channel reader) {
+        reader.attr(PAUSED).set(false);
+        reader.config().setAutoRead(false);
+    }
+
+    /// Read from a channel again, undoing hold() and pause()
+    public static void unhold(Channel reader) {
+        reader.attr(PAUSED).set(false);
+        reader.config().setAutoRead(true);
+    }
+}
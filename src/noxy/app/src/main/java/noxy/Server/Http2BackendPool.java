@@ -0,0 +1,248 @@
+package noxy.Server;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import io.netty.handler.ssl.ApplicationProtocolConfig.Protocol;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectedListenerFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectorFailureBehavior;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import noxy.ServerConfig.FrontendConf;
+
+class Http2ServerConns {
+    public ArrayList<Channel> conns;
+    public Future<Channel> connecting; // connection being established, streams wait for it
+
+    public Http2ServerConns() {
+        this.conns      = new ArrayList<>();
+        this.connecting = null;
+    }
+}
+
+/// HTTP/2 backend connections
+/// A few multiplexed connections per server and per event loop, every request is
+/// sent as a stream on one of them. A new connection is only opened when all existing
+/// ones reached the server's max concurrent streams
+public class Http2BackendPool {
+    static Logger logger = LogManager.getLogger(Http2BackendPool.class);
+
+    static AttributeKey<Long> CREATED = AttributeKey.valueOf("noxy.h2.created");
+
+    private SslContext ssl_ctx; // null for h2c
+    private int max_conns;
+    private long max_idle;
+    private long max_lifetime;
+    private BackendStats stats;
+
+    private FastThreadLocal<HashMap<InetSocketAddress, Http2ServerConns>> servers;
+
+    public Http2BackendPool(String protocol, String ca, int max_conns, long max_idle, long max_lifetime,
+            BackendStats stats) throws SSLException {
+        this.stats        = stats;
+        this.max_conns    = max_conns;
+        this.max_idle     = max_idle;
+        this.max_lifetime = max_lifetime;
+        this.servers      = new FastThreadLocal<HashMap<InetSocketAddress, Http2ServerConns>>() {
+            @Override
+            protected HashMap<InetSocketAddress, Http2ServerConns> initialValue() {
+                return new HashMap<>();
+            }
+        };
+
+        if (protocol.equals("h2")) {
+            SslContextBuilder builder = SslContextBuilder.forClient()
+                .ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+                .applicationProtocolConfig(new ApplicationProtocolConfig(Protocol.ALPN,
+                    SelectorFailureBehavior.NO_ADVERTISE, SelectedListenerFailureBehavior.ACCEPT,
+                    ApplicationProtocolNames.HTTP_2));
+            if (ca != null) {
+                builder.trustManager(new File(ca));
+            }
+            this.ssl_ctx = builder.build();
+        }
+    }
+
+    private Http2ServerConns server(InetSocketAddress addr_port) {
+        return this.servers.get().computeIfAbsent(addr_port, k -> new Http2ServerConns());
+    }
+
+    /// Open a stream to server on one of the connections owned by loop, promise gets the stream channel
+    public void open_stream(EventLoop loop, InetSocketAddress addr_port, FrontendConf frontend,
+            ChannelHandler stream_handler, Promise<Channel> promise) {
+        Http2ServerConns server = this.server(addr_port);
+
+        for (Channel parent : server.conns) {
+            if (this.can_open_stream(parent)) {
+                new Http2StreamChannelBootstrap(parent)
+                    .handler(stream_handler)
+                    .open()
+                    .addListener((Future<Http2StreamChannel> future) -> {
+                        if (future.isSuccess()) {
+                            promise.setSuccess(future.getNow());
+                        } else {
+                            promise.setFailure(future.cause());
+                        }
+                    });
+                return;
+            }
+        }
+
+        if (server.connecting != null) {
+            // Connection on its way, try again once it's ready
+            server.connecting.addListener((Future<Channel> future) -> {
+                if (future.isSuccess()) {
+                    this.open_stream(loop, addr_port, frontend, stream_handler, promise);
+                } else {
+                    promise.setFailure(future.cause());
+                }
+            });
+            return;
+        }
+
+        if (this.max_conns > 0 && server.conns.size() >= this.max_conns) {
+            logger.warn("Backend server "+addr_port+" reached pool_max_conns ("+this.max_conns+") on this thread with every stream in use");
+            promise.setFailure(new IllegalStateException("All HTTP/2 connections to "+addr_port+" reached their streams limit"));
+            return;
+        }
+
+        server.connecting = this.connect(loop, addr_port, frontend);
+        server.connecting.addListener((Future<Channel> future) -> {
+            server.connecting = null;
+            if (future.isSuccess()) {
+                Channel parent = future.getNow();
+                server.conns.add(parent);
+                parent.closeFuture().addListener(f -> server.conns.remove(parent));
+                this.open_stream(loop, addr_port, frontend, stream_handler, promise);
+            } else {
+                promise.setFailure(future.cause());
+            }
+        });
+    }
+
+    private boolean can_open_stream(Channel parent) {
+        if (!parent.isActive()) {
+            return false;
+        }
+
+        if (System.nanoTime() - parent.attr(CREATED).get() > this.max_lifetime * 1000000L) {
+            // Too old, no new streams, it's closed once idle
+            return false;
+        }
+        return parent.pipeline().get(Http2FrameCodec.class).connection().local().canOpenStream();
+    }
+
+    private Future<Channel> connect(EventLoop loop, InetSocketAddress addr_port, FrontendConf frontend) {
+        Promise<Channel> ready = loop.newPromise();
+        ServerStats server     = this.stats.server(addr_port);
+        long started           = System.nanoTime();
+
+        Bootstrap b = new Bootstrap();
+        b.group(loop)
+            .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, frontend.timeout_connect)
+            .channel(Transport.socket_channel())
+            .handler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                public void initChannel(SocketChannel ch) throws Exception {
+                    ch.pipeline().addLast("bytes", server.bytes);
+                    if (ssl_ctx != null) {
+                        ch.pipeline().addLast("ssl", ssl_ctx.newHandler(ch.alloc(), addr_port.getHostString(), addr_port.getPort()));
+                    }
+                    ch.pipeline()
+                        .addLast(new IdleStateHandler(0, 0, max_idle, TimeUnit.MILLISECONDS))
+                        .addLast(Http2FrameCodecBuilder.forClient()
+                            .initialSettings(Http2Settings.defaultSettings().pushEnabled(false))
+                            .build())
+                        .addLast(new Http2MultiplexHandler(new ChannelInitializer<Channel>() {
+                            @Override
+                            protected void initChannel(Channel stream) {
+                                // We never ask for server initiated streams
+                                stream.close();
+                            }
+                        }))
+                        .addLast(new Http2IdleHandler());
+                }
+            });
+
+        ChannelFuture f = b.connect(addr_port);
+        f.channel().attr(CREATED).set(System.nanoTime());
+        f.addListener((ChannelFutureListener) future -> {
+            if (!future.isSuccess()) {
+                ready.setFailure(future.cause());
+                return;
+            }
+
+            SslHandler ssl = future.channel().pipeline().get(SslHandler.class);
+            if (ssl == null) {
+                server.connected(future.channel(), started);
+                ready.setSuccess(future.channel());
+                return;
+            }
+
+            ssl.handshakeFuture().addListener(handshake -> {
+                if (!handshake.isSuccess()) {
+                    ready.setFailure(handshake.cause());
+                } else if (!ApplicationProtocolNames.HTTP_2.equals(ssl.applicationProtocol())) {
+                    future.channel().close();
+                    ready.setFailure(new IllegalStateException("Backend "+addr_port+" did not negotiate h2"));
+                } else {
+                    server.connected(future.channel(), started);
+                    ready.setSuccess(future.channel());
+                }
+            });
+        });
+
+        return ready;
+    }
+}
+
+/// Closes HTTP/2 backend connections that had no stream for max idle time
+class Http2IdleHandler extends ChannelInboundHandlerAdapter {
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof IdleStateEvent) {
+            Http2FrameCodec codec = ctx.pipeline().get(Http2FrameCodec.class);
+            if (codec.connection().numActiveStreams() == 0) {
+                ctx.close();
+            }
+            return;
+        }
+        ctx.fireUserEventTriggered(evt);
+    }
+}
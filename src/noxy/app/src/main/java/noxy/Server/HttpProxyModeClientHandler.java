@@ -1,9 +1,10 @@
 package noxy.Server;
 
 
-import java.net.InetSocketAddress;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -17,67 +18,276 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.handler.codec.http.DefaultFullHttpRequest;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
-import io.netty.handler.codec.http.DefaultHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpClientCodec;
-import io.netty.handler.codec.http.HttpContentDecompressor;
 import io.netty.handler.codec.http.HttpHeaderNames;
-import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
 import noxy.ServerInit;
 import noxy.Balancer.BackendTracker;
+import noxy.Cache.CacheEntry;
+import noxy.Cache.CacheFill;
+import noxy.Cache.ResponseCache;
 import noxy.Balancer.BalanceStrategy;
+import noxy.Metrics.Phases;
+import noxy.Metrics.Phases.Phase;
 import noxy.ServerConfig.FrontendConf;
-import noxy.ServerConfig.HttpCondition;
+import noxy.ServerConfig.Route;
+import noxy.ServerConfig.HashKey;
 import noxy.ServerConfig.HttpSettings;
 
 public class HttpProxyModeClientHandler extends ChannelInboundHandlerAdapter {
     static Logger logger = LogManager.getLogger(HttpProxyModeClientHandler.class);
 
     private ConnectionLimits limits;
+    private FrontendStats stats;
     private FrontendConf frontend;
     
+    private Channel client_channel;
     private Channel backend_channel;
+    private BackendTracker backend;
+    private String backend_name;
+    private String hash_key; // hash balancing key of current request
+    private ServerStats server;
 
-    private ArrayList<Object> msg_list;
+    // Messages waiting for a backend: the request being connected,
+    // and pipelined requests waiting for the current response to finish.
+    // Requests are served one at a time so responses go out in order
+    private ArrayDeque<Object> msg_list;
+    private boolean connecting;
+    private boolean request_done;
+    private boolean keep_alive; // client keeps the connection after current request
+
+    // Set while waiting for a pooled connection to be released
+    private Consumer<Channel> waiter;
+    private ScheduledFuture<?> waiter_timeout;
 
     private boolean is_https;
 
-    public HttpProxyModeClientHandler(ConnectionLimits limits, FrontendConf frontend, boolean is_https) {
+    // Frontend response cache, null when disabled
+    private ResponseCache cache;
+    private CacheFill cache_fill;
+
+    private Phases phases;
+
+    /// limits is null for HTTP/2 streams, their connection is accounted on the parent channel
+    public HttpProxyModeClientHandler(ConnectionLimits limits, FrontendStats stats, FrontendConf frontend, boolean is_https) {
         this.limits       = limits;
+        this.stats        = stats;
         this.frontend     = frontend;
         this.is_https     = is_https;
+        this.msg_list     = new ArrayDeque<>();
+        this.cache        = ServerInit.response_cache.get(frontend.name);
+        this.phases       = new Phases(frontend);
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.client_channel = ctx.channel();
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        if (backend_channel == null) {
-            if (this.msg_list == null) {
-                this.msg_list = new ArrayList<>();
-                this.msg_list.add(msg);
-                ctx.channel().config().setAutoRead(false);
-                if (!this.http_condition(ctx.channel(), msg)) {
-                    flushAndClose(ctx.channel());
-                    return;
-                }
-            } else {
-                this.msg_list.add(msg);
+        if (!(msg instanceof HttpObject)) {
+            // Connection level HTTP/2 frames reaching the h2c parent handler, streams are handled by their own handler
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+
+        if (backend_channel != null && !request_done) {
+            // Rest of the request being forwarded
+            this.forward(msg);
+            return;
+        }
+
+        this.msg_list.add(msg);
+        if (backend_channel == null && !connecting) {
+            this.next_request();
+        }
+    }
+
+    private void forward(Object msg) {
+        backend_channel.write(msg); // flushed once the read batch is over
+        if (msg instanceof LastHttpContent) {
+            // Don't read next pipelined request before this response is over
+            this.request_done = true;
+            FrontendStats.hold(client_channel);
+        }
+        if (!backend_channel.isWritable()) {
+            // Backend is slower than us, stop reading from client until it catches up
+            this.stats.pause(client_channel);
+        }
+    }
+
+    /// Start handling the request at the head of the queue
+    private void next_request() {
+        Object msg;
+        while ((msg = this.msg_list.peek()) != null && !(msg instanceof HttpRequest)) {
+            // Leftover body of a request the backend answered early
+            ReferenceCountUtil.release(this.msg_list.poll());
+        }
+        if (msg == null) {
+            FrontendStats.unhold(client_channel);
+            return;
+        }
+        FrontendStats.hold(client_channel);
+
+        // Every request is routed and balanced on its own, even on a keep-alive connection
+        HttpRequest req = (HttpRequest)msg;
+        this.phases.begin(client_channel);
+        String name     = this.http_condition(client_channel, req);
+        this.phases.stamp(Phase.ROUTE);
+        if (name == null || this.from_cache(req)) {
+            // Answered without a backend, drop request and go on with the next one
+            this.phases.finish("request");
+            boolean keep_alive = HttpUtil.isKeepAlive(req);
+            ReferenceCountUtil.release(this.msg_list.poll());
+            if (keep_alive && client_channel.isActive()) {
+                this.next_request();
+            }
+            return;
+        }
+
+        this.keep_alive   = HttpUtil.isKeepAlive(req);
+        HashKey key       = ServerInit.hash_key.get(name);
+        this.hash_key     = key == null ? null : key.of(new HttpSettings(req, client_channel, this.is_https ? "https" : "http"));
+        this.backend_name = name;
+        this.connecting   = true;
+        this.connect_backend(client_channel, 0, name);
+    }
+
+    /// Answer request from cache when a fresh response is there, otherwise
+    /// get ready to store or revalidate what backend sends
+    private boolean from_cache(HttpRequest req) {
+        if (this.cache == null || !ResponseCache.cacheable(req)) {
+            return false;
+        }
+
+        String scheme     = this.is_https ? "https" : "http";
+        CacheEntry cached = this.cache.lookup(req, scheme);
+        if (cached != null && cached.fresh() && !ResponseCache.no_cache(req)) {
+            this.cache.hits.increment();
+            cached.write(client_channel, req);
+            return true;
+        }
+        this.cache_fill = this.cache.fill(req, scheme, cached);
+        return false;
+    }
+
+    /// Called by backend handler for every response message,
+    /// true when cache answered client in its place
+    public boolean cache_response(Object msg) {
+        return this.cache_fill != null && this.cache_fill.response(client_channel, msg);
+    }
+
+    /// Backend connection is ready to receive queued request
+    private void backend_ready(Channel ch) {
+        this.connecting      = false;
+        this.backend_channel = ch;
+        this.request_done    = false;
+
+        if (!client_channel.isActive()) {
+            flushAndClose(ch);
+            return;
+        }
+
+        Object msg;
+        while (!this.request_done && (msg = this.msg_list.poll()) != null) {
+            this.forward(msg);
+        }
+        backend_channel.flush();
+
+        ProxyModeBackendHandler handler = ch.pipeline().get(ProxyModeBackendHandler.class);
+        if (handler != null) {
+            handler.request_sent();
+        }
+        this.phases.stamp(Phase.REQUEST);
+
+        if (!this.request_done) {
+            FrontendStats.unhold(client_channel); // connection is ready, enable AutoRead
+            if (!backend_channel.isWritable()) {
+                // Queued request filled backend's buffer already
+                this.stats.pause(client_channel);
             }
+        }
+    }
+
+    /// Called by backend handler once the whole response was sent to client,
+    /// keep_alive tells if the backend connection can take another request
+    public void response_finished(Channel ch, boolean keep_alive) {
+        this.backend_channel = null;
+        this.cache_fill      = null;
+        this.phases.finish("request");
+
+        BackendPool pool = ServerInit.backend_pool.get(this.backend_name);
+        if (pool == null) {
+            // HTTP/2 stream, it's over once the response is
+            ch.close();
+        } else if (keep_alive && this.request_done) {
+            pool.release(ch, this.backend.addr_port);
         } else {
-            backend_channel.writeAndFlush(msg);
+            flushAndClose(ch);
+        }
+        this.request_done = false;
+
+        if (!keep_alive || !this.keep_alive) {
+            // Connection ends with this response, client needs to see it end
+            // (a body delimited by the close never ends otherwise)
+            flushAndClose(client_channel);
+        } else if (client_channel.isActive()) {
+            this.next_request();
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        if (backend_channel != null) {
+            backend_channel.flush();
         }
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (ctx.channel().isWritable() && backend_channel != null) {
+            // Client drained what backend sent, resume reading from backend if that's why it stopped
+            FrontendStats.resume(backend_channel);
+        }
+        ctx.fireChannelWritabilityChanged();
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
-        this.limits.connection_finished();
+        if (this.limits != null) {
+            this.limits.connection_finished();
+        }
+        this.phases.finish("aborted request");
+        this.cancel_waiter();
+        if (this.cache_fill != null) {
+            this.cache_fill.abort();
+            this.cache_fill = null;
+        }
+        // A backend still serving this client is in an unknown state, it can't be reused
         flushAndClose(backend_channel);
+
+        Object msg;
+        while ((msg = this.msg_list.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
     }
 
     @Override
@@ -92,106 +302,214 @@ public class HttpProxyModeClientHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
-    private boolean http_condition(Channel channel, Object msg) {
+    /// Evaluate frontend conditions for a request, gives backend to use
+    /// or null if request was answered here
+    private String http_condition(Channel channel, HttpRequest req) {
         String backend_name = frontend.use_backend;
         if (frontend.http_condition != null) {
-            HttpSettings settings = new HttpSettings();
-            HttpHeaders headers;
-            if (msg instanceof DefaultFullHttpRequest) {
-                DefaultFullHttpRequest req = (DefaultFullHttpRequest)msg;
-                headers                    = req.headers();
-                settings.uri               = req.uri();
-            } else {
-                DefaultHttpRequest req = (DefaultHttpRequest)msg;
-                headers                = req.headers();
-                settings.uri           = req.uri();
-            }
-            settings.host   = headers.get("host").split(":")[0];
-            settings.port   = ((InetSocketAddress)channel.localAddress()).getPort();
-            settings.scheme = this.is_https ? "https" : "http";
-
-            for (HttpCondition cond : frontend.http_condition) {
-                try {
-                    if (cond.evaluate(settings)) {
-                        if (cond.use_backend != null) {
-                            // this will be the new backend
-                            backend_name = cond.use_backend;
-                        } else if (cond.redirect != null) {
-                            // Redirect and exit
-                            this.redirect(channel, cond.evaluate_str(cond.redirect, settings));
-                            return false;
-                        }
-                    }
-                } catch (Exception e) {
-                    logger.error("Error evaluating condition for frontend ["+frontend.name+"]: "+e);
-                    return false;
+            HttpSettings settings = new HttpSettings(req, channel, this.is_https ? "https" : "http");
+
+            try {
+                Route route = frontend.router.route(settings);
+                if (route.redirect != null) {
+                    // Redirect and exit
+                    this.redirect(channel, req, route.redirect);
+                    return null;
                 }
+                backend_name = route.backend;
+            } catch (Exception e) {
+                logger.error("Error evaluating condition for frontend ["+frontend.name+"]: "+e);
+                channel.close();
+                return null;
             }
         }
-        this.connect_backend(channel, 0, backend_name);
-        return true;
+        return backend_name;
     }
 
-    private void redirect(Channel channel, String redirect) {
+    private void redirect(Channel channel, HttpRequest req, String redirect) {
         FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.PERMANENT_REDIRECT);
 
         response.headers()
-            .set(HttpHeaderNames.LOCATION, redirect);
+            .set(HttpHeaderNames.LOCATION, redirect)
+            .setInt(HttpHeaderNames.CONTENT_LENGTH, 0);
+
+        if (HttpUtil.isKeepAlive(req)) {
+            channel.writeAndFlush(response);
+        } else {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+            channel.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
 
-        channel.writeAndFlush(response);
+    /// No backend connection could be had in time, request body may still be coming so connection ends
+    private void unavailable(Channel channel) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.SERVICE_UNAVAILABLE);
+
+        response.headers()
+            .setInt(HttpHeaderNames.CONTENT_LENGTH, 0)
+            .set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        channel.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
     }
 
     private void connect_backend(Channel client_channel, int attempts, String name) {
         BalanceStrategy balance_algo = ServerInit.balance_algorithm.get(name);
-        int active_backends_count    = balance_algo.active_backends();
 
-        // Asking for one of our backends to come to the rescue!
-        BackendTracker backend = balance_algo.get_backend();
+        // Asking for one of our backends to come to the rescue! Retries of a
+        // hashed request go anywhere else the balancer likes
+        BackendTracker backend = attempts == 0 && this.hash_key != null
+            ? balance_algo.get_backend(this.hash_key) : balance_algo.get_backend();
         if (backend == null) {
             // OH no! seems like we run out of active backends
             client_channel.close();
             return;
         }
+        this.backend = backend;
+        this.server  = ServerInit.backend_stats.get(name).server(backend.id);
+        this.phases.stamp(Phase.BALANCE);
+        this.phases.backend = name;
+        this.phases.server  = backend.addr_port;
+
+        Http2BackendPool h2_pool = ServerInit.http2_backend_pool.get(name);
+        if (h2_pool != null) {
+            // HTTP/2 backend, request goes on a stream of a shared connection
+            this.open_stream(client_channel, attempts, name, balance_algo, backend, h2_pool);
+            return;
+        }
+
+        // Reusing an idle connection to this server if we have one
+        BackendPool pool = ServerInit.backend_pool.get(name);
+        Channel pooled   = pool.acquire(backend.addr_port);
+        if (pooled != null) {
+            this.use_pooled(pooled, balance_algo, backend);
+            return;
+        }
+
+        if (!pool.reserve(backend.addr_port)) {
+            // All connections allowed to this server are busy, waiting for one to be released
+            this.waiter = ch -> {
+                this.waiter_timeout.cancel(false);
+                this.waiter = null;
+                if (ch != null) {
+                    this.use_pooled(ch, balance_algo, backend);
+                } else {
+                    this.open_backend(client_channel, attempts, name, balance_algo, backend);
+                }
+            };
+            pool.queue(backend.addr_port, this.waiter);
+            this.waiter_timeout = client_channel.eventLoop().schedule(() -> {
+                logger.debug("No connection to backend "+backend.addr_port+" released in time for "+client_channel.remoteAddress());
+                this.cancel_waiter();
+                this.unavailable(client_channel);
+            }, frontend.timeout_connect, TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        this.open_backend(client_channel, attempts, name, balance_algo, backend);
+    }
+
+    private void use_pooled(Channel ch, BalanceStrategy balance_algo, BackendTracker backend) {
+        ch.pipeline()
+            .replace("readTimeoutHandler", "readTimeoutHandler", new ReadTimeoutHandler(frontend.timeout_server, TimeUnit.MILLISECONDS));
+        ch.pipeline().get(ProxyModeBackendHandler.class)
+            .attach(client_channel, balance_algo, backend, stats, this.server, this.phases, this);
+        this.phases.stamp(Phase.CONNECT);
+        this.backend_ready(ch);
+    }
+
+    private void cancel_waiter() {
+        if (this.waiter != null) {
+            this.waiter_timeout.cancel(false);
+            ServerInit.backend_pool.get(this.backend_name).cancel(this.backend.addr_port, this.waiter);
+            ServerInit.balance_algorithm.get(this.backend_name).connection_finished(this.backend);
+            this.waiter = null;
+        }
+    }
+
+    private void open_backend(Channel client_channel, int attempts, String name,
+            BalanceStrategy balance_algo, BackendTracker backend) {
+        int active_backends_count = balance_algo.active_backends();
+        ServerStats server        = this.server;
 
         // Establishing connection to our backend
         Bootstrap b = new Bootstrap();
         b.group(client_channel.eventLoop()) // use the same EventLoop
             .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, frontend.timeout_connect)
-            .channel(NioSocketChannel.class)
+            .option(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                    new WriteBufferWaterMark(frontend.write_buffer_low, frontend.write_buffer_high))
+            .channel(Transport.socket_channel())
             .handler(new ChannelInitializer<SocketChannel>() {
                 @Override
                 public void initChannel(SocketChannel ch) throws Exception {
+                    if (frontend.flush_consolidation > 0) {
+                        ch.pipeline()
+                            .addFirst("flushConsolidation", new FlushConsolidationHandler(frontend.flush_consolidation, true));
+                    }
                     ch.pipeline()
+                        .addFirst("bytes", server.bytes)
                         .addLast("readTimeoutHandler", new ReadTimeoutHandler(frontend.timeout_server, TimeUnit.MILLISECONDS))
                         .addLast(new HttpClientCodec())
-                        .addLast(new HttpContentDecompressor())
-                        .addLast(new ProxyModeBackendHandler(client_channel, balance_algo, backend));
+                        .addLast(new ProxyModeBackendHandler(client_channel, balance_algo, backend, stats, server,
+                                    phases, HttpProxyModeClientHandler.this));
                 }
             });
         
+        long started    = System.nanoTime();
         ChannelFuture f = b.connect(backend.addr_port);
+        ServerInit.backend_pool.get(name).opened(f.channel(), backend.addr_port);
 
         f.addListener((ChannelFutureListener) future -> {
             if (future.isSuccess()) {
-                backend_channel = f.channel();
-                for (Object msg : this.msg_list) {
-                    backend_channel.writeAndFlush(msg);
-                }
-                this.msg_list.clear();
-                this.msg_list = null;
-                client_channel.config().setAutoRead(true); // connection is ready, enable AutoRead
-                return;
+                server.connected(f.channel(), started);
+                this.phases.stamp(Phase.CONNECT);
+                this.backend_ready(f.channel());
             } else {
-                balance_algo.connection_finished(backend);
-                if (attempts == active_backends_count) {
-                    client_channel.close();
-                } else {
-                    int new_attempts = attempts+1;
-                    f.channel().eventLoop().schedule(() -> {
-                        connect_backend(client_channel, new_attempts, name);
-                    }, 0, TimeUnit.MILLISECONDS);
-                }
+                this.connect_failed(client_channel, attempts, active_backends_count, name, balance_algo, backend);
             }
         });
     }
+
+    private void open_stream(Channel client_channel, int attempts, String name,
+            BalanceStrategy balance_algo, BackendTracker backend, Http2BackendPool h2_pool) {
+        int active_backends_count = balance_algo.active_backends();
+        ServerStats server        = this.server;
+
+        Promise<Channel> stream = client_channel.eventLoop().newPromise();
+        h2_pool.open_stream(client_channel.eventLoop(), backend.addr_port, frontend, new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                ch.pipeline()
+                    .addLast("readTimeoutHandler", new ReadTimeoutHandler(frontend.timeout_server, TimeUnit.MILLISECONDS))
+                    .addLast(new Http2StreamFrameToHttpObjectCodec(false))
+                    .addLast(new ProxyModeBackendHandler(client_channel, balance_algo, backend, stats, server,
+                                phases, HttpProxyModeClientHandler.this));
+            }
+        }, stream);
+
+        stream.addListener((Future<Channel> future) -> {
+            if (future.isSuccess()) {
+                this.phases.stamp(Phase.CONNECT);
+                this.backend_ready(future.getNow());
+            } else {
+                logger.debug("Can't open stream to backend "+backend.addr_port+": "+future.cause());
+                this.connect_failed(client_channel, attempts, active_backends_count, name, balance_algo, backend);
+            }
+        });
+    }
+
+    private void connect_failed(Channel client_channel, int attempts, int active_backends_count, String name,
+            BalanceStrategy balance_algo, BackendTracker backend) {
+        balance_algo.connection_finished(backend);
+        this.server.connect_failures.increment();
+        if (attempts == active_backends_count) {
+            this.phases.finish("request");
+            client_channel.close();
+        } else {
+            this.stats.retries.increment();
+            this.phases.retry();
+            int new_attempts = attempts+1;
+            client_channel.eventLoop().schedule(() -> {
+                connect_backend(client_channel, new_attempts, name);
+            }, 0, TimeUnit.MILLISECONDS);
+        }
+    }
 }
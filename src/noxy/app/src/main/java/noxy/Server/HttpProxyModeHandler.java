@@ -11,23 +11,36 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http2.CleartextHttp2ServerUpgradeHandler;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2FrameCodec;
 import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
 import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2ServerUpgradeCodec;
 import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
 import io.netty.handler.ssl.ApplicationProtocolNames;
 import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
+import io.netty.util.AsciiString;
+import noxy.Metrics.Phases;
 import noxy.ServerConfig.FrontendConf;
 
 
 public class HttpProxyModeHandler extends ApplicationProtocolNegotiationHandler {
     static Logger logger = LogManager.getLogger(HttpProxyModeHandler.class);
 
+    // Largest request body accepted with an Upgrade: h2c request
+    static int H2C_UPGRADE_MAX_CONTENT = 64 * 1024;
+
     private ConnectionLimits limits;
+    private FrontendStats stats;
     private FrontendConf frontend;
+    private boolean accepted; // counted in limits until closed
 
-    public HttpProxyModeHandler(ConnectionLimits limits, FrontendConf frontend) {
+    public HttpProxyModeHandler(ConnectionLimits limits, FrontendStats stats, FrontendConf frontend) {
         super(ApplicationProtocolNames.HTTP_1_1);
         this.limits       = limits;
+        this.stats        = stats;
         this.frontend     = frontend;
     }
 
@@ -36,10 +49,11 @@ public class HttpProxyModeHandler extends ApplicationProtocolNegotiationHandler
         ChannelPipeline p      = ctx.pipeline();
         Channel client_channel = p.channel();
         
-        if (!this.limits.new_connection()) {
+        if (!this.stats.accept()) {
             client_channel.close();
             return;
         }
+        this.accepted = true;
 
         logger.debug("New connection from "+client_channel.remoteAddress());
     }
@@ -47,25 +61,19 @@ public class HttpProxyModeHandler extends ApplicationProtocolNegotiationHandler
     @Override
     protected void configurePipeline(ChannelHandlerContext ctx, String protocol) throws Exception {
         ChannelPipeline p = ctx.pipeline();
+        Phases.handshaken(p.channel());
         if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
-            p.addLast(Http2FrameCodecBuilder.forServer()
-                    .autoAckPingFrame(true)
-                    .autoAckSettingsFrame(true)
-                    .build());
-            p.addLast(new Http2MultiplexHandler(new ChannelInitializer<Channel>() {
-                @Override
-                protected void initChannel(Channel ch) {
-                    ch.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(true));
-                    ch.pipeline().addLast("handler", new HttpProxyModeClientHandler(limits, frontend, true));
-                }
-            }));
+            p.addLast(http2_codec());
+            p.addLast(http2_multiplex(stats, frontend, true));
+            p.channel().closeFuture().addListener(future -> limits.connection_finished());
             p.remove(this);
             return;
         }
 
         if (ApplicationProtocolNames.HTTP_1_1.equals(protocol)) {
             p.addLast(new HttpServerCodec());
-            p.addLast("handler", new HttpProxyModeClientHandler(limits, frontend, true));
+            add_compressor(p, frontend);
+            p.addLast("handler", new HttpProxyModeClientHandler(limits, stats, frontend, true));
             p.remove(this);
             return;
         }
@@ -74,9 +82,60 @@ public class HttpProxyModeHandler extends ApplicationProtocolNegotiationHandler
         throw new IllegalStateException("Unknown protocol: " + protocol);
     }
 
+    static Http2FrameCodec http2_codec() {
+        return Http2FrameCodecBuilder.forServer()
+                .autoAckPingFrame(true)
+                .autoAckSettingsFrame(true)
+                .build();
+    }
+
+    /// Every HTTP/2 stream gets its own client handler
+    static Http2MultiplexHandler http2_multiplex(FrontendStats stats, FrontendConf frontend, boolean is_https) {
+        return new Http2MultiplexHandler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                ch.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(true));
+                add_compressor(ch.pipeline(), frontend);
+                // Streams are not connections, limits are accounted on the parent channel
+                ch.pipeline().addLast("handler", new HttpProxyModeClientHandler(null, stats, frontend, is_https));
+            }
+        });
+    }
+
+    /// Compress responses on the way to client when frontend asks for it,
+    /// must sit between the HTTP codec and the client handler
+    public static void add_compressor(ChannelPipeline p, FrontendConf frontend) {
+        if (frontend.compression != null) {
+            p.addLast("compressor", new ResponseCompressor(frontend.compression));
+        }
+    }
+
+    /// Plaintext h2c: HTTP/2 with prior knowledge, HTTP/1.1 with Upgrade: h2c,
+    /// or plain HTTP/1.1 which goes on to the handler added after this
+    public static void configure_h2c(ChannelPipeline p, FrontendStats stats, FrontendConf frontend) {
+        HttpServerCodec codec = new HttpServerCodec();
+        HttpServerUpgradeHandler upgrade = new HttpServerUpgradeHandler(codec, protocol -> {
+            if (AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)) {
+                return new Http2ServerUpgradeCodec(http2_codec(), http2_multiplex(stats, frontend, false));
+            }
+            return null;
+        }, H2C_UPGRADE_MAX_CONTENT);
+
+        p.addLast(new CleartextHttp2ServerUpgradeHandler(codec, upgrade, new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                ch.pipeline()
+                    .addBefore("handler", null, http2_codec())
+                    .addBefore("handler", null, http2_multiplex(stats, frontend, false));
+            }
+        }));
+    }
+
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
-        this.limits.connection_finished();
+        if (this.accepted) {
+            this.limits.connection_finished();
+        }
     }
 
     @Override
@@ -1,5 +1,6 @@
 package noxy.Server;
 
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -8,8 +9,16 @@ import io.netty.channel.Channel;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
 import noxy.Balancer.BackendTracker;
 import noxy.Balancer.BalanceStrategy;
+import noxy.Metrics.Phases;
+import noxy.Metrics.Phases.Phase;
 
 public class ProxyModeBackendHandler extends ChannelInboundHandlerAdapter {
     static Logger logger = LogManager.getLogger(ProxyModeBackendHandler.class);
@@ -20,34 +29,165 @@ public class ProxyModeBackendHandler extends ChannelInboundHandlerAdapter {
     private BalanceStrategy balance_algo;
     private BackendTracker backend_track;
 
-    public ProxyModeBackendHandler(Channel client_channel, BalanceStrategy balancer, BackendTracker tracker) {
+    private FrontendStats stats;
+    private ServerStats server;
+    private Phases phases;
+
+    // Set in http mode, notified when a response is over so the connection can be reused
+    private HttpProxyModeClientHandler http_client;
+    private boolean keep_alive;
+    private boolean informational;
+
+    private long created;
+    private long waiting; // nanoTime since which a first byte is expected, 0 once it came
+
+    public ProxyModeBackendHandler(Channel client_channel, BalanceStrategy balancer, BackendTracker tracker,
+            FrontendStats stats, ServerStats server, Phases phases) {
+        this(client_channel, balancer, tracker, stats, server, phases, null);
+    }
+
+    public ProxyModeBackendHandler(Channel client_channel, BalanceStrategy balancer, BackendTracker tracker,
+            FrontendStats stats, ServerStats server, Phases phases, HttpProxyModeClientHandler http_client) {
+        this.attach(client_channel, balancer, tracker, stats, server, phases, http_client);
+        this.created = System.nanoTime();
+    }
+
+    /// Bind this backend connection to a client, used again when it's taken from the pool
+    public void attach(Channel client_channel, BalanceStrategy balancer, BackendTracker tracker,
+            FrontendStats stats, ServerStats server, Phases phases, HttpProxyModeClientHandler http_client) {
         this.client_channel = client_channel;
         this.balance_algo   = balancer;
         this.backend_track  = tracker;
+        this.stats          = stats;
+        this.server         = server;
+        this.phases         = phases;
+        this.http_client    = http_client;
+        this.keep_alive     = false;
+        this.informational  = false;
+    }
+
+    /// Request was sent, time to first byte of response starts now
+    public void request_sent() {
+        this.waiting = System.nanoTime();
+    }
+
+    /// Client no longer uses this connection
+    private void detach() {
+        if (this.client_channel != null) {
+            this.balance_algo.connection_finished(backend_track);
+            this.client_channel = null;
+            this.http_client    = null;
+        }
+    }
+
+    public boolean expired(long max_lifetime) {
+        return System.nanoTime() - this.created > max_lifetime * 1000000L;
     }
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) {
         this.backend_channel = ctx.channel();
+        if (backend_channel.parent() == null) {
+            // New connection to server, not an HTTP/2 stream on an existing one
+            this.balance_algo.latency(backend_track, System.nanoTime() - this.created);
+        }
+        if (this.http_client == null) {
+            // Tcp mode, server may speak first
+            this.request_sent();
+        }
         logger.debug("Connected to backend "+backend_channel.remoteAddress());
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
-        client_channel.writeAndFlush(msg); // just forward
+        if (client_channel == null) {
+            // Idle pooled connection, nobody asked for this
+            ReferenceCountUtil.release(msg);
+            flushAndClose(ctx.channel());
+            return;
+        }
+
+        if (this.waiting != 0) {
+            long first_byte = System.nanoTime() - this.waiting;
+            this.server.first_byte.record(first_byte);
+            this.waiting = 0;
+            if (http_client != null) {
+                // In tcp mode it's also how long client took to say something
+                this.balance_algo.latency(backend_track, first_byte);
+            }
+            this.phases.stamp_once(Phase.FIRST_BYTE);
+            if (http_client == null) {
+                // Tcp connection is set up, what comes next is the protocol's business
+                this.phases.finish("connection");
+            }
+        }
+
+        if (http_client != null && msg instanceof HttpResponse) {
+            HttpResponse response = (HttpResponse)msg;
+            // 1xx responses are followed by the real one on the same request
+            this.informational    = response.status().codeClass() == HttpStatusClass.INFORMATIONAL
+                                        && !response.status().equals(HttpResponseStatus.SWITCHING_PROTOCOLS);
+            this.keep_alive       = HttpUtil.isKeepAlive(response)
+                                        && !response.status().equals(HttpResponseStatus.SWITCHING_PROTOCOLS)
+                                        // HTTP/2 streams always end on their own
+                                        && (ctx.channel().parent() != null || self_delimited(response));
+        }
+
+        if (http_client == null || !http_client.cache_response(msg)) {
+            client_channel.write(msg); // just forward, flushed once the read batch is over
+            if (!client_channel.isWritable()) {
+                // Client is slower than us, stop reading from backend until it catches up
+                this.stats.pause(ctx.channel());
+            }
+        }
+
+        if (http_client != null && msg instanceof LastHttpContent && !this.informational) {
+            // Response is complete, give connection back to client handler
+            HttpProxyModeClientHandler owner = http_client;
+            client_channel.flush();
+            this.detach();
+            owner.response_finished(ctx.channel(), this.keep_alive);
+        }
+    }
+
+    /// Response body ends without the connection being closed: it has a length,
+    /// is chunked or has no body
+    private static boolean self_delimited(HttpResponse response) {
+        int status = response.status().code();
+        return HttpUtil.isContentLengthSet(response) || HttpUtil.isTransferEncodingChunked(response)
+            || status == 204 || status == 304 || response.status().codeClass() == HttpStatusClass.INFORMATIONAL;
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        if (client_channel != null) {
+            client_channel.flush();
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (ctx.channel().isWritable() && client_channel != null) {
+            // Backend drained what client sent, resume reading from client unless
+            // it's waiting for this response to be over
+            FrontendStats.resume(client_channel);
+        }
+        ctx.fireChannelWritabilityChanged();
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
         logger.debug("Connection with backend "+ctx.channel().remoteAddress().toString()+" closed");
-        this.balance_algo.connection_finished(backend_track);
-        flushAndClose(client_channel);
+        Channel client = client_channel;
+        this.detach();
+        flushAndClose(client);
     }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable e) {
         logger.debug("Connection with backend "+ctx.channel().remoteAddress().toString()+" closed: "+e);
-        flushAndClose(backend_channel);
+        flushAndClose(ctx.channel());
     }
 
     private void flushAndClose(Channel ch) {
@@ -0,0 +1,60 @@
+package noxy.Server;
+
+import io.netty.handler.codec.compression.StandardCompressionOptions;
+import io.netty.handler.codec.http.HttpContentCompressor;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import noxy.ServerConfig.CompressionConf;
+
+/// Response compression
+/// Compresses responses the backend sent uncompressed when client accepts gzip or deflate
+/// and content type matches one of the frontend's types. Already encoded responses
+/// are relayed untouched
+public class ResponseCompressor extends HttpContentCompressor {
+    private CompressionConf conf;
+
+    public ResponseCompressor(CompressionConf conf) {
+        super(0,
+            StandardCompressionOptions.gzip(conf.level, 15, 8),
+            StandardCompressionOptions.deflate(conf.level, 15, 8));
+        this.conf = conf;
+    }
+
+    @Override
+    protected Result beginEncode(HttpResponse response, String accept_encoding) throws Exception {
+        HttpHeaders headers = response.headers();
+
+        String content_type = headers.get(HttpHeaderNames.CONTENT_TYPE);
+        if (content_type == null || !this.compressible(content_type)) {
+            return null;
+        }
+
+        String length = headers.get(HttpHeaderNames.CONTENT_LENGTH);
+        if (length != null) {
+            try {
+                if (Long.parseLong(length) < this.conf.min_length) {
+                    return null;
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        Result result = super.beginEncode(response, accept_encoding);
+        if (result != null && !headers.containsValue(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING, true)) {
+            // Caches between us and the client must keep both variants apart
+            headers.add(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        }
+        return result;
+    }
+
+    private boolean compressible(String content_type) {
+        for (String type : this.conf.types) {
+            if (content_type.regionMatches(true, 0, type, 0, type.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,47 @@
+package noxy.Server;
+
+import java.net.InetSocketAddress;
+
+import io.netty.channel.Channel;
+import noxy.Metrics.Counter;
+import noxy.Metrics.Histogram;
+
+/// Statistics of one backend server
+public class ServerStats {
+    public String backend;
+    public int id; // balancer's tracker id
+    public InetSocketAddress addr_port;
+
+    public Counter connections; // established
+    public Counter active;
+    public Counter connect_failures;
+    public Counter bytes_in; // from server
+    public Counter bytes_out; // to server
+
+    public Histogram connect_time; // until connection is usable, TLS handshake included
+    public Histogram first_byte; // from request sent, or connection established in tcp mode, to first byte of response
+
+    public ByteCounter bytes; // counts bytes_in/out, first handler of backend pipelines
+
+    public ServerStats(String backend, int id, InetSocketAddress addr_port) {
+        this.backend          = backend;
+        this.id               = id;
+        this.addr_port        = addr_port;
+        this.connections      = new Counter();
+        this.active           = new Counter();
+        this.connect_failures = new Counter();
+        this.bytes_in         = new Counter();
+        this.bytes_out        = new Counter();
+        this.connect_time     = new Histogram();
+        this.first_byte       = new Histogram();
+        this.bytes            = new ByteCounter(this.bytes_in, this.bytes_out);
+    }
+
+    /// Connection to server established, started is the nanoTime connect was asked at
+    public void connected(Channel ch, long started) {
+        this.connect_time.record(System.nanoTime() - started);
+        this.connections.increment();
+        this.active.increment();
+        ch.closeFuture().addListener(future -> this.active.decrement());
+    }
+}
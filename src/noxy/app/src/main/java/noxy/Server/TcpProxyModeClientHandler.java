@@ -1,5 +1,7 @@
 package noxy.Server;
 
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -15,11 +17,19 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
 import io.netty.handler.timeout.ReadTimeoutHandler;
 import noxy.ServerInit;
 import noxy.Balancer.BackendTracker;
 import noxy.Balancer.BalanceStrategy;
+import noxy.Metrics.Phases;
+import noxy.Metrics.Phases.Phase;
 import noxy.ServerConfig.FrontendConf;
 
 public class TcpProxyModeClientHandler extends ChannelInboundHandlerAdapter {
@@ -27,8 +37,10 @@ public class TcpProxyModeClientHandler extends ChannelInboundHandlerAdapter {
 
 
     private ConnectionLimits limits;
+    private FrontendStats stats;
     private FrontendConf frontend;
     private BalanceStrategy balance_algo;
+    private BackendStats backend_stats;
 
     private Channel client_channel;
     private Channel backend_channel;
@@ -36,12 +48,20 @@ public class TcpProxyModeClientHandler extends ChannelInboundHandlerAdapter {
     private BackendTracker backend;
 
     private AtomicReference<Channel> backend_ch;
+
+    private boolean splice;
+    private boolean accepted; // counted in limits until closed
+
+    private Phases phases;
     
-    public TcpProxyModeClientHandler(ConnectionLimits limits, FrontendConf frontend) {
+    public TcpProxyModeClientHandler(ConnectionLimits limits, FrontendStats stats, FrontendConf frontend) {
         this.limits       = limits;
+        this.stats        = stats;
         this.frontend     = frontend;
         this.backend_ch   = new AtomicReference<>();
+        this.phases       = new Phases(frontend);
         this.balance_algo = ServerInit.balance_algorithm.get(frontend.use_backend);
+        this.backend_stats = ServerInit.backend_stats.get(frontend.use_backend);
     }
 
 
@@ -49,12 +69,19 @@ public class TcpProxyModeClientHandler extends ChannelInboundHandlerAdapter {
     public void channelActive(ChannelHandlerContext ctx) {
         // We got new connection
         client_channel = ctx.channel();
-        client_channel.config().setAutoRead(false);
+        FrontendStats.hold(client_channel);
 
-        if (!this.limits.new_connection()) {
+        // Splicing moves bytes between sockets inside the kernel, so it can't be used
+        // when TLS is terminated here, data must go through the SslHandler then
+        this.splice = frontend.relay.equals("splice") && client_channel instanceof EpollSocketChannel
+                        && ctx.pipeline().get("ssl") == null;
+
+        if (!this.stats.accept()) {
             client_channel.close();
             return;
         }
+        this.accepted = true;
+        this.phases.begin(client_channel);
 
         logger.debug("New connection from "+client_channel.remoteAddress());
 
@@ -63,42 +90,71 @@ public class TcpProxyModeClientHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
+    private static String client_ip(Channel ch) {
+        SocketAddress remote = ch.remoteAddress();
+        return remote instanceof InetSocketAddress ? ((InetSocketAddress)remote).getAddress().getHostAddress() : "";
+    }
+
     private Boolean connect_backend(int attempts) {
         int active_backends_count = this.balance_algo.active_backends();
 
-        // Asking for one of our backends to come to the rescue!
-        backend = balance_algo.get_backend();
+        // Asking for one of our backends to come to the rescue! Keyed on client ip
+        // for hash balancing, retries go anywhere else the balancer likes
+        backend = attempts == 0 ? balance_algo.get_backend(client_ip(client_channel)) : balance_algo.get_backend();
         if (backend == null) {
             // OH no! seems like we run out of active backends
             client_channel.close();
             return false;
         }
+        ServerStats server = this.backend_stats.server(backend.id);
+        this.phases.stamp(Phase.BALANCE);
+        this.phases.backend = frontend.use_backend;
+        this.phases.server  = backend.addr_port;
 
         // Establishing connection to one of our backends
         Bootstrap b = new Bootstrap();
         b.group(client_channel.eventLoop()) // use the same EventLoop
                 .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, frontend.timeout_connect)
-                .channel(client_channel.getClass())
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                        new WriteBufferWaterMark(frontend.write_buffer_low, frontend.write_buffer_high))
+                .channel(Transport.socket_channel())
                 .handler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     public void initChannel(SocketChannel ch) throws Exception {
+                        if (frontend.flush_consolidation > 0) {
+                            ch.pipeline()
+                                .addFirst("flushConsolidation", new FlushConsolidationHandler(frontend.flush_consolidation, true));
+                        }
                         ch.pipeline()
+                            .addFirst("bytes", server.bytes)
                             .addLast("readTimeoutHandler", new ReadTimeoutHandler(frontend.timeout_server, TimeUnit.MILLISECONDS))
-                            .addLast(new ProxyModeBackendHandler(client_channel, balance_algo, backend));
+                            .addLast(new ProxyModeBackendHandler(client_channel, balance_algo, backend, stats, server, phases));
                     }
                 });
+        if (this.splice) {
+            b.option(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+        }
         
+        long started    = System.nanoTime();
         ChannelFuture f = b.connect(backend.addr_port);
 
         f.addListener((ChannelFutureListener) future -> {
             if (future.isSuccess()) {
+                server.connected(f.channel(), started);
+                this.phases.stamp(Phase.CONNECT);
+                if (this.splice) {
+                    this.start_splice((EpollSocketChannel)f.channel());
+                }
                 backend_ch.set(f.channel());
-                client_channel.config().setAutoRead(true); // connection is ready, enable AutoRead
+                FrontendStats.unhold(client_channel); // connection is ready, enable AutoRead
             } else {
                 this.balance_algo.connection_finished(backend);
+                server.connect_failures.increment();
                 if (attempts == active_backends_count) {
                     client_channel.close();
                 } else {
+                    this.stats.retries.increment();
+                    this.phases.retry();
                     int new_attempts = attempts+1;
                     f.channel().eventLoop().schedule(() -> {
                         connect_backend(new_attempts);
@@ -110,18 +166,81 @@ public class TcpProxyModeClientHandler extends ChannelInboundHandlerAdapter {
         return true;
     }
 
+    private void start_splice(EpollSocketChannel backend_channel) {
+        EpollSocketChannel client = (EpollSocketChannel)client_channel;
+
+        // Spliced data never reaches the pipeline so read timeouts would fire on busy
+        // connections, TCP keepalive takes over detection of dead peers
+        client.pipeline().remove("readTimeoutHandler");
+        backend_channel.pipeline().remove("readTimeoutHandler");
+        keep_alive(client, frontend.timeout_client);
+        keep_alive(backend_channel, frontend.timeout_server);
+
+        ChannelFutureListener on_splice_end = future -> {
+            if (!future.isSuccess()) {
+                flushAndClose(client);
+                flushAndClose(backend_channel);
+            }
+        };
+        client.spliceTo(backend_channel, Integer.MAX_VALUE).addListener(on_splice_end);
+        backend_channel.spliceTo(client, Integer.MAX_VALUE).addListener(on_splice_end);
+
+        logger.debug("Splicing "+client.remoteAddress()+" to backend "+backend_channel.remoteAddress());
+    }
+
+    private void keep_alive(EpollSocketChannel ch, long timeout) {
+        int idle = (int)Math.max(1, timeout/1000);
+        ch.config()
+            .setTcpKeepIdle(idle)
+            .setTcpKeepIntvl(Math.max(1, idle/3))
+            .setTcpKeepCnt(3)
+            .setKeepAlive(true);
+    }
+
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
         if (backend_ch != null) {
             backend_channel = backend_ch.get();
             backend_ch = null;
         }
-        backend_channel.writeAndFlush(msg);
+        backend_channel.write(msg); // flushed once the read batch is over
+        if (!backend_channel.isWritable()) {
+            // Backend is slower than us, stop reading from client until it catches up
+            this.stats.pause(client_channel);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        if (backend_channel != null) {
+            backend_channel.flush();
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (ctx.channel().isWritable() && backend_channel != null) {
+            // Client drained what backend sent, resume reading from backend if that's why it stopped
+            FrontendStats.resume(backend_channel);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof SslHandshakeCompletionEvent && ((SslHandshakeCompletionEvent)evt).isSuccess()) {
+            this.phases.stamp(Phase.TLS);
+        }
+        ctx.fireUserEventTriggered(evt);
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
-        this.limits.connection_finished();
+        this.phases.finish("connection");
+        if (this.accepted) {
+            this.limits.connection_finished();
+        }
         flushAndClose(backend_channel);
     }
 
@@ -0,0 +1,68 @@
+package noxy.Server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+/// Network transport
+/// Selects between Netty's native epoll transport and the portable nio one,
+/// every event loop group and channel class must come from here so they match
+public class Transport {
+    static Logger logger = LogManager.getLogger(Transport.class);
+
+    static private boolean epoll = false;
+
+    public static void init(String transport) {
+        if (transport.equals("epoll")) {
+            if (!Epoll.isAvailable()) {
+                logger.error("Epoll transport is not available on this system: "+Epoll.unavailabilityCause());
+                System.exit(1);
+            }
+            epoll = true;
+        } else if (transport.equals("auto")) {
+            epoll = Epoll.isAvailable();
+        } else if (transport.equals("nio")) {
+            epoll = false;
+        } else {
+            logger.error("Unknown transport "+transport);
+            System.exit(1);
+        }
+
+        logger.info("Using "+(epoll ? "epoll" : "nio")+" transport");
+    }
+
+    public static boolean is_epoll() {
+        return epoll;
+    }
+
+    public static EventLoopGroup event_loop_group(int threads) {
+        if (epoll) {
+            return new EpollEventLoopGroup(threads);
+        }
+        return new NioEventLoopGroup(threads);
+    }
+
+    public static Class<? extends ServerChannel> server_channel() {
+        if (epoll) {
+            return EpollServerSocketChannel.class;
+        }
+        return NioServerSocketChannel.class;
+    }
+
+    public static Class<? extends SocketChannel> socket_channel() {
+        if (epoll) {
+            return EpollSocketChannel.class;
+        }
+        return NioSocketChannel.class;
+    }
+}
@@ -0,0 +1,11 @@
+package noxy.ServerConfig;
+
+public class CacheConf {
+    public Long max_memory; // bytes of responses kept, least recently used are evicted above it
+    public Long max_object; // larger responses are not kept in memory
+
+    // Disk tier for responses above max_object, disabled without disk_path
+    public String disk_path;
+    public Long disk_max_size;
+    public Long disk_segment_size; // largest response stored on disk
+}
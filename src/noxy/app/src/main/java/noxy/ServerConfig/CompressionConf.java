@@ -0,0 +1,9 @@
+package noxy.ServerConfig;
+
+import java.util.List;
+
+public class CompressionConf {
+    public List<String> types; // content type prefixes to compress, e.g. text/ or application/json
+    public Integer level;
+    public Integer min_length; // smaller responses with a known length are sent as is
+}
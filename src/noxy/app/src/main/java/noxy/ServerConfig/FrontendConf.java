@@ -10,9 +10,19 @@ public class FrontendConf {
     public Long timeout_server;
     public Long maxconn;
     public String mode;
+    public Boolean h2c;
+    public String relay;
+    public Integer write_buffer_high;
+    public Integer write_buffer_low;
+    public Integer flush_consolidation;
+    public CompressionConf compression;
+    public CacheConf cache;
+    public Long slow_log; // ms, connections or requests taking longer are logged with their phases, 0 disables
 
     public List<BindConf> bind;
     public String use_backend;
 
     public List<HttpCondition> http_condition;
+    public Integer route_cache; // routing decisions remembered per thread, 0 disables
+    public HttpRouter router; // built from http_condition once they are compiled
 }
@@ -0,0 +1,65 @@
+package noxy.ServerConfig;
+
+/// Request attribute hash balancing is keyed on
+/// client_ip, uri, header:Name, cookie:Name or query:Name. Requests without
+/// the header, cookie or query parameter fall back to client ip
+public class HashKey {
+    enum Source {
+        CLIENT_IP, URI, HEADER, COOKIE, QUERY
+    }
+
+    private Source source;
+    private String name;
+
+    private HashKey(Source source, String name) {
+        this.source = source;
+        this.name   = name;
+    }
+
+    /// null when spec is not a known key
+    public static HashKey parse(String spec) {
+        if (spec.equals("client_ip")) {
+            return new HashKey(Source.CLIENT_IP, null);
+        }
+        if (spec.equals("uri")) {
+            return new HashKey(Source.URI, null);
+        }
+
+        int colon = spec.indexOf(':');
+        if (colon <= 0 || colon == spec.length() - 1) {
+            return null;
+        }
+        String name = spec.substring(colon + 1);
+        switch (spec.substring(0, colon)) {
+            case "header":
+                return new HashKey(Source.HEADER, name);
+            case "cookie":
+                return new HashKey(Source.COOKIE, name);
+            case "query":
+                return new HashKey(Source.QUERY, name);
+            default:
+                return null;
+        }
+    }
+
+    public String of(HttpSettings settings) {
+        String key = null;
+        switch (this.source) {
+            case URI:
+                key = settings.uri();
+                break;
+            case HEADER:
+                key = settings.header(this.name);
+                break;
+            case COOKIE:
+                key = settings.cookie(this.name);
+                break;
+            case QUERY:
+                key = settings.query(this.name);
+                break;
+            default:
+                break;
+        }
+        return key != null ? key : settings.client_ip();
+    }
+}
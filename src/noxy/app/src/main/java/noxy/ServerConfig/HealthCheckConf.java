@@ -0,0 +1,23 @@
+package noxy.ServerConfig;
+
+public class HealthCheckConf {
+    public String type; // connect, http or send_expect
+    public Long interval; // between two probes of a server, jittered
+    public Long timeout;
+    public Integer rise; // successful probes in a row for a down server to be up
+    public Integer fall; // failed probes in a row for an up server to be down
+
+    // http, GET uri and expect status, any 2xx or 3xx when not set
+    public String uri;
+    public Integer expect_status;
+
+    // send_expect, send payload once connected and expect response to contain expect
+    public String send;
+    public String expect;
+
+    /// What a probe checks, a server probed the same way by several backends is only probed once.
+    /// Interval, rise and fall are not part of it, the strictest ones are used
+    public String key() {
+        return type+"|"+timeout+"|"+uri+"|"+expect_status+"|"+send+"|"+expect;
+    }
+}
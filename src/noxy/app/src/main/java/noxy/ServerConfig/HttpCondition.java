@@ -1,7 +1,5 @@
 package noxy.ServerConfig;
 
-import java.lang.reflect.Field;
-
 import javax.script.Bindings;
 import javax.script.Compilable;
 import javax.script.CompiledScript;
@@ -10,19 +8,33 @@ import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
 import javax.script.SimpleBindings;
 
+import noxy.Expression.Expr;
+import noxy.Expression.ExprParser;
+
 public class HttpCondition {
-    static ScriptEngine se;
+    static ScriptEngine se; // only set when conditions run on groovy
 
     public Object when;
     public Object redirect;
     public String use_backend;
 
-    public static void init() {
-        ScriptEngineManager sem = new ScriptEngineManager();
-        se = sem.getEngineByName("groovy");
+    /// engine is native or groovy
+    public static void init(String engine) {
+        if (engine.equals("groovy")) {
+            ScriptEngineManager sem = new ScriptEngineManager();
+            se = sem.getEngineByName("groovy");
+        }
     }
 
     public void compile() throws ScriptException {
+        if (se == null) {
+            this.when = ExprParser.parse((String)this.when);
+            if (this.redirect != null) {
+                this.redirect = ExprParser.parse((String)this.redirect);
+            }
+            return;
+        }
+
         String statement = (String)this.when;
         this.when        = ((Compilable) se).compile(statement);
         if (this.redirect != null) {
@@ -31,26 +43,34 @@ public class HttpCondition {
         }
     }
 
-    public boolean evaluate(HttpSettings settings) throws ScriptException, IllegalAccessException {
+    public boolean evaluate(HttpSettings settings) throws ScriptException {
+        if (this.when instanceof Expr) {
+            return ((Expr)this.when).test(settings);
+        }
         if (this.when != null) {
-            Bindings bindings = new SimpleBindings();
-
-            for (Field field : settings.getClass().getDeclaredFields()) {
-                bindings.put(field.getName(), field.get(settings));
-            }
-
-            return (boolean)((CompiledScript)this.when).eval(bindings);
+            return (boolean)((CompiledScript)this.when).eval(bindings(settings));
         }
         return true;
     }
 
-    public String evaluate_str(Object val, HttpSettings settings) throws ScriptException, IllegalAccessException {
-        Bindings bindings = new SimpleBindings();
-
-        for (Field field : settings.getClass().getDeclaredFields()) {
-            bindings.put(field.getName(), field.get(settings));
+    public String evaluate_str(Object val, HttpSettings settings) throws ScriptException {
+        if (val instanceof Expr) {
+            return ((Expr)val).str(settings);
         }
+        return (String)((CompiledScript)val).eval(bindings(settings));
+    }
 
-        return (String)((CompiledScript)val).eval(bindings);
+    /// Scripts get the usual attributes, and request for the ones that need a name,
+    /// like request.header('User-Agent')
+    private static Bindings bindings(HttpSettings settings) {
+        Bindings bindings = new SimpleBindings();
+        bindings.put("scheme", settings.scheme());
+        bindings.put("host", settings.host());
+        bindings.put("port", settings.port());
+        bindings.put("uri", settings.uri());
+        bindings.put("method", settings.method());
+        bindings.put("client_ip", settings.client_ip());
+        bindings.put("request", settings);
+        return bindings;
     }
 }
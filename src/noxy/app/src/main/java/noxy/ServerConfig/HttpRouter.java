@@ -0,0 +1,248 @@
+package noxy.ServerConfig;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import noxy.Expression.Expr;
+import noxy.Expression.Refs;
+
+/// Best rules found for a host or a path prefix
+class RouteBucket {
+    public int redirect = Integer.MAX_VALUE; // earliest redirect rule
+    public int backend  = -1;                // latest use_backend rule
+
+    public void add(int rule, HttpCondition cond) {
+        if (cond.use_backend != null) {
+            this.backend = Math.max(this.backend, rule);
+        } else {
+            this.redirect = Math.min(this.redirect, rule);
+        }
+    }
+}
+
+/// Path radix trie node, edges are labelled with the part of the prefix they add
+class TrieNode {
+    public String label;
+    public RouteBucket rules; // set when a prefix ends here
+    public HashMap<Character, TrieNode> children;
+
+    public TrieNode(String label) {
+        this.label    = label;
+        this.children = new HashMap<>();
+    }
+
+    public void insert(String prefix, int rule, HttpCondition cond) {
+        if (prefix.isEmpty()) {
+            if (this.rules == null) {
+                this.rules = new RouteBucket();
+            }
+            this.rules.add(rule, cond);
+            return;
+        }
+
+        TrieNode child = this.children.get(prefix.charAt(0));
+        if (child == null) {
+            child = new TrieNode(prefix);
+            this.children.put(prefix.charAt(0), child);
+            child.insert("", rule, cond);
+            return;
+        }
+
+        int common = 0;
+        while (common < child.label.length() && common < prefix.length()
+                && child.label.charAt(common) == prefix.charAt(common)) {
+            common++;
+        }
+        if (common < child.label.length()) {
+            // Split edge where prefixes diverge
+            TrieNode split = new TrieNode(child.label.substring(0, common));
+            child.label    = child.label.substring(common);
+            split.children.put(child.label.charAt(0), child);
+            this.children.put(split.label.charAt(0), split);
+            child = split;
+        }
+        child.insert(prefix.substring(common), rule, cond);
+    }
+}
+
+/// Http conditions router
+/// Conditions that only compare host to a literal go to a hash table, the ones that
+/// only check a literal uri prefix go to a radix trie, so they are found in one lookup
+/// and one walk along the uri whatever their number. Other conditions are evaluated
+/// in order like before. Outcome is the same as evaluating every condition in order:
+/// earliest matching redirect wins, otherwise latest matching use_backend.
+/// With a cache, decisions are remembered per combination of the attributes conditions read
+public class HttpRouter {
+    private HttpCondition[] conditions;
+    private HashMap<String, RouteBucket> hosts;
+    private TrieNode paths;
+    private int[] others; // rule indexes evaluated one by one, in order
+
+    private Route default_route;
+    private Route[] backend_routes; // per rule, for use_backend ones
+
+    public RouteCache cache; // null when disabled
+    private Refs refs;
+
+    public HttpRouter(List<HttpCondition> conditions, String default_backend, int cache_size) {
+        this.conditions     = conditions.toArray(new HttpCondition[0]);
+        this.hosts          = new HashMap<>();
+        this.paths          = new TrieNode("");
+        this.default_route  = new Route(default_backend, null);
+        this.backend_routes = new Route[this.conditions.length];
+        this.refs           = new Refs();
+
+        List<Integer> others = new ArrayList<>();
+        for (int i = 0; i < this.conditions.length; i++) {
+            HttpCondition cond = this.conditions[i];
+            if (cond.redirect == null && cond.use_backend == null) {
+                continue;
+            }
+            if (cond.use_backend != null) {
+                this.backend_routes[i] = new Route(cond.use_backend, null);
+            }
+
+            for (Object expr : new Object[] { cond.when, cond.use_backend == null ? cond.redirect : null }) {
+                if (expr instanceof Expr) {
+                    ((Expr)expr).refs(this.refs);
+                } else if (expr != null) {
+                    // Script, can read anything
+                    this.refs.all();
+                }
+            }
+
+            String host   = null;
+            String prefix = null;
+            if (cond.when instanceof Expr) {
+                host   = ((Expr)cond.when).host_equals();
+                prefix = ((Expr)cond.when).uri_prefix();
+            }
+
+            if (host != null) {
+                this.hosts.computeIfAbsent(host, k -> new RouteBucket()).add(i, cond);
+            } else if (prefix != null) {
+                this.paths.insert(prefix, i, cond);
+            } else {
+                others.add(i);
+            }
+        }
+        this.others = others.stream().mapToInt(Integer::intValue).toArray();
+
+        if (cache_size > 0 && !this.refs.opaque) {
+            this.cache = new RouteCache(cache_size);
+        }
+    }
+
+    /// Where request goes
+    public Route route(HttpSettings settings) throws Exception {
+        if (this.cache == null) {
+            return this.evaluate(settings);
+        }
+
+        String key  = this.cache_key(settings);
+        Route route = this.cache.get(key);
+        if (route == null) {
+            route = this.evaluate(settings);
+            this.cache.put(key, route);
+        }
+        return route;
+    }
+
+    /// Values of the attributes conditions read, uri cut to the longest prefix they test
+    /// unless it's read as a whole. Every value is length prefixed and a missing one has
+    /// its own marker, so no two combinations give the same key
+    private String cache_key(HttpSettings settings) {
+        StringBuilder key = new StringBuilder(64);
+        if (this.refs.scheme) {
+            append(key, settings.scheme());
+        }
+        if (this.refs.host) {
+            append(key, settings.host());
+        }
+        if (this.refs.port) {
+            key.append(settings.port()).append(':');
+        }
+        String uri = settings.uri();
+        int len    = this.refs.uri ? uri.length() : Math.min(uri.length(), this.refs.uri_prefix);
+        key.append(len).append(':').append(uri, 0, len);
+        if (this.refs.method) {
+            append(key, settings.method());
+        }
+        if (this.refs.client_ip) {
+            append(key, settings.client_ip());
+        }
+        for (String name : this.refs.headers) {
+            append(key, settings.header(name));
+        }
+        for (String name : this.refs.cookies) {
+            append(key, settings.cookie(name));
+        }
+        for (String name : this.refs.queries) {
+            append(key, settings.query(name));
+        }
+        return key.toString();
+    }
+
+    /// Length then value, or - when there is none
+    private static void append(StringBuilder key, String value) {
+        if (value == null) {
+            key.append('-');
+        } else {
+            key.append(value.length()).append(':').append(value);
+        }
+    }
+
+    private Route evaluate(HttpSettings settings) throws Exception {
+        int redirect = Integer.MAX_VALUE;
+        int backend  = -1;
+
+        String host        = settings.host();
+        RouteBucket bucket = host == null ? null : this.hosts.get(host);
+        if (bucket != null) {
+            redirect = bucket.redirect;
+            backend  = bucket.backend;
+        }
+
+        String uri    = settings.uri();
+        TrieNode node = this.paths;
+        int pos       = 0;
+        while (node != null) {
+            if (node.rules != null) {
+                redirect = Math.min(redirect, node.rules.redirect);
+                backend  = Math.max(backend, node.rules.backend);
+            }
+            if (uri == null || pos >= uri.length()) {
+                break;
+            }
+            TrieNode child = node.children.get(uri.charAt(pos));
+            if (child == null || !uri.startsWith(child.label, pos)) {
+                break;
+            }
+            pos += child.label.length();
+            node = child;
+        }
+
+        for (int rule : this.others) {
+            if (rule > redirect) {
+                // An earlier redirect already matched, nothing after it counts
+                break;
+            }
+            HttpCondition cond = this.conditions[rule];
+            if (cond.evaluate(settings)) {
+                if (cond.use_backend != null) {
+                    backend = Math.max(backend, rule);
+                } else {
+                    redirect = rule;
+                    break;
+                }
+            }
+        }
+
+        if (redirect != Integer.MAX_VALUE) {
+            HttpCondition cond = this.conditions[redirect];
+            return new Route(null, cond.evaluate_str(cond.redirect, settings));
+        }
+        return backend >= 0 ? this.backend_routes[backend] : this.default_route;
+    }
+}
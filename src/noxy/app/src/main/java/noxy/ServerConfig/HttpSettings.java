@@ -1,18 +1,129 @@
 package noxy.ServerConfig;
 
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.Map;
+
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+/// Request attributes conditions can read
+/// Resolved from the request only when a condition asks for them, and only once,
+/// so attributes no rule reads cost nothing
 public class HttpSettings {
-    public String scheme;
-    public String host;
-    public int port;
-    public String uri;
+    private HttpRequest req;     // null for config checks
+    private Channel channel;
+    private String scheme;
 
-    public static HttpSettings defaults() {
-        HttpSettings def = new HttpSettings();
-        def.scheme = "";
-        def.host   = "";
-        def.port   = 0;
-        def.uri    = "";
+    private String host;
+    private boolean host_done;
+    private int port = -1;
+    private String client_ip;
+    private Map<String, List<String>> query;
 
+    public HttpSettings(HttpRequest req, Channel channel, String scheme) {
+        this.req     = req;
+        this.channel = channel;
+        this.scheme  = scheme;
+    }
+
+    /// Settings without request, every attribute is empty
+    public static HttpSettings defaults() {
+        HttpSettings def = new HttpSettings(null, null, "");
+        def.host         = "";
+        def.host_done    = true;
+        def.port         = 0;
+        def.client_ip    = "";
         return def;
     }
+
+    public String scheme() {
+        return this.scheme;
+    }
+
+    /// Host header without port, null when there is none
+    public String host() {
+        if (!this.host_done) {
+            this.host_done = true;
+            String host    = this.header(HttpHeaderNames.HOST.toString());
+            if (host != null) {
+                int end = host.startsWith("[") ? host.indexOf(']') + 1 : host.indexOf(':');
+                this.host = end > 0 && end < host.length() ? host.substring(0, end) : host;
+            }
+        }
+        return this.host;
+    }
+
+    public int port() {
+        if (this.port < 0) {
+            SocketAddress local = this.channel.localAddress();
+            this.port = local instanceof InetSocketAddress ? ((InetSocketAddress)local).getPort() : 0;
+        }
+        return this.port;
+    }
+
+    public String uri() {
+        return this.req == null ? "" : this.req.uri();
+    }
+
+    public String method() {
+        return this.req == null ? "" : this.req.method().name();
+    }
+
+    public String client_ip() {
+        if (this.client_ip == null) {
+            SocketAddress remote = this.channel.remoteAddress();
+            this.client_ip = remote instanceof InetSocketAddress
+                ? ((InetSocketAddress)remote).getAddress().getHostAddress() : "";
+        }
+        return this.client_ip;
+    }
+
+    /// First value of a request header, null when missing
+    public String header(String name) {
+        return this.req == null ? null : this.req.headers().get(name);
+    }
+
+    /// Value of a cookie, null when missing
+    public String cookie(String name) {
+        if (this.req == null) {
+            return null;
+        }
+        for (String header : this.req.headers().getAll(HttpHeaderNames.COOKIE)) {
+            int pos = 0;
+            while (pos < header.length()) {
+                int end = header.indexOf(';', pos);
+                if (end < 0) {
+                    end = header.length();
+                }
+                while (pos < end && header.charAt(pos) == ' ') {
+                    pos++;
+                }
+                if (header.startsWith(name, pos) && pos + name.length() < end && header.charAt(pos + name.length()) == '=') {
+                    String value = header.substring(pos + name.length() + 1, end).trim();
+                    if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                        value = value.substring(1, value.length() - 1);
+                    }
+                    return value;
+                }
+                pos = end + 1;
+            }
+        }
+        return null;
+    }
+
+    /// First value of a query string parameter, null when missing
+    public String query(String name) {
+        if (this.req == null) {
+            return null;
+        }
+        if (this.query == null) {
+            this.query = new QueryStringDecoder(this.req.uri()).parameters();
+        }
+        List<String> values = this.query.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
 }
@@ -0,0 +1,12 @@
+package noxy.ServerConfig;
+
+/// Where a request goes: a backend, or a redirect to target
+public class Route {
+    public String backend;
+    public String redirect;
+
+    public Route(String backend, String redirect) {
+        this.backend  = backend;
+        this.redirect = redirect;
+    }
+}
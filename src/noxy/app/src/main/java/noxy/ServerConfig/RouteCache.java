@@ -0,0 +1,51 @@
+package noxy.ServerConfig;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.netty.util.concurrent.FastThreadLocal;
+
+/// Routing decisions cache
+/// Remembers the route chosen for a combination of the request attributes conditions
+/// read, each event loop has its own bounded LRU map so lookups never lock.
+/// It belongs to the router it caches, a new configuration comes with a new router
+/// and starts with an empty cache
+public class RouteCache {
+    public LongAdder hits;
+    public LongAdder misses;
+
+    private int size;
+    private FastThreadLocal<LinkedHashMap<String, Route>> routes;
+
+    public RouteCache(int size) {
+        this.size   = size;
+        this.hits   = new LongAdder();
+        this.misses = new LongAdder();
+        this.routes = new FastThreadLocal<LinkedHashMap<String, Route>>() {
+            @Override
+            protected LinkedHashMap<String, Route> initialValue() {
+                return new LinkedHashMap<String, Route>(64, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, Route> eldest) {
+                        return this.size() > RouteCache.this.size;
+                    }
+                };
+            }
+        };
+    }
+
+    public Route get(String key) {
+        Route route = this.routes.get().get(key);
+        if (route == null) {
+            this.misses.increment();
+        } else {
+            this.hits.increment();
+        }
+        return route;
+    }
+
+    public void put(String key, Route route) {
+        this.routes.get().put(key, route);
+    }
+}
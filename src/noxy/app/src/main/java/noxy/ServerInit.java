@@ -1,6 +1,7 @@
 package noxy;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.util.ArrayList;
@@ -16,10 +17,13 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 import io.netty.handler.ssl.ApplicationProtocolConfig;
@@ -32,6 +36,7 @@ import io.netty.handler.ssl.ApplicationProtocolConfig.SelectedListenerFailureBeh
 import io.netty.handler.ssl.ApplicationProtocolConfig.SelectorFailureBehavior;
 import io.netty.handler.ssl.util.SelfSignedCertificate;
 import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.netty.util.concurrent.EventExecutor;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
 
@@ -40,23 +45,43 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import noxy.Balancer.BalanceStrategy;
+import noxy.Balancer.EwmaDistribution;
+import noxy.Balancer.HashDistribution;
 import noxy.Balancer.LeastConnDistribution;
+import noxy.Balancer.LeastConnP2CDistribution;
 import noxy.Balancer.RoundRobinDistribution;
+import noxy.Metrics.Phases;
+import noxy.Metrics.SlowLog;
+import noxy.Metrics.StatsHandler;
+import noxy.Server.BackendPool;
+import noxy.Server.BackendStats;
 import noxy.Server.ConnectionLimits;
+import noxy.Cache.ResponseCache;
+import noxy.Server.FrontendStats;
+import noxy.Server.Http2BackendPool;
 import noxy.Server.HttpProxyModeClientHandler;
 import noxy.Server.HttpProxyModeHandler;
 import noxy.Server.TcpProxyModeClientHandler;
+import noxy.Server.Transport;
 import noxy.ServerConfig.BindConf;
 import noxy.ServerConfig.FrontendConf;
+import noxy.ServerConfig.HashKey;
 
 public class ServerInit {
     static Logger logger = LogManager.getLogger(ServerInit.class);
     
     static String[] TLS_VERSIONS   = new String[] { "TLSv1.1", "TLSv1.2", "TLSv1.3" };
     static String[] ALPN_PROTOCOLS = new String[] { ApplicationProtocolNames.HTTP_1_1, ApplicationProtocolNames.HTTP_2 };
+    static int STATS_MAX_REQUEST   = 8192;
 
     public static HashMap<String, BalanceStrategy> balance_algorithm  = new HashMap<>();
+    public static HashMap<String, BackendPool> backend_pool           = new HashMap<>();
+    public static HashMap<String, HashKey> hash_key                   = new HashMap<>();
+    public static HashMap<String, Http2BackendPool> http2_backend_pool = new HashMap<>();
     public static HashMap<InetSocketAddress, SslContext> ssl_ctx_list = new HashMap<>();
+    public static HashMap<String, ResponseCache> response_cache       = new HashMap<>();
+    public static LinkedHashMap<String, FrontendStats> frontend_stats = new LinkedHashMap<>();
+    public static LinkedHashMap<String, BackendStats> backend_stats   = new LinkedHashMap<>();
 
 
     private Config conf;
@@ -71,10 +96,12 @@ public class ServerInit {
         ConnectionLimits.global_maxconn         = conf.global.maxconn;
         ConnectionLimits.global_maxconn_counter = new AtomicLong(0);
         // Number of threads configured
-        EventLoopGroup group = new NioEventLoopGroup(this.threads(conf.global));
+        Transport.init(conf.global.transport);
+        SlowLog.init(conf.global.slow_log_rate);
+        EventLoopGroup group = Transport.event_loop_group(this.threads(conf.global));
 
         // Adding backend
-        this.setup_backend(this.conf.backend, this.conf.global);
+        this.setup_backend(this.conf.backend);
         
         // Starting frontends
         List<ChannelFuture> futures = new ArrayList<>();
@@ -82,6 +109,10 @@ public class ServerInit {
             this.setup_frontend(group, conf.global, frontend, this.conf.backend, futures);
         }
 
+        if (conf.global.stats != null) {
+            this.setup_stats(group, conf.global.stats);
+        }
+
         // Block until server shutdown.
         try {
             futures.get(0).channel().closeFuture().sync();
@@ -90,10 +121,11 @@ public class ServerInit {
         }
     }
 
-    private void setup_backend(List<BackEndConf> backends, GlobalConf globals) {
+    private void setup_backend(List<BackEndConf> backends) {
         // Deciding balancing algorithm
         for (BackEndConf backend_conf : backends) {
             List<Pair<String, InetSocketAddress>> backend_list = new ArrayList<>();
+            List<Integer> weights                              = new ArrayList<>();
             for (ServerConf server: backend_conf.servers) {
                 URI uri;
                 try {
@@ -104,13 +136,21 @@ public class ServerInit {
                     return;
                 }
                 backend_list.add(Pair.of(backend_conf.name, new InetSocketAddress(uri.getHost(), uri.getPort())));
+                weights.add(server.weight);
             }
 
             BalanceStrategy balance_algo;
             if (backend_conf.balance.equals("roundrobin")) {
-                balance_algo = new RoundRobinDistribution(backend_list, globals.health_check);
+                balance_algo = new RoundRobinDistribution(backend_list, weights, backend_conf.health_check);
             } else if (backend_conf.balance.equals("leastconn")) {
-                balance_algo = new LeastConnDistribution(backend_list, globals.health_check);
+                balance_algo = new LeastConnDistribution(backend_list, backend_conf.health_check);
+            } else if (backend_conf.balance.equals("leastconn_p2c")) {
+                balance_algo = new LeastConnP2CDistribution(backend_list, backend_conf.health_check);
+            } else if (backend_conf.balance.equals("ewma")) {
+                balance_algo = new EwmaDistribution(backend_list, backend_conf.health_check);
+            } else if (backend_conf.balance.equals("hash")) {
+                balance_algo = new HashDistribution(backend_list, backend_conf.hash_load_factor, backend_conf.health_check);
+                hash_key.put(backend_conf.name, HashKey.parse(backend_conf.hash_key));
             } else {
                 logger.error("Balance algorithm "+backend_conf.balance+" in backend ["+backend_conf.name+"] not found");
                 System.exit(1);
@@ -118,6 +158,22 @@ public class ServerInit {
             }
 
             balance_algorithm.put(backend_conf.name, balance_algo);
+            backend_stats.put(backend_conf.name, new BackendStats(backend_conf.name, backend_list));
+            if (backend_conf.protocol.equals("http1")) {
+                backend_pool.put(backend_conf.name,
+                        new BackendPool(backend_conf.pool_size, backend_conf.pool_max_conns,
+                            backend_conf.pool_max_idle, backend_conf.pool_max_lifetime));
+            } else {
+                try {
+                    http2_backend_pool.put(backend_conf.name,
+                            new Http2BackendPool(backend_conf.protocol, backend_conf.ca, backend_conf.pool_max_conns,
+                                backend_conf.pool_max_idle, backend_conf.pool_max_lifetime,
+                                backend_stats.get(backend_conf.name)));
+                } catch (Exception e) {
+                    logger.error("Error setting up TLS for backend ["+backend_conf.name+"]: "+e.toString());
+                    System.exit(1);
+                }
+            }
         }
     }
 
@@ -149,17 +205,45 @@ public class ServerInit {
         // Setup new server
         ServerBootstrap b = new ServerBootstrap();
 
-        b.group(group)
-            .channel(NioServerSocketChannel.class)
+        b.channel(Transport.server_channel())
             .handler(new LoggingHandler(LogLevel.DEBUG))
-            .option(ChannelOption.SO_REUSEADDR, true);
+            .option(ChannelOption.SO_REUSEADDR, true)
+            .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                    new WriteBufferWaterMark(frontend.write_buffer_low, frontend.write_buffer_high));
 
         ConnectionLimits limits = new ConnectionLimits(frontend.maxconn);
+        FrontendStats stats     = new FrontendStats(frontend.name, limits);
+        if (frontend.router != null) {
+            stats.route_cache = frontend.router.cache;
+        }
+        frontend_stats.put(frontend.name, stats);
+        if (frontend.cache != null) {
+            try {
+                response_cache.put(frontend.name, new ResponseCache(frontend.cache));
+            } catch (IOException e) {
+                logger.error("Error loading disk cache of frontend ["+frontend.name+"]: "+e.toString());
+                System.exit(1);
+            }
+        }
         
+        boolean splice = false;
         if (frontend.mode.equals("tcp")) {
+            if (frontend.relay.equals("splice")) {
+                if (Transport.is_epoll()) {
+                    splice = true;
+                } else {
+                    logger.warn("Splice relay needs epoll transport, frontend ["+frontend.name+"] falls back to buffered relay");
+                }
+            }
             b.childHandler(new ChannelInitializer<SocketChannel>() {
                 @Override
                 public void initChannel(SocketChannel ch) throws Exception {
+                    if (frontend.flush_consolidation > 0) {
+                        ch.pipeline()
+                            .addFirst("flushConsolidation", new FlushConsolidationHandler(frontend.flush_consolidation, true));
+                    }
+                    ch.pipeline().addFirst("bytes", stats.bytes);
+                    Phases.accepted(ch);
                     ch.pipeline()
                         .addLast("readTimeoutHandler", new ReadTimeoutHandler(frontend.timeout_client, TimeUnit.MILLISECONDS));
                                         InetSocketAddress addr = (InetSocketAddress)ch.localAddress();
@@ -168,10 +252,10 @@ public class ServerInit {
                             || (ssl_ctx_found = ssl_ctx_list.get(new InetSocketAddress(addr.getPort()))) != null) {
                         ch.pipeline()
                             .addLast("ssl", ssl_ctx_found.newHandler(ch.alloc()))
-                            .addLast(new TcpProxyModeClientHandler(limits, frontend));
+                            .addLast(new TcpProxyModeClientHandler(limits, stats, frontend));
                     } else {
                         ch.pipeline()
-                            .addLast(new TcpProxyModeClientHandler(limits, frontend));
+                            .addLast(new TcpProxyModeClientHandler(limits, stats, frontend));
                     }
                 }
             });
@@ -179,6 +263,12 @@ public class ServerInit {
             b.childHandler(new ChannelInitializer<SocketChannel>() {
                 @Override
                 public void initChannel(SocketChannel ch) throws Exception {
+                    if (frontend.flush_consolidation > 0) {
+                        ch.pipeline()
+                            .addFirst("flushConsolidation", new FlushConsolidationHandler(frontend.flush_consolidation, true));
+                    }
+                    ch.pipeline().addFirst("bytes", stats.bytes);
+                    Phases.accepted(ch);
                     ch.pipeline()
                         .addLast("readTimeoutHandler", new ReadTimeoutHandler(frontend.timeout_client, TimeUnit.MILLISECONDS));
                     InetSocketAddress addr = (InetSocketAddress)ch.localAddress();
@@ -187,19 +277,23 @@ public class ServerInit {
                             || (ssl_ctx_found = ssl_ctx_list.get(new InetSocketAddress(addr.getPort()))) != null) {
                         ch.pipeline()
                             .addLast("ssl", ssl_ctx_found.newHandler(ch.alloc()))
-                            .addLast(new HttpProxyModeHandler(limits, frontend));
+                            .addLast(new HttpProxyModeHandler(limits, stats, frontend));
                     } else {
-                        if (!limits.new_connection()) {
-                            limits.connection_finished();
+                        if (!stats.accept()) {
                             ch.close();
                             return;
                         }
 
                         logger.debug("New connection from "+ch.remoteAddress());
 
+                        if (frontend.h2c) {
+                            HttpProxyModeHandler.configure_h2c(ch.pipeline(), stats, frontend);
+                        } else {
+                            ch.pipeline().addLast(new HttpServerCodec());
+                        }
+                        HttpProxyModeHandler.add_compressor(ch.pipeline(), frontend);
                         ch.pipeline()
-                            .addLast(new HttpServerCodec())
-                            .addLast("handler", new HttpProxyModeClientHandler(limits, frontend, false));
+                            .addLast("handler", new HttpProxyModeClientHandler(limits, stats, frontend, false));
                     }
                 }
             });
@@ -211,26 +305,82 @@ public class ServerInit {
 
         // Listening to all ports
         for (InetSocketAddress addr_port : listen_addrs) {
-            ChannelFuture f = b.bind(addr_port);
-            f.addListener(new GenericFutureListener<Future<? super Void>>() {
+            ServerBootstrap addr_b = b;
+            if (splice && ssl_ctx_list.get(addr_port) == null) {
+                // splice(2) is driven from the read loop, which only works level triggered.
+                // TLS binds never splice and keep edge triggered reads
+                addr_b = b.clone().childOption(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+            }
+            if (Transport.is_epoll()) {
+                // Every event loop gets its own SO_REUSEPORT listener, so the kernel
+                // spreads accepts across cores and connections stay on the loop that accepted them
+                for (EventExecutor loop : group) {
+                    ServerBootstrap loop_b = addr_b.clone()
+                        .group((EventLoopGroup)loop)
+                        .option(EpollChannelOption.SO_REUSEPORT, true);
+                    this.bind(loop_b, addr_port, futures);
+                }
+            } else {
+                this.bind(addr_b.clone().group(group), addr_port, futures);
+            }
+        }
+    }
+
+    private void setup_stats(EventLoopGroup group, String stats) {
+        URI uri;
+        try {
+            uri = new URI(null, stats, null, null, null).parseServerAuthority();
+        } catch (Exception e) {
+            logger.error("Can't parse stats address "+stats+": "+e.toString());
+            System.exit(2);
+            return;
+        }
+
+        InetSocketAddress addr_port = new InetSocketAddress(uri.getHost(), uri.getPort());
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(group)
+            .channel(Transport.server_channel())
+            .option(ChannelOption.SO_REUSEADDR, true)
+            .childHandler(new ChannelInitializer<SocketChannel>() {
                 @Override
-                public void operationComplete(Future<? super Void> future) throws Exception {
-                    if (future.isSuccess()) {
-                        logger.info("Listening on: " + addr_port);
-                    } else {
-                        logger.error("Failed listening on: " + addr_port);
-                    }
+                public void initChannel(SocketChannel ch) throws Exception {
+                    ch.pipeline()
+                        .addLast(new HttpServerCodec())
+                        .addLast(new HttpObjectAggregator(STATS_MAX_REQUEST))
+                        .addLast(new StatsHandler());
                 }
             });
 
-            try {
-                f.sync();
-            } catch (InterruptedException e) {
-                logger.error("Server start failed: "+e.toString());
-                System.exit(1);
+        ChannelFuture f = b.bind(addr_port);
+        try {
+            f.sync();
+        } catch (Exception e) {
+            logger.error("Failed listening for stats on: "+addr_port+": "+e.toString());
+            System.exit(1);
+        }
+        logger.info("Stats listening on: "+addr_port);
+    }
+
+    private void bind(ServerBootstrap b, InetSocketAddress addr_port, List<ChannelFuture> futures) {
+        ChannelFuture f = b.bind(addr_port);
+        f.addListener(new GenericFutureListener<Future<? super Void>>() {
+            @Override
+            public void operationComplete(Future<? super Void> future) throws Exception {
+                if (future.isSuccess()) {
+                    logger.info("Listening on: " + addr_port);
+                } else {
+                    logger.error("Failed listening on: " + addr_port);
+                }
             }
-            futures.add(f);
+        });
+
+        try {
+            f.sync();
+        } catch (InterruptedException e) {
+            logger.error("Server start failed: "+e.toString());
+            System.exit(1);
         }
+        futures.add(f);
     }
 
     private SslContext load_ssl_cert(InetSocketAddress bind, LinkedHashMap<String, Object> cert) {
@@ -0,0 +1,121 @@
+package noxy.Balancer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.Test;
+
+class HashDistributionTest {
+    static final int KEYS = 20000;
+
+    static HashDistribution balancer(int count, double load_factor) {
+        List<Pair<String, InetSocketAddress>> backends = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            backends.add(Pair.of("s"+i, new InetSocketAddress("10.0.0."+(i + 1), 8080)));
+        }
+        return new HashDistribution(backends, load_factor);
+    }
+
+    /// Backend of every key when nothing else is connected
+    static int[] owners(HashDistribution balancer) {
+        int[] owners = new int[KEYS];
+        for (int k = 0; k < KEYS; k++) {
+            BackendTracker tracker = balancer.get_backend("client-"+k);
+            owners[k]              = tracker.id;
+            balancer.connection_finished(tracker);
+        }
+        return owners;
+    }
+
+    @Test
+    void only_removed_backend_keys_move() {
+        HashDistribution balancer = balancer(5, 1.25);
+        int[] before              = owners(balancer);
+
+        balancer.on_backend_down(2);
+        assertFalse(balancer.is_up(2));
+        assertEquals(4, balancer.active_backends());
+        int[] after = owners(balancer);
+
+        int moved = 0;
+        for (int k = 0; k < KEYS; k++) {
+            if (before[k] == 2) {
+                assertNotEquals(2, after[k]);
+                moved++;
+            } else {
+                assertEquals(before[k], after[k], "key "+k+" moved");
+            }
+        }
+        // Its share of keys, about a fifth
+        assertTrue(moved > KEYS / 10 && moved < KEYS * 3 / 10, moved+" keys moved");
+
+        // Coming back takes its own keys back and nothing else
+        balancer.on_backend_up(2);
+        assertTrue(balancer.is_up(2));
+        assertArrayEquals(before, owners(balancer));
+    }
+
+    @Test
+    void keys_spread_over_backends() {
+        HashDistribution balancer = balancer(4, 1.25);
+        int[] picks               = new int[4];
+        for (int owner : owners(balancer)) {
+            picks[owner]++;
+        }
+        for (int count : picks) {
+            assertTrue(count > KEYS / 8 && count < KEYS * 3 / 8, count+" keys on one backend");
+        }
+    }
+
+    @Test
+    void load_bounded() {
+        for (double load_factor : new double[] { 1.0, 1.25, 2.0 }) {
+            HashDistribution balancer = balancer(4, load_factor);
+            balancer.on_backend_down(3);
+
+            Random rnd                = new Random(1);
+            long[] conns              = new long[4];
+            List<BackendTracker> open = new ArrayList<>();
+            for (int i = 0; i < 3000; i++) {
+                // Mostly one hot key, it has to spill over to the next backends
+                String key             = rnd.nextInt(10) < 8 ? "hot" : "client-"+rnd.nextInt(100);
+                BackendTracker tracker = balancer.get_backend(key);
+                assertNotEquals(3, tracker.id);
+                conns[tracker.id]++;
+                open.add(tracker);
+
+                long cap = (long)Math.ceil(load_factor * open.size() / 3);
+                assertTrue(conns[tracker.id] <= cap, "backend "+tracker.id+" got "+conns[tracker.id]+" connections, bound is "+cap);
+                if (i < 1000) {
+                    // Nothing closed yet, no backend is above the bound
+                    for (int ind = 0; ind < 4; ind++) {
+                        assertTrue(conns[ind] <= cap, "backend "+ind+" has "+conns[ind]+" connections, bound is "+cap);
+                    }
+                } else if (rnd.nextInt(3) == 0) {
+                    BackendTracker done = open.remove(rnd.nextInt(open.size()));
+                    conns[done.id]--;
+                    balancer.connection_finished(done);
+                }
+            }
+            assertTrue(conns[0] > 0 && conns[1] > 0 && conns[2] > 0, "hot key stayed on one backend");
+        }
+    }
+
+    @Test
+    void no_backend_up() {
+        HashDistribution balancer = balancer(2, 1.25);
+        balancer.on_backend_down(0);
+        balancer.on_backend_down(1);
+        assertEquals(0, balancer.active_backends());
+        assertNull(balancer.get_backend("client"));
+        assertNull(balancer.get_backend());
+
+        balancer.on_backend_up(1);
+        assertEquals(1, balancer.get_backend("client").id);
+    }
+}
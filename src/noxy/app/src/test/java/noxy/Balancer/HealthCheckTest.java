@@ -0,0 +1,57 @@
+package noxy.Balancer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+
+import org.junit.jupiter.api.Test;
+
+import noxy.ServerConfig.HealthCheckConf;
+
+class HealthCheckTest {
+    static HealthCheckConf http(String uri, long interval, int rise, int fall) {
+        HealthCheckConf conf = new HealthCheckConf();
+        conf.type            = "http";
+        conf.uri             = uri;
+        conf.interval        = interval;
+        conf.timeout         = 1000L;
+        conf.rise            = rise;
+        conf.fall            = fall;
+        return conf;
+    }
+
+    @Test
+    void key_is_what_probe_checks() {
+        assertEquals(http("/health", 1000, 2, 3).key(), http("/health", 5000, 1, 1).key());
+        assertNotEquals(http("/health", 1000, 2, 3).key(), http("/ready", 1000, 2, 3).key());
+
+        HealthCheckConf status = http("/health", 1000, 2, 3);
+        status.expect_status   = 204;
+        assertNotEquals(http("/health", 1000, 2, 3).key(), status.key());
+    }
+
+    @Test
+    void same_probe_shared_with_strictest_settings() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 16, InetAddress.getLoopbackAddress())) {
+            InetSocketAddress addr_port = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+
+            HealthCheck.watch(addr_port, 0, http("/health", 60000, 2, 3), ind -> {}, ind -> {});
+            HealthCheck.watch(addr_port, 1, http("/health", 30000, 3, 2), ind -> {}, ind -> {});
+            HealthCheck.watch(addr_port, 2, http("/other", 60000, 1, 1), ind -> {}, ind -> {});
+
+            HealthCheck.loop.submit(() -> {
+                HealthTarget shared = HealthCheck.targets.get(addr_port+"|"+http("/health", 0, 0, 0).key());
+                assertEquals(2, shared.listeners.size());
+                assertEquals(30000, shared.interval);
+                assertEquals(3, shared.rise);
+                assertEquals(2, shared.fall);
+
+                HealthTarget other = HealthCheck.targets.get(addr_port+"|"+http("/other", 0, 0, 0).key());
+                assertEquals(1, other.listeners.size());
+                assertEquals(60000, other.interval);
+            }).get();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package noxy.Balancer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.Test;
+
+class RoundRobinDistributionTest {
+    @Test
+    void smooth_sequence() {
+        // a b a c a b a, heaviest backend never picked twice in a row
+        assertArrayEquals(new int[] { 0, 1, 0, 2, 0, 1, 0 },
+            RoundRobinSnapshot.sequence(new int[] { 0, 1, 2 }, new int[] { 4, 2, 1 }));
+        assertArrayEquals(new int[] { 0, 1, 2 },
+            RoundRobinSnapshot.sequence(new int[] { 0, 1, 2 }, new int[] { 1, 1, 1 }));
+    }
+
+    @Test
+    void weights_divided_by_gcd() {
+        assertArrayEquals(new int[] { 0, 1, 0 },
+            RoundRobinSnapshot.sequence(new int[] { 0, 1 }, new int[] { 20, 10 }));
+    }
+
+    @Test
+    void zero_weight_excluded() {
+        int[] weights = { 1, 0, 2 };
+        assertArrayEquals(new int[] { 2, 0, 2 }, RoundRobinSnapshot.sequence(new int[] { 0, 1, 2 }, weights));
+        assertEquals(2, new RoundRobinSnapshot(new int[] { 0, 1, 2 }, weights).pickable);
+
+        assertArrayEquals(new int[0], RoundRobinSnapshot.sequence(new int[] { 1 }, weights));
+        assertEquals(0, new RoundRobinSnapshot(new int[] { 1 }, weights).pickable);
+    }
+
+    @Test
+    void only_active_backends() {
+        int[] weights = { 4, 2, 1 };
+        assertArrayEquals(new int[] { 0, 0, 2, 0, 0 }, RoundRobinSnapshot.sequence(new int[] { 2, 0 }, weights));
+        assertArrayEquals(new int[0], RoundRobinSnapshot.sequence(new int[0], weights));
+    }
+
+    @Test
+    void picks_proportional_to_weights() {
+        Random rnd = new Random(7);
+        for (int run = 0; run < 200; run++) {
+            int n         = 1 + rnd.nextInt(8);
+            int[] active  = new int[n];
+            int[] weights = new int[n];
+            int total     = 0;
+            for (int i = 0; i < n; i++) {
+                active[i]  = i;
+                weights[i] = rnd.nextInt(6);
+                total     += weights[i];
+            }
+
+            int[] sequence = RoundRobinSnapshot.sequence(active, weights);
+            int[] picks    = new int[n];
+            for (int ind : sequence) {
+                picks[ind]++;
+            }
+            for (int i = 0; i < n; i++) {
+                // Same ratio to the cycle length as weight to the total
+                assertEquals((long)weights[i] * sequence.length, (long)picks[i] * total);
+            }
+        }
+    }
+
+    @Test
+    void backends_wait_for_health_check() {
+        List<Pair<String, InetSocketAddress>> backends = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            backends.add(Pair.of("s"+i, new InetSocketAddress("10.0.0."+(i + 1), 8080)));
+        }
+        RoundRobinDistribution balancer = new RoundRobinDistribution(backends, List.of(2, 1, 0));
+        assertEquals(0, balancer.active_backends());
+        assertNull(balancer.get_backend());
+
+        balancer.on_backend_up(0);
+        balancer.on_backend_up(1);
+        balancer.on_backend_up(1);
+        balancer.on_backend_up(2);
+        assertTrue(balancer.is_up(2));
+        // Draining backend is up but never picked
+        assertEquals(2, balancer.active_backends());
+        int[] picks = new int[3];
+        for (int i = 0; i < 30; i++) {
+            picks[balancer.get_backend().id]++;
+        }
+        assertArrayEquals(new int[] { 20, 10, 0 }, picks);
+
+        balancer.on_backend_down(0);
+        assertFalse(balancer.is_up(0));
+        assertEquals(1, balancer.active_backends());
+        assertEquals(1, balancer.get_backend().id);
+    }
+}
@@ -0,0 +1,77 @@
+package noxy.Cache;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+class CacheEntryTest {
+    /// Fresh entry with stored headers as name, value pairs
+    static CacheEntry entry(String... headers) {
+        HttpHeaders stored = new DefaultHttpHeaders();
+        for (int i = 0; i + 1 < headers.length; i += 2) {
+            stored.add(headers[i], headers[i + 1]);
+        }
+        return new CacheEntry("http://example.com/", "http://example.com/", null, HttpResponseStatus.OK, stored,
+            Unpooled.EMPTY_BUFFER, System.currentTimeMillis(), 0, 60000);
+    }
+
+    static HttpRequest request(String... headers) {
+        HttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+        for (int i = 0; i + 1 < headers.length; i += 2) {
+            req.headers().add(headers[i], headers[i + 1]);
+        }
+        return req;
+    }
+
+    @Test
+    void etag_match() {
+        CacheEntry entry = entry("ETag", "\"v1\"");
+        assertTrue(entry.not_modified(request("If-None-Match", "\"v1\"")));
+        assertTrue(entry.not_modified(request("If-None-Match", "\"v0\", \"v1\"")));
+        assertFalse(entry.not_modified(request("If-None-Match", "\"v2\"")));
+        assertFalse(entry.not_modified(request()));
+    }
+
+    @Test
+    void weak_etags_compare_weakly() {
+        assertTrue(entry("ETag", "W/\"v1\"").not_modified(request("If-None-Match", "\"v1\"")));
+        assertTrue(entry("ETag", "\"v1\"").not_modified(request("If-None-Match", "W/\"v1\"")));
+        assertTrue(entry("ETag", "W/\"v1\"").not_modified(request("If-None-Match", "W/\"v1\"")));
+        assertFalse(entry("ETag", "W/\"v1\"").not_modified(request("If-None-Match", "W/\"v2\"")));
+    }
+
+    @Test
+    void star_matches_any_etag() {
+        assertTrue(entry("ETag", "\"v1\"").not_modified(request("If-None-Match", "*")));
+        // Nothing to match without an ETag
+        assertFalse(entry("Last-Modified", "Mon, 02 Jan 2023 00:00:00 GMT").not_modified(request("If-None-Match", "*")));
+    }
+
+    @Test
+    void if_modified_since() {
+        CacheEntry entry = entry("Last-Modified", "Mon, 02 Jan 2023 00:00:00 GMT");
+        assertTrue(entry.not_modified(request("If-Modified-Since", "Mon, 02 Jan 2023 00:00:00 GMT")));
+        assertTrue(entry.not_modified(request("If-Modified-Since", "Tue, 03 Jan 2023 00:00:00 GMT")));
+        assertFalse(entry.not_modified(request("If-Modified-Since", "Sun, 01 Jan 2023 00:00:00 GMT")));
+        assertFalse(entry.not_modified(request("If-Modified-Since", "yesterday")));
+        assertFalse(entry("ETag", "\"v1\"").not_modified(request("If-Modified-Since", "Tue, 03 Jan 2023 00:00:00 GMT")));
+    }
+
+    @Test
+    void if_none_match_wins_over_if_modified_since() {
+        CacheEntry entry = entry("ETag", "\"v1\"", "Last-Modified", "Mon, 02 Jan 2023 00:00:00 GMT");
+        assertFalse(entry.not_modified(request("If-None-Match", "\"v2\"",
+            "If-Modified-Since", "Tue, 03 Jan 2023 00:00:00 GMT")));
+        assertTrue(entry.not_modified(request("If-None-Match", "\"v1\"",
+            "If-Modified-Since", "Sun, 01 Jan 2023 00:00:00 GMT")));
+    }
+}
@@ -0,0 +1,134 @@
+package noxy.Cache;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import noxy.ServerConfig.CacheConf;
+
+class DiskCacheTest {
+    /// Memory only takes tiny bodies, everything else goes to disk
+    static ResponseCache cache(Path dir) throws Exception {
+        CacheConf conf         = new CacheConf();
+        conf.max_memory        = 1L << 20;
+        conf.max_object        = 16L;
+        conf.disk_path         = dir.toString();
+        conf.disk_max_size     = 4L << 20;
+        conf.disk_segment_size = 1L << 20;
+        return new ResponseCache(conf);
+    }
+
+    static HttpRequest request(String uri) {
+        HttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        req.headers().set("Host", "example.com");
+        return req;
+    }
+
+    static String body(String uri) {
+        return (uri+" ").repeat(100);
+    }
+
+    /// Write body of uri in a disk region and index it, as a cache fill does
+    static void fill(ResponseCache cache, String uri) {
+        HttpRequest req       = request(uri);
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.headers().set("Cache-Control", "max-age=60");
+        response.headers().set("ETag", "\""+uri+"\"");
+
+        byte[] body       = body(uri).getBytes(StandardCharsets.UTF_8);
+        DiskRegion region = cache.reserve(body.length);
+        assertNotNull(region);
+        assertTrue(region.write(Unpooled.wrappedBuffer(body)));
+        assertTrue(region.complete());
+        cache.store(ResponseCache.base_key(req, "http"), req, response, region, ResponseCache.ttl(response));
+        region.segment.release();
+    }
+
+    /// Body of the disk entry found for uri, null on a miss
+    static String lookup(ResponseCache cache, String uri) {
+        CacheEntry entry = cache.lookup(request(uri), "http");
+        if (entry == null) {
+            return null;
+        }
+        assertNotNull(entry.segment);
+        assertTrue(entry.fresh());
+        assertEquals("\""+uri+"\"", entry.etag);
+        String body = Unpooled.wrappedBuffer(entry.segment.map.slice(entry.offset, entry.length))
+            .toString(StandardCharsets.UTF_8);
+        entry.release();
+        return body;
+    }
+
+    @Test
+    void reopened_cache_is_warm(@TempDir Path dir) throws Exception {
+        ResponseCache first = cache(dir);
+        for (String uri : new String[] { "/a", "/b", "/c" }) {
+            fill(first, uri);
+        }
+        first.flush_disk();
+
+        ResponseCache second = cache(dir);
+        for (String uri : new String[] { "/a", "/b", "/c" }) {
+            assertEquals(body(uri), lookup(second, uri), uri);
+        }
+        assertNull(lookup(second, "/d"));
+    }
+
+    @Test
+    void removed_entries_stay_removed(@TempDir Path dir) throws Exception {
+        ResponseCache first = cache(dir);
+        fill(first, "/a");
+        fill(first, "/b");
+        // Replacing a disk entry with a memory one removes it from the index
+        HttpRequest req       = request("/a");
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.headers().set("Cache-Control", "max-age=60");
+        first.store(ResponseCache.base_key(req, "http"), req, response, Unpooled.directBuffer().writeByte('x'), 60000);
+        first.flush_disk();
+
+        ResponseCache second = cache(dir);
+        assertNull(second.lookup(req, "http"));
+        assertEquals(body("/b"), lookup(second, "/b"));
+    }
+
+    @Test
+    void truncated_last_record_ignored(@TempDir Path dir) throws Exception {
+        ResponseCache first = cache(dir);
+        for (String uri : new String[] { "/a", "/b", "/c" }) {
+            fill(first, uri);
+        }
+        first.flush_disk();
+
+        // Crash in the middle of the last record
+        try (RandomAccessFile index = new RandomAccessFile(new File(dir.toFile(), "index"), "rw")) {
+            index.setLength(index.length() - 5);
+        }
+
+        ResponseCache second = cache(dir);
+        assertEquals(body("/a"), lookup(second, "/a"));
+        assertEquals(body("/b"), lookup(second, "/b"));
+        assertNull(lookup(second, "/c"));
+
+        // Journal was rewritten without the broken record
+        fill(second, "/d");
+        second.flush_disk();
+        ResponseCache third = cache(dir);
+        assertEquals(body("/a"), lookup(third, "/a"));
+        assertEquals(body("/d"), lookup(third, "/d"));
+        assertNull(lookup(third, "/c"));
+    }
+}
@@ -0,0 +1,159 @@
+package noxy.Cache;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import org.junit.jupiter.api.Test;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import noxy.ServerConfig.CacheConf;
+
+class ResponseCacheTest {
+    /// Response with status, headers as name, value pairs
+    static HttpResponse response(int status, String... headers) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(status));
+        for (int i = 0; i + 1 < headers.length; i += 2) {
+            response.headers().add(headers[i], headers[i + 1]);
+        }
+        return response;
+    }
+
+    static HttpRequest request(String uri, String... headers) {
+        HttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        req.headers().set("Host", "example.com");
+        for (int i = 0; i + 1 < headers.length; i += 2) {
+            req.headers().add(headers[i], headers[i + 1]);
+        }
+        return req;
+    }
+
+    static ResponseCache cache() throws Exception {
+        CacheConf conf  = new CacheConf();
+        conf.max_memory = 1L << 20;
+        conf.max_object = 1L << 16;
+        return new ResponseCache(conf);
+    }
+
+    static void store(ResponseCache cache, HttpRequest req, HttpResponse response, String body) {
+        cache.store(ResponseCache.base_key(req, "http"), req, response,
+            Unpooled.directBuffer().writeBytes(body.getBytes()), ResponseCache.ttl(response));
+    }
+
+    /// Body of the entry found for request, null on a miss
+    static String lookup(ResponseCache cache, HttpRequest req) {
+        CacheEntry entry = cache.lookup(req, "http");
+        if (entry == null) {
+            return null;
+        }
+        String body = entry.body.toString(StandardCharsets.UTF_8);
+        entry.release();
+        return body;
+    }
+
+    @Test
+    void max_age() {
+        assertEquals(60000, ResponseCache.ttl(response(200, "Cache-Control", "public, max-age=60")));
+        assertEquals(0, ResponseCache.ttl(response(200, "Cache-Control", "max-age=0")));
+        assertEquals(60000, ResponseCache.ttl(response(200, "Cache-Control", "max-age=\"60\"")));
+        // Invalid value is as if it was missing, nothing else tells freshness
+        assertEquals(-1, ResponseCache.ttl(response(200, "Cache-Control", "max-age=soon")));
+    }
+
+    @Test
+    void s_maxage_wins_over_max_age() {
+        assertEquals(300000, ResponseCache.ttl(response(200, "Cache-Control", "max-age=60, s-maxage=300")));
+        assertEquals(0, ResponseCache.ttl(response(200, "Cache-Control", "s-maxage=0, max-age=60")));
+    }
+
+    @Test
+    void not_stored() {
+        assertEquals(-1, ResponseCache.ttl(response(200, "Cache-Control", "no-store, max-age=60")));
+        assertEquals(-1, ResponseCache.ttl(response(200, "Cache-Control", "private, max-age=60")));
+        assertEquals(-1, ResponseCache.ttl(response(200, "Cache-Control", "private=\"Set-Cookie\", max-age=60")));
+        assertEquals(-1, ResponseCache.ttl(response(200, "Cache-Control", "max-age=60", "Set-Cookie", "a=b")));
+        assertEquals(-1, ResponseCache.ttl(response(200, "Cache-Control", "max-age=60", "Vary", "*")));
+        assertEquals(-1, ResponseCache.ttl(response(500, "Cache-Control", "max-age=60")));
+        assertEquals(-1, ResponseCache.ttl(response(200)));
+    }
+
+    @Test
+    void no_cache_needs_validators() {
+        assertEquals(-1, ResponseCache.ttl(response(200, "Cache-Control", "no-cache, max-age=60")));
+        assertEquals(0, ResponseCache.ttl(response(200, "Cache-Control", "no-cache", "ETag", "\"v1\"")));
+        // Stored to be revalidated when nothing tells freshness
+        assertEquals(0, ResponseCache.ttl(response(200, "Last-Modified", "Mon, 02 Jan 2023 00:00:00 GMT")));
+    }
+
+    @Test
+    void expires() {
+        assertEquals(3600000, ResponseCache.ttl(response(200,
+            "Date", "Mon, 02 Jan 2023 00:00:00 GMT", "Expires", "Mon, 02 Jan 2023 01:00:00 GMT")));
+        // Expired or invalid is stored stale
+        assertEquals(0, ResponseCache.ttl(response(200,
+            "Date", "Mon, 02 Jan 2023 01:00:00 GMT", "Expires", "Mon, 02 Jan 2023 00:00:00 GMT")));
+        assertEquals(0, ResponseCache.ttl(response(200, "Expires", "0")));
+        // max-age wins over Expires
+        assertEquals(60000, ResponseCache.ttl(response(200, "Cache-Control", "max-age=60",
+            "Date", "Mon, 02 Jan 2023 00:00:00 GMT", "Expires", "Mon, 02 Jan 2023 01:00:00 GMT")));
+
+        // Without Date, compared to now
+        long ttl = ResponseCache.ttl(response(200,
+            "Expires", DateFormatter.format(new Date(System.currentTimeMillis() + 120000))));
+        assertTrue(ttl > 110000 && ttl <= 120000, ttl+" ms");
+    }
+
+    @Test
+    void hop_by_hop_not_stored() {
+        HttpHeaders stored = ResponseCache.stored_headers(response(200, "Connection", "keep-alive",
+            "Keep-Alive", "timeout=5", "Proxy-Connection", "keep-alive", "Transfer-Encoding", "chunked",
+            "Age", "10", "ETag", "\"v1\"").headers(), 42);
+        assertEquals(2, stored.size());
+        assertEquals("\"v1\"", stored.get("ETag"));
+        assertEquals(42, stored.getInt("Content-Length"));
+    }
+
+    @Test
+    void vary_keys_variants_apart() throws Exception {
+        ResponseCache cache = cache();
+        store(cache, request("/v", "Accept-Encoding", "gzip"),
+            response(200, "Cache-Control", "max-age=60", "Vary", "Accept-Encoding"), "gzip");
+        store(cache, request("/v"), response(200, "Cache-Control", "max-age=60", "Vary", "Accept-Encoding"), "plain");
+
+        assertEquals("gzip", lookup(cache, request("/v", "Accept-Encoding", "gzip")));
+        assertEquals("plain", lookup(cache, request("/v")));
+        assertNull(lookup(cache, request("/v", "Accept-Encoding", "br")));
+        // Header names are case insensitive, values are not
+        assertEquals("gzip", lookup(cache, request("/v", "accept-encoding", "gzip")));
+        assertNull(lookup(cache, request("/v", "Accept-Encoding", "GZIP")));
+        // Other resources are not affected
+        assertNull(lookup(cache, request("/w", "Accept-Encoding", "gzip")));
+    }
+
+    @Test
+    void vary_change_replaces_variants() throws Exception {
+        ResponseCache cache = cache();
+        store(cache, request("/v", "Accept-Language", "fr"),
+            response(200, "Cache-Control", "max-age=60", "Vary", "Accept-Language"), "fr");
+        store(cache, request("/v", "Accept-Language", "fr", "Accept-Encoding", "gzip"),
+            response(200, "Cache-Control", "max-age=60", "Vary", "Accept-Encoding, Accept-Language"), "fr gzip");
+
+        assertEquals("fr gzip", lookup(cache, request("/v", "Accept-Language", "fr", "Accept-Encoding", "gzip")));
+        // Variants keyed on the old names are not found anymore
+        assertNull(lookup(cache, request("/v", "Accept-Language", "fr")));
+
+        // Dropping Vary keys the resource on its url alone
+        store(cache, request("/v", "Accept-Language", "de"), response(200, "Cache-Control", "max-age=60"), "any");
+        assertEquals("any", lookup(cache, request("/v", "Accept-Language", "fr")));
+    }
+}
@@ -0,0 +1,219 @@
+package noxy.Expression;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import org.junit.jupiter.api.Test;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import noxy.ServerConfig.HttpSettings;
+
+class ExprParserTest {
+    /// Frontend listening on 443, client at 10.0.0.7
+    static EmbeddedChannel channel = new EmbeddedChannel() {
+        @Override
+        protected SocketAddress localAddress0() {
+            return new InetSocketAddress("127.0.0.1", 443);
+        }
+
+        @Override
+        protected SocketAddress remoteAddress0() {
+            return new InetSocketAddress("10.0.0.7", 50000);
+        }
+    };
+
+    /// GET uri over https, headers as name, value pairs
+    static HttpSettings request(String uri, String... headers) {
+        HttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        for (int i = 0; i + 1 < headers.length; i += 2) {
+            req.headers().add(headers[i], headers[i + 1]);
+        }
+        return new HttpSettings(req, channel, "https");
+    }
+
+    static HttpSettings settings = request("/api/v1/users?lang=fr&page=2",
+        "Host", "example.com:8443",
+        "X-Tenant", "ACME",
+        "Cookie", "theme=dark; session=\"xyz\"");
+
+    static boolean test(String src) {
+        return ExprParser.parse(src).test(settings);
+    }
+
+    static String str(String src) {
+        return ExprParser.parse(src).str(settings);
+    }
+
+    static void assert_error(String src, String msg, int pos) {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> ExprParser.parse(src));
+        assertEquals(msg+" at position "+pos+" in: "+src, e.getMessage());
+    }
+
+    @Test
+    void attributes() {
+        assertEquals("https", str("scheme"));
+        assertEquals("example.com", str("host"));
+        assertEquals(443, ExprParser.parse("port").num(settings));
+        assertEquals("/api/v1/users?lang=fr&page=2", str("uri"));
+        assertEquals("GET", str("method"));
+        assertEquals("10.0.0.7", str("client_ip"));
+        assertEquals("ACME", str("header('x-tenant')"));
+        assertEquals("xyz", str("cookie('session')"));
+        assertEquals("dark", str("cookie('theme')"));
+        assertEquals("fr", str("query('lang')"));
+    }
+
+    @Test
+    void not_binds_tighter_than_and() {
+        assertFalse(test("!false && false"));
+        assertTrue(test("!(false && false)"));
+        assertTrue(test("!!true"));
+    }
+
+    @Test
+    void and_binds_tighter_than_or() {
+        assertTrue(test("true || false && false"));
+        assertTrue(test("false && false || true"));
+        assertFalse(test("(true || false) && false"));
+    }
+
+    @Test
+    void comparison_binds_tighter_than_logic() {
+        assertTrue(test("host == 'example.com' && method == 'GET'"));
+        assertTrue(test("host == 'other.com' || port == 443"));
+        assertFalse(test("!(port == 443) || method != 'GET'"));
+        assertTrue(test("1 < 2 && 2 <= 2 && 3 > 2 && 3 >= 4 || 1 != 2"));
+    }
+
+    @Test
+    void add_binds_tighter_than_comparison() {
+        assertTrue(test("1 + 2 == 3"));
+        assertTrue(test("port == 400 + 43"));
+        assertTrue(test("'a' + 'b' == 'ab'"));
+        assertEquals(Expr.NUM, ExprParser.parse("port + 1").type);
+    }
+
+    @Test
+    void add_is_left_associative() {
+        assertEquals("3x", str("1 + 2 + 'x'"));
+        assertEquals("x12", str("'x' + 1 + 2"));
+        assertEquals(Expr.STR, ExprParser.parse("1 + 'x'").type);
+    }
+
+    @Test
+    void find_vs_whole_match() {
+        assertTrue(test("uri =~ 'v1'"));
+        assertFalse(test("uri ==~ 'v1'"));
+        assertTrue(test("uri ==~ '/api/.*'"));
+        assertFalse(test("uri ==~ '/api'"));
+        assertTrue(test("uri.matches('/api/.*')"));
+        assertFalse(test("uri.matches('v1')"));
+        assertTrue(test("uri =~ '^/api' && method == 'GET'"));
+    }
+
+    @Test
+    void regex_must_be_literal() {
+        assert_error("uri =~ host", "Regex must be a string literal", 11);
+        assertThrows(IllegalArgumentException.class, () -> ExprParser.parse("uri =~ '['"));
+    }
+
+    @Test
+    void gstring_names() {
+        assertEquals("https://example.com/api/v1/users?lang=fr&page=2", str("\"$scheme://$host$uri\""));
+        assertEquals("GET from 10.0.0.7", str("\"$method from $client_ip\""));
+        // $ not followed by a name or { is kept as is
+        assertEquals("costs $5", str("\"costs $5\""));
+        assertEquals("$host", str("\"\\$host\""));
+    }
+
+    @Test
+    void gstring_expressions() {
+        assertEquals("444", str("\"${port + 1}\""));
+        assertEquals("tenant-acme", str("\"tenant-${header('X-Tenant').toLowerCase()}\""));
+        assertEquals("true", str("\"${port == 443}\""));
+        assertEquals("", str("\"\""));
+        assertEquals(Expr.STR, ExprParser.parse("\"plain\"").type);
+    }
+
+    @Test
+    void gstring_errors() {
+        assert_error("\"$nope\"", "Unknown attribute nope", 6);
+        assert_error("\"${port\"", "Expected '}'", 7);
+        assert_error("\"open", "Unterminated string", 5);
+    }
+
+    @Test
+    void sprintf() {
+        assertEquals("example.com:443", str("sprintf('%s:%d', host, port)"));
+        assertEquals("100%", str("sprintf('100%%')"));
+        assertEquals("%s", str("sprintf('%%s', host)"));
+        assertEquals("GET 100%", str("sprintf('%s %d%%', method, 100)"));
+    }
+
+    @Test
+    void sprintf_errors() {
+        String missing = "sprintf('%s and %s', host)";
+        assert_error(missing, "Missing sprintf argument", missing.length());
+        assert_error("sprintf('%d')", "Missing sprintf argument", 13);
+        assert_error("sprintf('50%')", "Incomplete sprintf specifier", 14);
+        assert_error("sprintf('%x', 1)", "Unsupported sprintf specifier %x", 16);
+        assert_error("sprintf(host)", "sprintf format must be a string literal", 13);
+    }
+
+    @Test
+    void numeric_vs_string_equality() {
+        // Both sides numbers: numeric comparison
+        assertTrue(test("port == 443"));
+        assertTrue(test("port > 80"));
+        assertFalse(test("port < 5"));
+        assertFalse(test("9 > 10"));
+        // One side a string: both compared as strings, like Groovy
+        assertTrue(test("port == '443'"));
+        assertFalse(test("port == '0443'"));
+        assertTrue(test("port < '5'"));
+        assertTrue(test("'9' > '10'"));
+        assertTrue(test("port + '' == '443'"));
+    }
+
+    @Test
+    void missing_attributes() {
+        for (String attr : new String[] {"header('X-Missing')", "cookie('missing')", "query('missing')"}) {
+            assertNull(str(attr), attr);
+            assertFalse(test(attr), attr);
+            assertTrue(test("!"+attr), attr);
+            assertFalse(test(attr+" == ''"), attr);
+            assertTrue(test(attr+" != ''"), attr);
+            assertFalse(test(attr+" == 'null'"), attr);
+            assertFalse(test(attr+" =~ '.*'"), attr);
+            assertFalse(test(attr+".startsWith('')"), attr);
+            assertFalse(test(attr+".toLowerCase()"), attr);
+        }
+    }
+
+    @Test
+    void missing_attributes_without_request() {
+        HttpSettings def = HttpSettings.defaults();
+        assertFalse(ExprParser.parse("header('Host')").test(def));
+        assertFalse(ExprParser.parse("cookie('session') == 'xyz'").test(def));
+        assertTrue(ExprParser.parse("host == '' && port == 0").test(def));
+    }
+
+    @Test
+    void parse_errors_carry_position() {
+        assert_error("host == ", "Unexpected end of expression", 8);
+        assert_error("host == 'a' )", "Unexpected ')'", 12);
+        assert_error("hots == 'a'", "Unknown attribute hots", 4);
+        assert_error("uri.startWith('/a')", "Unknown method startWith", 19);
+        assert_error("uri.startsWith()", "startsWith takes one argument", 16);
+        assert_error("'abc", "Unterminated string", 4);
+        assert_error("(host == 'a'", "Expected ')'", 12);
+        assert_error("header(host)", "header takes one string literal", 12);
+        assert_error("host == 'a' && ", "Unexpected end of expression", 15);
+    }
+}
@@ -0,0 +1,36 @@
+package noxy.Server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+class ConnectionLimitsTest {
+    @Test
+    void refused_connections_not_counted() {
+        ConnectionLimits.global_maxconn         = 3;
+        ConnectionLimits.global_maxconn_counter = new AtomicLong(0);
+        ConnectionLimits front                  = new ConnectionLimits(2);
+        ConnectionLimits other                  = new ConnectionLimits(10);
+
+        assertTrue(front.new_connection());
+        assertTrue(front.new_connection());
+        // Frontend limit
+        assertFalse(front.new_connection());
+        assertEquals(2, front.active());
+        assertEquals(2, ConnectionLimits.global_maxconn_counter.get());
+
+        assertTrue(other.new_connection());
+        // Global limit
+        assertFalse(other.new_connection());
+        assertEquals(1, other.active());
+        assertEquals(3, ConnectionLimits.global_maxconn_counter.get());
+
+        front.connection_finished();
+        assertEquals(1, front.active());
+        assertTrue(other.new_connection());
+        assertEquals(2, other.active());
+        assertEquals(3, ConnectionLimits.global_maxconn_counter.get());
+    }
+}
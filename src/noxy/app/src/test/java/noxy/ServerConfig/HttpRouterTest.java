@@ -0,0 +1,198 @@
+package noxy.ServerConfig;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+
+class HttpRouterTest {
+    static EmbeddedChannel channel = new EmbeddedChannel();
+
+    static final String[] HOSTS = { "h0", "h1", "h2", "h3" };
+
+    // Neither host == literal nor uri.startsWith(literal), evaluated one by one
+    static final String[] OTHERS = {
+        "uri =~ 'ab'",
+        "uri ==~ '/a.*b'",
+        "host == 'h1' && uri.startsWith('/a')",
+        "uri.startsWith('/b') || host == 'h2'",
+        "!uri.startsWith('/a')",
+        "host != 'h0'",
+        "header('X-A') == '1'",
+        "method == 'POST'",
+        "true",
+    };
+
+    static HttpSettings request(Random rnd) {
+        HttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_1,
+            rnd.nextInt(4) == 0 ? HttpMethod.POST : HttpMethod.GET, "/"+word(rnd, "ab/", 6));
+        int host = rnd.nextInt(HOSTS.length + 2);
+        if (host < HOSTS.length) {
+            req.headers().set("Host", HOSTS[host]);
+        } else if (host == HOSTS.length) {
+            req.headers().set("Host", "unknown:8080");
+        }
+        if (rnd.nextBoolean()) {
+            req.headers().set("X-A", rnd.nextBoolean() ? "1" : "2");
+        }
+        return new HttpSettings(req, channel, "http");
+    }
+
+    static String word(Random rnd, String chars, int max) {
+        StringBuilder sb = new StringBuilder();
+        int len          = rnd.nextInt(max + 1);
+        for (int i = 0; i < len; i++) {
+            sb.append(chars.charAt(rnd.nextInt(chars.length())));
+        }
+        return sb.toString();
+    }
+
+    static List<HttpCondition> rules(Random rnd) {
+        List<HttpCondition> rules = new ArrayList<>();
+        int count                 = 1 + rnd.nextInt(30);
+        for (int i = 0; i < count; i++) {
+            HttpCondition cond = new HttpCondition();
+            switch (rnd.nextInt(4)) {
+                case 0:
+                    cond.when = "host == '"+HOSTS[rnd.nextInt(HOSTS.length)]+"'";
+                    break;
+                case 1:
+                    cond.when = "'"+HOSTS[rnd.nextInt(HOSTS.length)]+"' == host";
+                    break;
+                case 2:
+                    // Short prefixes over a small alphabet, so trie edges are shared and split
+                    cond.when = "uri.startsWith('"+(rnd.nextInt(8) == 0 ? "" : "/"+word(rnd, "ab", 3))+"')";
+                    break;
+                default:
+                    cond.when = OTHERS[rnd.nextInt(OTHERS.length)];
+                    break;
+            }
+            if (rnd.nextInt(3) == 0) {
+                cond.redirect = "'/r"+i+"' + uri";
+            } else {
+                cond.use_backend = "b"+i;
+            }
+            rules.add(cond);
+        }
+        return rules;
+    }
+
+    /// Old routing: every condition in order, first redirect returns, otherwise last use_backend wins
+    static Route linear(List<HttpCondition> rules, String default_backend, HttpSettings settings) throws Exception {
+        String backend = default_backend;
+        for (HttpCondition cond : rules) {
+            if (cond.evaluate(settings)) {
+                if (cond.use_backend != null) {
+                    backend = cond.use_backend;
+                } else if (cond.redirect != null) {
+                    return new Route(null, cond.evaluate_str(cond.redirect, settings));
+                }
+            }
+        }
+        return new Route(backend, null);
+    }
+
+    static HttpCondition rule(String when, String redirect, String use_backend) throws Exception {
+        HttpCondition cond = new HttpCondition();
+        cond.when          = when;
+        cond.redirect      = redirect;
+        cond.use_backend   = use_backend;
+        cond.compile();
+        return cond;
+    }
+
+    static Route route(HttpRouter router, String uri, String... headers) throws Exception {
+        HttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        for (int i = 0; i + 1 < headers.length; i += 2) {
+            req.headers().set(headers[i], headers[i + 1]);
+        }
+        return router.route(new HttpSettings(req, channel, "http"));
+    }
+
+    static void assert_same(Route expected, Route actual, String msg) {
+        assertEquals(expected.backend, actual.backend, msg);
+        assertEquals(expected.redirect, actual.redirect, msg);
+    }
+
+    static void check_random_rules(int cache_size) throws Exception {
+        Random rnd = new Random(42);
+        for (int set = 0; set < 500; set++) {
+            List<HttpCondition> rules = rules(rnd);
+            StringBuilder desc        = new StringBuilder();
+            for (HttpCondition cond : rules) {
+                desc.append('\n').append(cond.when);
+                desc.append(cond.use_backend != null ? " -> "+cond.use_backend : " -> redirect");
+                cond.compile();
+            }
+
+            HttpRouter router = new HttpRouter(rules, "default", cache_size);
+            for (int i = 0; i < 100; i++) {
+                HttpSettings settings = request(rnd);
+                String msg            = settings.method()+" "+settings.host()+settings.uri()
+                    +" X-A: "+settings.header("X-A")+desc;
+                assert_same(linear(rules, "default", settings), router.route(settings), msg);
+            }
+        }
+    }
+
+    @Test
+    void same_routes_as_linear_loop() throws Exception {
+        check_random_rules(0);
+    }
+
+    @Test
+    void same_routes_as_linear_loop_with_cache() throws Exception {
+        check_random_rules(16);
+    }
+
+    @Test
+    void earliest_redirect_beats_later_rules() throws Exception {
+        HttpRouter router = new HttpRouter(List.of(
+            rule("uri.startsWith('/a')", null, "b0"),
+            rule("host == 'h0'", "'/moved'", null),
+            rule("uri.startsWith('/ab')", null, "b2"),
+            rule("uri =~ 'c'", null, "b3")), "default", 0);
+
+        Route route = route(router, "/abc", "Host", "h0");
+        assertNull(route.backend);
+        assertEquals("/moved", route.redirect);
+        assertEquals("b3", route(router, "/abc", "Host", "h1").backend);
+        assertEquals("default", route(router, "/b").backend);
+    }
+
+    @Test
+    void cache_tells_missing_from_null() throws Exception {
+        HttpRouter router = new HttpRouter(List.of(
+            rule("header('X-A') == 'null'", null, "literal"),
+            rule("cookie('c') == 'null'", null, "literal"),
+            rule("query('q') == 'null'", null, "literal")), "default", 16);
+        assertNotNull(router.cache);
+
+        assertEquals("default", route(router, "/").backend);
+        assertEquals("literal", route(router, "/", "X-A", "null").backend);
+        assertEquals("literal", route(router, "/", "Cookie", "c=null").backend);
+        assertEquals("literal", route(router, "/?q=null").backend);
+        assertEquals("default", route(router, "/").backend);
+    }
+
+    @Test
+    void cache_keeps_values_apart() throws Exception {
+        HttpRouter router = new HttpRouter(List.of(
+            rule("query('b') == ''", null, "empty"),
+            rule("query('a') == ''", null, "other")), "default", 16);
+
+        // Values running into each other used to give the same key
+        assertEquals("empty", route(router, "/?a=%00&b=").backend);
+        assertEquals("other", route(router, "/?a=&b=%00").backend);
+        assertEquals("empty", route(router, "/?a=%00&b=").backend);
+    }
+}